@@ -51,7 +51,8 @@ public class SampleSandboxed {
 		LoadState.install(server_globals);
 		LuaC.install(server_globals);
 
-		// Set up the LuaString metatable to be read-only since it is shared across all scripts.
+		// Set up the default LuaString metatable to be read-only, since it is shared by strings used from Java.
+		// Assigning it does not affect globals with their own string metatable, see runScriptInSandbox().
 		LuaString.s_metatable = new ReadOnlyLuaTable(LuaString.s_metatable);
 
 		// Example normal scripts that behave as expected.
@@ -99,6 +100,11 @@ public class SampleSandboxed {
 		user_globals.load(new JseStringLib());
 		user_globals.load(new JseMathLib());
 
+		// Each globals has its own string metatable, reachable by scripts through
+		// getmetatable('abc'), so make it read-only.
+		user_globals.setTypeMetatable(LuaValue.TSTRING,
+				new ReadOnlyLuaTable(user_globals.getTypeMetatable(LuaValue.TSTRING)));
+
 		// This library is dangerous as it gives unfettered access to the
 		// entire Java VM, so it's not suitable within this lightweight sandbox.
 		// user_globals.load(new LuajavaLib());
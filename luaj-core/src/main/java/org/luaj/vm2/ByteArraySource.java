@@ -0,0 +1,88 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * {@link ByteArrayInputStream} whose backing array is visible to readers that
+ * can consume it in place.
+ * <p>
+ * The lua compiler scans the bytes of a {@link ByteArraySource} directly
+ * instead of copying them through {@link #read(byte[], int, int)}, so this is
+ * the cheapest way to hand it a source that is already in memory. Instances
+ * are returned by {@link LuaString#toInputStream()} and used by
+ * {@link Globals#load(String, String)} and related methods.
+ * <p>
+ * As with {@link LuaString}, the array is shared and must not be modified
+ * while the stream is in use.
+ *
+ * @see LuaString#toInputStream()
+ * @see org.luaj.vm2.compiler.LuaC
+ */
+public final class ByteArraySource extends ByteArrayInputStream {
+
+	/**
+	 * Construct a stream over a portion of a byte array.
+	 *
+	 * @param bytes  the bytes to read, not copied
+	 * @param offset index of the first byte
+	 * @param length number of bytes
+	 */
+	public ByteArraySource(byte[] bytes, int offset, int length) {
+		super(bytes, offset, length);
+	}
+
+	/**
+	 * Construct a stream over the UTF-8 encoding of a Java String.
+	 *
+	 * @param s the characters to encode
+	 */
+	public ByteArraySource(String s) {
+		this(LuaString.encodeToUtf8(s));
+	}
+
+	private ByteArraySource(byte[] bytes) {
+		super(bytes);
+	}
+
+	/** The backing array. */
+	public byte[] array() { return buf; }
+
+	/** Index in {@link #array()} of the next byte to be read. */
+	public synchronized int position() { return pos; }
+
+	/** Index in {@link #array()} just past the last byte. */
+	public int limit() { return count; }
+
+	/**
+	 * Mark bytes as consumed by a reader that took them straight from
+	 * {@link #array()}.
+	 *
+	 * @param position the new read position
+	 */
+	public synchronized void seek(int position) {
+		if (position < pos || position > count)
+			throw new IndexOutOfBoundsException(String.valueOf(position));
+		pos = position;
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide pool of the constants and debug names of compacted prototypes.
+ * <p>
+ * Strings and numbers are immutable, so prototypes may share one instance of
+ * each distinct value. Entries are held weakly and disappear once no
+ * prototype refers to them.
+ *
+ * @see Prototype#compact(boolean)
+ */
+final class ConstantPool {
+
+	private static final WeakHashMap<LuaValue, WeakReference<LuaValue>> values = new WeakHashMap<LuaValue, WeakReference<LuaValue>>();
+
+	private ConstantPool() {}
+
+	/** Return the pooled instance of a string, adding it if there is none. */
+	static LuaString intern(LuaString s) {
+		return s != null? (LuaString) pooled(s): null;
+	}
+
+	/**
+	 * Return the pooled instance of a string or number constant, adding it if
+	 * there is none. Other values, and numbers whose identity matters to
+	 * equality such as NaN and negative zero, are returned as they are.
+	 */
+	static LuaValue intern(LuaValue v) {
+		switch (v.type()) {
+		case LuaValue.TSTRING:
+			return pooled(v);
+		case LuaValue.TNUMBER:
+			final double d = v.todouble();
+			return d != 0 && d == d? pooled(v): v;
+		default:
+			return v;
+		}
+	}
+
+	private static LuaValue pooled(LuaValue v) {
+		synchronized (values) {
+			final WeakReference<LuaValue> r = values.get(v);
+			final LuaValue p = r != null? r.get(): null;
+			if (p != null && p.getClass() == v.getClass())
+				return p;
+			values.put(v, new WeakReference<LuaValue>(v));
+			return v;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011, 2013 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Subclass of {@link LuaTable} whose contents can no longer change.
+ * <p>
+ * Instances are created by {@link LuaTable#freeze()}, which copies the source
+ * table into storage sized exactly for its contents: the array part holds the
+ * sequence {@code 1..n} and every other key goes into a hash part that is never
+ * rehashed. The length is computed once during construction.
+ * <p>
+ * Any attempt to store into a frozen table, or to change its metatable, raises
+ * a {@link LuaError}. Nothing writes to it after construction, and the
+ * constructor ends by assigning the final {@code sealed} flag, so every thread
+ * that obtains the reference sees the contents fully written. A frozen table
+ * may therefore be read concurrently from many threads and shared between
+ * independent {@link Globals} without synchronization.
+ *
+ * @see LuaTable#freeze()
+ */
+final class FrozenTable extends LuaTable {
+
+	/** precomputed border of the array part */
+	private final int length;
+
+	/**
+	 * false while the constructor copies the source table; final so that the
+	 * copied contents are published together with the table
+	 */
+	private final boolean sealed;
+
+	/**
+	 * Copy {@code source} into a new frozen table.
+	 *
+	 * @param source the table to copy
+	 * @param frozen frozen copies already made in this operation, by identity,
+	 *               so that shared and cyclic references are preserved
+	 */
+	FrozenTable(LuaTable source, IdentityHashMap<LuaTable, FrozenTable> frozen) {
+		Metatable mt = source.m_metatable;
+		if (mt != null && (mt.useWeakKeys() || mt.useWeakValues()))
+			throw new LuaError("cannot freeze a weak table");
+		frozen.put(source, this);
+
+		int n = 0;
+		while ( !source.rawget(n+1).isnil() )
+			++n;
+		int count = 0;
+		for (LuaValue k = NIL;;) {
+			Varargs e = source.next(k);
+			if ((k = e.arg1()).isnil())
+				break;
+			++count;
+		}
+		length = n;
+		array = n > 0? new LuaValue[n]: NOVALS;
+		if (count > n)
+			hash = new Slot[count-n < MIN_HASH_CAPACITY? MIN_HASH_CAPACITY: 1<<log2(count-n)];
+
+		for (LuaValue k = NIL;;) {
+			Varargs e = source.next(k);
+			if ((k = e.arg1()).isnil())
+				break;
+			rawset(k, freezeValue(e.arg(2), frozen));
+		}
+		if (mt != null) {
+			LuaValue m = mt.toLuaValue();
+			m_metatable = m instanceof LuaTable? freeze((LuaTable) m, frozen): mt;
+		}
+		sealed = true;
+	}
+
+	/** Return the frozen copy of a table, making it if necessary */
+	static FrozenTable freeze(LuaTable t, IdentityHashMap<LuaTable, FrozenTable> frozen) {
+		if (t instanceof FrozenTable)
+			return (FrozenTable) t;
+		FrozenTable f = frozen.get(t);
+		return f != null? f: new FrozenTable(t, frozen);
+	}
+
+	private static LuaValue freezeValue(LuaValue v, IdentityHashMap<LuaTable, FrozenTable> frozen) {
+		return v instanceof LuaTable? freeze((LuaTable) v, frozen): v;
+	}
+
+	private void checkwritable() {
+		if (sealed)
+			throw new LuaError("attempt to modify a frozen table");
+	}
+
+	@Override
+	public LuaTable freeze() {
+		return this;
+	}
+
+	@Override
+	public boolean isfrozen() {
+		return true;
+	}
+
+	@Override
+	public LuaValue setmetatable(LuaValue metatable) {
+		checkwritable();
+		return super.setmetatable(metatable);
+	}
+
+	@Override
+	public void presize(int narray) {
+		checkwritable();
+		super.presize(narray);
+	}
+
+	@Override
+	public void presize(int narray, int nhash) {
+		checkwritable();
+		super.presize(narray, nhash);
+	}
+
+	@Override
+	public void rawset(int key, LuaValue value) {
+		checkwritable();
+		super.rawset(key, value);
+	}
+
+	@Override
+	public void rawset(LuaValue key, LuaValue value) {
+		checkwritable();
+		super.rawset(key, value);
+	}
+
+	@Override
+	public void hashset(LuaValue key, LuaValue value) {
+		checkwritable();
+		super.hashset(key, value);
+	}
+
+	@Override
+	public int rawlen() {
+		return length;
+	}
+}
@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.util.Hashtable;
+import java.util.Vector;
 
 import org.luaj.vm2.lib.BaseLib;
 import org.luaj.vm2.lib.IoLib;
@@ -106,6 +108,7 @@ import org.luaj.vm2.lib.debug.DebugLibBase;
  * <li>{@link #compiler} Current loaded {@link Compiler}, if any.
  * <li>{@link #undumper} Current loaded {@link Undumper}, if any.
  * <li>{@link #loader} Current loaded {@link Loader}, if any.
+ * <li>{@link #recompiler} Current loaded {@link Recompiler}, if any.
  * </ul>
  *
  * <h3>Lua Environment Variables</h3> When using
@@ -122,6 +125,14 @@ import org.luaj.vm2.lib.debug.DebugLibBase;
  * will be logically distinct and not interfere with each other, but share
  * certain static immutable resources such as class data and string data.
  * <p>
+ * Metatables for strings, numbers, booleans, nil, functions and threads are
+ * kept per Globals, see {@link #setTypeMetatable(int, LuaValue)}, so that
+ * instances in the same class loader do not see each other's type metatables.
+ * <p>
+ * When many short-lived environments are needed, a fully initialized Globals
+ * can be used as a template and {@link #fork()}ed for each of them, which
+ * shares the template's tables copy-on-write instead of rebuilding them.
+ * <p>
  *
  * @see org.luaj.vm2.lib.jse.JsePlatform
  * @see org.luaj.vm2.lib.jme.JmePlatform
@@ -191,6 +202,204 @@ public class Globals extends LuaTable {
 		Prototype undump(InputStream stream, String chunkname) throws IOException;
 	}
 
+	/**
+	 * Interface for module that compiles prototypes which run often into a
+	 * faster form, such as Java bytecode.
+	 */
+	public interface Recompiler {
+		/**
+		 * Number of calls plus loop iterations of a prototype after which it is
+		 * passed to {@link #recompile(Prototype)}.
+		 */
+		int threshold();
+
+		/**
+		 * Called by the interpreter when a prototype reaches the threshold. The
+		 * result, if any, is installed as {@link Prototype#implementation} and
+		 * used by all later calls of its closures in Globals that use this
+		 * recompiler.
+		 */
+		void recompile(Prototype prototype);
+	}
+
+	/**
+	 * Marker for libraries whose functions do not refer to the Globals they
+	 * were loaded into, and whose tables can therefore be shared by
+	 * {@link Globals#fork()} instead of loading the library again.
+	 */
+	public interface SharedLibrary {
+	}
+
+	/** Libraries loaded via {@link #load(LuaValue)}, in load order */
+	private final Vector<LuaValue> libraries = new Vector<>();
+
+	/** The Globals of the lua code running on each Java thread, if any */
+	private static final ThreadLocal<Globals> current = new ThreadLocal<>();
+
+	/**
+	 * A Java thread for which this is known to be the running Globals, or null.
+	 * Only ever set by that thread itself, so a thread that finds itself here
+	 * can skip the thread-local lookup.
+	 */
+	private Thread runningOn;
+
+	/**
+	 * Metatables by type, where null selects the shared default such as
+	 * {@link LuaString#s_metatable}, and NIL means no metatable.
+	 */
+	private final LuaValue[] typemetatables = new LuaValue[TTHREAD+1];
+
+	/**
+	 * Get the Globals of the lua code currently running on this Java thread.
+	 *
+	 * @return the running Globals, or null if no lua code is running
+	 */
+	public static Globals current() {
+		return current.get();
+	}
+
+	/**
+	 * Check if this is the running Globals of this Java thread. Functions
+	 * compiled to java bytecode check this as they are called, and run through
+	 * {@link #invokeIn(LuaValue, LuaValue, Varargs)} if it is not.
+	 */
+	public final boolean isrunning() {
+		return runningOn == Thread.currentThread();
+	}
+
+	/**
+	 * Make {@code g} the running Globals of this Java thread.
+	 *
+	 * @return the previously running Globals, to be passed to
+	 *         {@link #leave(Globals, Globals)}
+	 */
+	static Globals enter(Globals g) {
+		final Thread t = Thread.currentThread();
+		Globals prev = current.get();
+		if (prev != g) {
+			current.set(g);
+			if (prev != null)
+				prev.runningOn = null;
+		}
+		g.runningOn = t;
+		return prev;
+	}
+
+	/** Restore the running Globals replaced by {@link #enter(Globals)} */
+	static void leave(Globals g, Globals prev) {
+		if (prev != g) {
+			current.set(prev);
+			g.runningOn = null;
+			if (prev != null)
+				prev.runningOn = Thread.currentThread();
+		}
+	}
+
+	/**
+	 * Invoke a function whose environment is {@code env}, making that the
+	 * running Globals while it runs if it is a Globals, as {@link LuaClosure}
+	 * does for its closures. Used by functions compiled to java bytecode when
+	 * they are called while their Globals is not running, such as from java
+	 * or on a coroutine.
+	 *
+	 * @param env  the environment of the function
+	 * @param f    the function, whose {@link LuaValue#onInvoke(Varargs)} runs
+	 *             the body
+	 * @param args the arguments
+	 * @return the results, with any tail call evaluated
+	 */
+	public static Varargs invokeIn(LuaValue env, LuaValue f, Varargs args) {
+		if (!(env instanceof Globals) || ((Globals) env).isrunning())
+			return f.onInvoke(args).eval();
+		final Globals g = (Globals) env;
+		final Globals prev = enter(g);
+		try {
+			return f.onInvoke(args).eval();
+		} finally {
+			leave(g, prev);
+		}
+	}
+
+	/**
+	 * Look up the metatable for values of a type in the running Globals.
+	 *
+	 * @param type       the type, such as {@link LuaValue#TSTRING}
+	 * @param s_metatable the shared default for the type
+	 * @return the metatable, or null if there is none
+	 */
+	static LuaValue typemetatable(int type, LuaValue s_metatable) {
+		Globals g = current.get();
+		if (g != null) {
+			LuaValue mt = g.typemetatables[type];
+			if (mt != null)
+				return mt != NIL? mt: null;
+		}
+		return s_metatable;
+	}
+
+	/**
+	 * Get the metatable used by lua code in this Globals for all values of a
+	 * type.
+	 *
+	 * @param type one of {@link LuaValue#TNIL}, {@link LuaValue#TBOOLEAN},
+	 *             {@link LuaValue#TNUMBER}, {@link LuaValue#TSTRING},
+	 *             {@link LuaValue#TFUNCTION} or {@link LuaValue#TTHREAD}
+	 * @return the metatable, or null if there is none
+	 * @throws IllegalArgumentException if the type has per-value metatables
+	 */
+	public LuaValue getTypeMetatable(int type) {
+		LuaValue mt = typemetatables[checktype(type)];
+		if (mt == null) {
+			switch (type) {
+			case TNIL:
+				return LuaNil.s_metatable;
+			case TBOOLEAN:
+				return LuaBoolean.s_metatable;
+			case TNUMBER:
+				return LuaNumber.s_metatable;
+			case TSTRING:
+				return LuaString.s_metatable;
+			case TFUNCTION:
+				return LuaFunction.s_metatable;
+			default:
+				return LuaThread.s_metatable;
+			}
+		}
+		return mt != NIL? mt: null;
+	}
+
+	/**
+	 * Set the metatable used by lua code in this Globals for all values of a
+	 * type, without affecting other Globals.
+	 * <p>
+	 * Until it is set, the shared default in the corresponding static field,
+	 * such as {@link LuaString#s_metatable}, is used. The static fields also
+	 * apply when values are used from Java while no lua code is running.
+	 *
+	 * @param type      one of {@link LuaValue#TNIL}, {@link LuaValue#TBOOLEAN},
+	 *                  {@link LuaValue#TNUMBER}, {@link LuaValue#TSTRING},
+	 *                  {@link LuaValue#TFUNCTION} or {@link LuaValue#TTHREAD}
+	 * @param metatable the metatable, or null for none
+	 * @throws IllegalArgumentException if the type has per-value metatables
+	 */
+	public void setTypeMetatable(int type, LuaValue metatable) {
+		typemetatables[checktype(type)] = metatable != null? metatable: NIL;
+	}
+
+	private static int checktype(int type) {
+		switch (type) {
+		case TNIL:
+		case TBOOLEAN:
+		case TNUMBER:
+		case TSTRING:
+		case TFUNCTION:
+		case TTHREAD:
+			return type;
+		default:
+			throw new IllegalArgumentException("no type metatable for type " + type);
+		}
+	}
+
 	/**
 	 * Check that this object is a Globals object, and return it, otherwise
 	 * throw an error.
@@ -221,6 +430,170 @@ public class Globals extends LuaTable {
 	 */
 	public Undumper undumper;
 
+	/**
+	 * The installed recompiler, or null to only interpret lua bytecode.
+	 *
+	 * @see Recompiler
+	 */
+	public Recompiler recompiler;
+
+	/**
+	 * Load a library instance into this Globals, and remember it so that
+	 * {@link #fork()} can provide the library to forked instances.
+	 *
+	 * @param library The callable {@link LuaValue} to load into {@code this}
+	 * @return {@link LuaValue} returned by the initialization call.
+	 */
+	@Override
+	public LuaValue load(LuaValue library) {
+		libraries.addElement(library);
+		return library.call(EMPTYSTRING, this);
+	}
+
+	/**
+	 * Install a library that is only loaded when its table is first used.
+	 * <p>
+	 * A placeholder table is stored under {@code modname} in this Globals and
+	 * in {@code package.loaded}, if present. The first read or write of the
+	 * placeholder loads the library via {@link #load(LuaValue)} and takes over
+	 * the contents of the table it produced, so the placeholder then behaves as
+	 * the library table itself. Access to other tables is unaffected.
+	 * <p>
+	 * This suits libraries that only add a table of functions under their own
+	 * name, such as io, os, coroutine, math, table, bit32 and luajava.
+	 * Libraries with side effects on loading, such as the base, package,
+	 * string and debug libraries, should be loaded directly.
+	 *
+	 * @param modname the global name of the library table
+	 * @param library the library, as would be passed to {@link #load(LuaValue)}
+	 * @return the placeholder table
+	 */
+	public LuaTable lazyload(String modname, LuaValue library) {
+		LuaString name = valueOf(modname);
+		LuaTable t = new LazyLibrary(this, name, library);
+		rawset(name, t);
+		LuaValue pkg = rawget("package");
+		if (pkg.istable() && pkg.get("loaded").istable())
+			pkg.get("loaded").set(name, t);
+		return t;
+	}
+
+	/**
+	 * Create a new Globals that starts out with the same contents as this one,
+	 * for use as an isolated environment.
+	 * <p>
+	 * Tables reachable from this Globals are not copied up front: each table in
+	 * the fork shares the storage of its counterpart here, and takes a private
+	 * copy only when either side first modifies it. Only tables that contain
+	 * other tables, such as {@code _G} and {@code package.loaded}, are copied
+	 * immediately so that they refer to the forked tables. Frozen tables are
+	 * shared as they are.
+	 * <p>
+	 * Libraries marked as {@link SharedLibrary} are shared in this way.
+	 * Libraries that keep a reference to their Globals, such as the base,
+	 * package, io and os libraries, are instantiated again through their no-arg
+	 * constructor and loaded into the fork, after which the modules, preloaded
+	 * loaders and path of the forked {@code package} table are carried over.
+	 * The standard streams, finder, compiler, undumper, loader and recompiler
+	 * are copied, and type metatables are forked like other tables. Libraries
+	 * installed with {@link #lazyload(String, LuaValue)} that have not been
+	 * used yet stay unloaded in the fork.
+	 * <p>
+	 * Functions that were created by running scripts in this Globals remain
+	 * bound to it, and state internal to shared library functions, such as the
+	 * {@code math.random} generator, is shared as well.
+	 *
+	 * @return a new Globals with the contents of this one
+	 * @throws LuaError if a library cannot be instantiated again
+	 */
+	public Globals fork() {
+		Globals g = new Globals();
+		Hashtable<LuaTable, LuaTable> forked = new Hashtable<>();
+		forked.put(this, g);
+		g.share(this);
+		forkContents(this, g, g, forked);
+		for (int i = 0; i < typemetatables.length; ++i)
+			g.typemetatables[i] = typemetatables[i] != null? forkValue(typemetatables[i], g, forked): null;
+		LuaValue pkg = g.rawget("package");
+		for (int i = 0, n = libraries.size(); i < n; ++i) {
+			LuaValue lib = libraries.elementAt(i);
+			if (lib instanceof SharedLibrary) {
+				g.libraries.addElement(lib);
+				continue;
+			}
+			g.load(newInstance(lib));
+		}
+		if (g.package_ != null && pkg.istable() && g.package_ != package_)
+			g.package_.inherit(pkg.checktable());
+		g.STDIN = STDIN;
+		g.STDOUT = STDOUT;
+		g.STDERR = STDERR;
+		if (finder != baselib)
+			g.finder = finder;
+		g.loader = loader;
+		g.compiler = compiler;
+		g.undumper = undumper;
+		g.recompiler = recompiler;
+		return g;
+	}
+
+	/**
+	 * Instantiate a library again for another Globals, unless it can be shared.
+	 *
+	 * @throws LuaError if the library has no accessible no-arg constructor
+	 */
+	static LuaValue newInstance(LuaValue lib) {
+		if (lib instanceof SharedLibrary)
+			return lib;
+		try {
+			return lib.getClass().getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new LuaError("cannot fork library " + lib.getClass().getName() + ": " + e);
+		}
+	}
+
+	/** Return the table standing in for {@code t} in a fork */
+	private static LuaValue forkValue(LuaValue v, Globals g, Hashtable<LuaTable, LuaTable> forked) {
+		if (!(v instanceof LuaTable) || ((LuaTable) v).isfrozen())
+			return v;
+		LuaTable t = (LuaTable) v;
+		LuaTable c = forked.get(t);
+		if (c == null && t instanceof LazyLibrary && ((LazyLibrary) t).isPending()) {
+			c = ((LazyLibrary) t).fork(g);
+			forked.put(t, c);
+		} else if (c == null) {
+			c = new LuaTable();
+			forked.put(t, c);
+			LuaValue mt = t.getmetatable();
+			if (mt != null && mt.istable() && mt.rawget(MODE).isstring()) {
+				// weak entries cannot be shared, so copy them
+				c.setmetatable(mt);
+				for (Varargs e = t.next(NIL); !e.arg1().isnil(); e = t.next(e.arg1()))
+					c.rawset(e.arg1(), e.arg(2));
+			} else {
+				c.share(t);
+			}
+			forkContents(t, c, g, forked);
+		}
+		return c;
+	}
+
+	/** Point the table values and metatable of a fork at their forks */
+	private static void forkContents(LuaTable t, LuaTable c, Globals g, Hashtable<LuaTable, LuaTable> forked) {
+		for (Varargs e = t.next(NIL); !e.arg1().isnil(); e = t.next(e.arg1())) {
+			LuaValue v = e.arg(2);
+			LuaValue f = forkValue(v, g, forked);
+			if (f != v)
+				c.rawset(e.arg1(), f);
+		}
+		LuaValue mt = c.getmetatable();
+		if (mt != null) {
+			LuaValue f = forkValue(mt, g, forked);
+			if (f != mt)
+				c.setmetatable(f);
+		}
+	}
+
 	/**
 	 * Convenience function for loading a file that is either binary lua or lua
 	 * source.
@@ -249,7 +622,7 @@ public class Globals extends LuaTable {
 	 * @throws LuaError if the script could not be compiled.
 	 */
 	public LuaValue load(String script, String chunkname) {
-		return load(new StrReader(script), chunkname);
+		return load(new ByteArraySource(script), chunkname, "t", this);
 	}
 
 	/**
@@ -262,7 +635,7 @@ public class Globals extends LuaTable {
 	 * @throws LuaError if the script could not be compiled.
 	 */
 	public LuaValue load(String script) {
-		return load(new StrReader(script), script);
+		return load(new ByteArraySource(script), script, "t", this);
 	}
 
 	/**
@@ -279,7 +652,7 @@ public class Globals extends LuaTable {
 	 * @throws LuaError if the script could not be compiled.
 	 */
 	public LuaValue load(String script, String chunkname, LuaTable environment) {
-		return load(new StrReader(script), chunkname, environment);
+		return load(new ByteArraySource(script), chunkname, "t", environment);
 	}
 
 	/**
@@ -405,36 +778,6 @@ public class Globals extends LuaTable {
 		return s.lua_yield(args);
 	}
 
-	/** Reader implementation to read chars from a String in JME or JSE. */
-	static class StrReader extends Reader {
-		final String s;
-		int          i = 0;
-		final int    n;
-
-		StrReader(String s) {
-			this.s = s;
-			n = s.length();
-		}
-
-		@Override
-		public void close() throws IOException {
-			i = n;
-		}
-
-		@Override
-		public int read() throws IOException {
-			return i < n? s.charAt(i++): -1;
-		}
-
-		@Override
-		public int read(char[] cbuf, int off, int len) throws IOException {
-			int j = 0;
-			for (; j < len && i < n; ++j, ++i)
-				cbuf[off+j] = s.charAt(i);
-			return j > 0 || len == 0? j: -1;
-		}
-	}
-
 	/* Abstract base class to provide basic buffered input storage and delivery.
 	 * This class may be moved to its own package in the future.
 	 */
@@ -489,11 +832,11 @@ public class Globals extends LuaTable {
 	 * the future.
 	 */
 	static class UTF8Stream extends AbstractBufferedStream {
-		private final char[] c = new char[32];
+		private final char[] c = new char[1024];
 		private final Reader r;
 
 		UTF8Stream(Reader r) {
-			super(96);
+			super(3*1024);
 			this.r = r;
 		}
 
@@ -0,0 +1,98 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Inline cache for reading one string key from a table, such as a global
+ * variable from the environment.
+ * <p>
+ * The cache remembers the last table read, the value found and the table's
+ * version at that time. As long as the same table is read again and nothing
+ * has been stored into its hash part or its metatable changed since, the value
+ * is returned without a lookup. Otherwise the cache is relinked by a normal
+ * {@link LuaValue#get(LuaValue)}, so reads through a cache behave exactly like
+ * uncached reads, including {@code __index} metamethods.
+ * <p>
+ * Only plain tables, {@link Globals} and frozen tables without a metatable are
+ * cached, and only when the key is present. Each remembered state is an
+ * immutable object, so a cache may be shared by threads reading different
+ * tables; they simply relink more often.
+ * <p>
+ * Code generated by {@link org.luaj.vm2.luajc.LuaJC} keeps one cache per
+ * global name in each class.
+ *
+ * @see LuaTable
+ */
+public final class IndexCache {
+
+	private final LuaString key;
+	private State           state;
+
+	/**
+	 * Construct a cache for one key.
+	 *
+	 * @param key the key read through this cache.
+	 */
+	public IndexCache(LuaString key) {
+		this.key = key;
+	}
+
+	/** The key read through this cache. */
+	public LuaString key() { return key; }
+
+	/**
+	 * Read the key from a value, as {@link LuaValue#get(LuaValue)} would.
+	 *
+	 * @param t the table or other value to index.
+	 * @return the value of the key in t.
+	 */
+	public LuaValue get(LuaValue t) {
+		final State s = state;
+		if (s != null && s.table == t && s.version == s.table.version)
+			return s.value;
+		return relink(t);
+	}
+
+	private LuaValue relink(LuaValue t) {
+		final Class<?> c = t.getClass();
+		if (c != LuaTable.class && c != Globals.class && c != FrozenTable.class)
+			return t.get(key);
+		final LuaTable table = (LuaTable) t;
+		final int version = table.version;
+		final LuaValue v = table.get(key);
+		if (table.m_metatable == null && !v.isnil())
+			state = new State(table, version, v);
+		return v;
+	}
+
+	private static final class State {
+		final LuaTable table;
+		final int      version;
+		final LuaValue value;
+
+		State(LuaTable table, int version, LuaValue value) {
+			this.table = table;
+			this.version = version;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011, 2013 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Placeholder for a library table that loads the library the first time the
+ * table is used.
+ * <p>
+ * Instances are created by {@link Globals#lazyload(String, LuaValue)}. The
+ * first operation on the table loads the library into its {@link Globals},
+ * copies the contents and metatable of the table it produced into this one,
+ * and points the global variable and {@code package.loaded} entry back at this
+ * table, so that references taken before loading stay valid.
+ * <p>
+ * Only tables created this way pay for the check, ordinary table access is
+ * unaffected.
+ *
+ * @see Globals#lazyload(String, LuaValue)
+ */
+final class LazyLibrary extends LuaTable {
+
+	private static final LuaString PACKAGE = valueOf("package");
+	private static final LuaString LOADED  = valueOf("loaded");
+
+	private final Globals globals;
+
+	private final LuaString modname;
+
+	/** the library to load, or null once loaded */
+	private LuaValue library;
+
+	LazyLibrary(Globals globals, LuaString modname, LuaValue library) {
+		this.globals = globals;
+		this.modname = modname;
+		this.library = library;
+	}
+
+	/** Check if the library has not been loaded yet */
+	boolean isPending() {
+		return library != null;
+	}
+
+	/** Create a placeholder for the same library in another Globals */
+	LazyLibrary fork(Globals g) {
+		return new LazyLibrary(g, modname, Globals.newInstance(library));
+	}
+
+	private void materialize() {
+		final LuaValue lib = library;
+		library = null;
+		final LuaValue saved = globals.rawget(modname);
+		final LuaValue r = globals.load(lib);
+		final LuaValue installed = globals.rawget(modname);
+		final LuaValue t = installed != saved? installed: r;
+		if (t != this && t instanceof LuaTable) {
+			for (Varargs e = t.next(NIL); !e.arg1().isnil(); e = t.next(e.arg1()))
+				super.rawset(e.arg1(), e.arg(2));
+			m_metatable = ((LuaTable) t).m_metatable;
+		}
+		globals.rawset(modname, saved);
+		final LuaValue pkg = globals.rawget(PACKAGE);
+		if (pkg.istable()) {
+			final LuaValue loaded = pkg.rawget(LOADED);
+			if (loaded.istable() && loaded.rawget(modname) == t)
+				loaded.rawset(modname, this);
+		}
+	}
+
+	@Override
+	public LuaValue getmetatable() {
+		if (library != null)
+			materialize();
+		return super.getmetatable();
+	}
+
+	@Override
+	public LuaValue setmetatable(LuaValue metatable) {
+		if (library != null)
+			materialize();
+		return super.setmetatable(metatable);
+	}
+
+	@Override
+	public void presize(int narray) {
+		if (library != null)
+			materialize();
+		super.presize(narray);
+	}
+
+	@Override
+	public void presize(int narray, int nhash) {
+		if (library != null)
+			materialize();
+		super.presize(narray, nhash);
+	}
+
+	@Override
+	public LuaValue get(int key) {
+		if (library != null)
+			materialize();
+		return super.get(key);
+	}
+
+	@Override
+	public LuaValue get(LuaValue key) {
+		if (library != null)
+			materialize();
+		return super.get(key);
+	}
+
+	@Override
+	public LuaValue rawget(int key) {
+		if (library != null)
+			materialize();
+		return super.rawget(key);
+	}
+
+	@Override
+	public LuaValue rawget(LuaValue key) {
+		if (library != null)
+			materialize();
+		return super.rawget(key);
+	}
+
+	@Override
+	public void set(int key, LuaValue value) {
+		if (library != null)
+			materialize();
+		super.set(key, value);
+	}
+
+	@Override
+	public void set(LuaValue key, LuaValue value) {
+		if (library != null)
+			materialize();
+		super.set(key, value);
+	}
+
+	@Override
+	public void rawset(int key, LuaValue value) {
+		if (library != null)
+			materialize();
+		super.rawset(key, value);
+	}
+
+	@Override
+	public void rawset(LuaValue key, LuaValue value) {
+		if (library != null)
+			materialize();
+		super.rawset(key, value);
+	}
+
+	@Override
+	public void hashset(LuaValue key, LuaValue value) {
+		if (library != null)
+			materialize();
+		super.hashset(key, value);
+	}
+
+	@Override
+	public Varargs next(LuaValue key) {
+		if (library != null)
+			materialize();
+		return super.next(key);
+	}
+
+	@Override
+	public int length() {
+		if (library != null)
+			materialize();
+		return super.length();
+	}
+
+	@Override
+	public int rawlen() {
+		if (library != null)
+			materialize();
+		return super.rawlen();
+	}
+}
@@ -22,8 +22,13 @@
 package org.luaj.vm2;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Class to undump compiled lua bytecode into a {@link Prototype} instances.
@@ -91,6 +96,17 @@ import java.io.InputStream;
  * }
  * </pre>
  *
+ * Large chunks whose functions are mostly not called may be undumped lazily
+ * with {@link #undumpLazily(ByteBuffer, String)}, or by installing
+ * {@link #lazyInstance} as the {@link Globals.Undumper}. Only the main function
+ * is decoded; each nested function is read past once to find where it ends,
+ * and is decoded when the first closure is created from it, see
+ * {@link Prototype#decode()}. The buffer may be a memory-mapped file.
+ *
+ * To reduce the memory held by loaded chunks, {@link #compactInstance} or
+ * {@link #strippedInstance} compact the prototypes they load, see
+ * {@link Prototype#compact(boolean)}.
+ *
  * @see Globals.Compiler
  * @see Globals.Undumper
  * @see LuaClosure
@@ -106,7 +122,26 @@ public class LoadState {
 	 * Shared instance of Globals.Undumper to use loading prototypes from binary
 	 * lua files
 	 */
-	public static final Globals.Undumper instance = new GlobalsUndumper();
+	public static final Globals.Undumper instance = new GlobalsUndumper(false, false);
+
+	/**
+	 * Shared instance of Globals.Undumper that compacts the prototypes it
+	 * loads, see {@link Prototype#compact(boolean)}
+	 */
+	public static final Globals.Undumper compactInstance = new GlobalsUndumper(true, false);
+
+	/**
+	 * Shared instance of Globals.Undumper that compacts the prototypes it
+	 * loads and drops their debug information, see
+	 * {@link Prototype#compact(boolean)}
+	 */
+	public static final Globals.Undumper strippedInstance = new GlobalsUndumper(true, true);
+
+	/**
+	 * Shared instance of Globals.Undumper that decodes nested functions on
+	 * first use, see {@link #undumpLazily(ByteBuffer, String)}
+	 */
+	public static final Globals.Undumper lazyInstance = new LazyUndumper();
 
 	/**
 	 * format corresponding to non-number-patched lua, all numbers are floats or
@@ -174,6 +209,9 @@ public class LoadState {
 	/** input stream from which we are loading */
 	public final DataInputStream is;
 
+	/** buffer read by {@link #is} when loading lazily, otherwise null */
+	private final ByteBuffer chunk;
+
 	/** Name of what is being loaded? */
 	String name;
 
@@ -194,6 +232,14 @@ public class LoadState {
 		globals.undumper = instance;
 	}
 
+	/**
+	 * Install {@link #lazyInstance} as the Globals.Undumper for the supplied
+	 * Globals
+	 */
+	public static void installLazy(Globals globals) {
+		globals.undumper = lazyInstance;
+	}
+
 	/**
 	 * Load a 4-byte int value from the input stream
 	 *
@@ -307,6 +353,16 @@ public class LoadState {
 	 * @throws IOException if an i/o exception occurs
 	 */
 	void loadConstants(Prototype f) throws IOException {
+		loadValues(f);
+
+		int n = loadInt();
+		Prototype[] protos = n > 0? new Prototype[n]: NOPROTOS;
+		for (int i = 0; i < n; i++)
+			protos[i] = chunk != null? scanFunction(): loadFunction(f.source);
+		f.p = protos;
+	}
+
+	private void loadValues(Prototype f) throws IOException {
 		int n = loadInt();
 		LuaValue[] values = n > 0? new LuaValue[n]: NOVALUES;
 		for (int i = 0; i < n; i++) {
@@ -331,12 +387,6 @@ public class LoadState {
 			}
 		}
 		f.k = values;
-
-		n = loadInt();
-		Prototype[] protos = n > 0? new Prototype[n]: NOPROTOS;
-		for (int i = 0; i < n; i++)
-			protos[i] = loadFunction(f.source);
-		f.p = protos;
 	}
 
 	void loadUpvalues(Prototype f) throws IOException {
@@ -403,6 +453,95 @@ public class LoadState {
 		return f;
 	}
 
+	/**
+	 * Read past a nested function when loading lazily.
+	 * <p>
+	 * The prototype returned holds the values needed to create closures from
+	 * it, its upvalue descriptors and its nested prototypes, which are scanned
+	 * in turn. The rest is decoded by {@link Prototype#decode()}.
+	 */
+	private Prototype scanFunction() throws IOException {
+		Prototype f = new Prototype();
+		f.linedefined = loadInt();
+		f.lastlinedefined = loadInt();
+		f.numparams = is.readUnsignedByte();
+		f.is_vararg = is.readUnsignedByte();
+		f.maxstacksize = is.readUnsignedByte();
+		final int body = chunk.position();
+
+		// note the upvalues assigned by the code, for Prototype.capturesByValue
+		int n = loadInt();
+		if (n < 0 || n > chunk.remaining()>>2)
+			throw new EOFException();
+		boolean[] setsupvalue = null;
+		for (int pc = 0; pc < n; ++pc) {
+			final int i = chunk.getInt();
+			if (Lua.GET_OPCODE(i) == Lua.OP_SETUPVAL) {
+				if (setsupvalue == null)
+					setsupvalue = new boolean[Lua.MAXARG_B+1];
+				setsupvalue[Lua.GETARG_B(i)] = true;
+			} else if (Lua.GET_OPCODE(i) == Lua.OP_SETLIST && Lua.GETARG_C(i) == 0 && pc+1 < n) {
+				chunk.getInt();
+				++pc;
+			}
+		}
+
+		n = loadInt();
+		for (int i = 0; i < n; i++) {
+			switch (is.readByte()) {
+			case LUA_TNIL:
+				break;
+			case LUA_TBOOLEAN:
+				skip(1);
+				break;
+			case LUA_TINT:
+				skip(4);
+				break;
+			case LUA_TNUMBER:
+				skip(luacNumberFormat == NUMBER_FORMAT_INTS_ONLY? 4: 8);
+				break;
+			case LUA_TSTRING:
+				skipString();
+				break;
+			default:
+				throw new IllegalStateException("bad constant");
+			}
+		}
+
+		n = loadInt();
+		Prototype[] protos = n > 0? new Prototype[n]: NOPROTOS;
+		for (int i = 0; i < n; i++)
+			protos[i] = scanFunction();
+		f.p = protos;
+
+		final int upvalues = chunk.position();
+		loadUpvalues(f);
+
+		skipString();
+		skip(loadInt()*4L);
+		n = loadInt();
+		for (int i = 0; i < n; i++) {
+			skipString();
+			skip(8);
+		}
+		n = loadInt();
+		for (int i = 0; i < n; i++)
+			skipString();
+
+		f.deferred = new Deferred(this, body, upvalues, setsupvalue);
+		return f;
+	}
+
+	private void skip(long n) throws IOException {
+		if (n < 0 || n > chunk.remaining())
+			throw new EOFException();
+		chunk.position(chunk.position()+(int) n);
+	}
+
+	private void skipString() throws IOException {
+		skip(this.luacSizeofSizeT == 8? loadInt64(): loadInt());
+	}
+
 	/**
 	 * Load the lua chunk header values.
 	 *
@@ -456,6 +595,52 @@ public class LoadState {
 		return s.loadFunction(LuaString.valueOf(sname));
 	}
 
+	/**
+	 * Load a lua binary chunk held in a buffer, decoding nested functions only
+	 * when they are first used.
+	 * <p>
+	 * The main function is decoded at once. Each nested function is scanned to
+	 * find its extent and to read its upvalue descriptors, and the rest of it
+	 * is decoded from the buffer by {@link Prototype#decode()}, which happens
+	 * when the first closure is created from it. The returned prototypes keep
+	 * a reference to the buffer until all of them have been decoded, so its
+	 * contents must not change; a read-only mapping of a file that is replaced
+	 * rather than rewritten in place is suitable.
+	 *
+	 * @param chunk     buffer holding the chunk from its current position to
+	 *                  its limit; its position is not changed
+	 * @param chunkname Name to apply to the loaded chunk
+	 * @return {@link Prototype} that was loaded, or null if the first 4 bytes
+	 *         were not the lua signature.
+	 * @throws IOException if the chunk is truncated
+	 */
+	public static Prototype undumpLazily(ByteBuffer chunk, String chunkname) throws IOException {
+		chunk = chunk.slice();
+		if (chunk.remaining() < LUA_SIGNATURE.length)
+			return null;
+		for (int i = 0; i < LUA_SIGNATURE.length; ++i)
+			if (chunk.get() != LUA_SIGNATURE[i])
+				return null;
+
+		String sname = getSourceName(chunkname);
+		LoadState s = new LoadState(chunk, sname);
+		try {
+			s.loadHeader();
+			switch (s.luacNumberFormat) {
+			case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
+			case NUMBER_FORMAT_INTS_ONLY:
+			case NUMBER_FORMAT_NUM_PATCH_INT32:
+				break;
+			default:
+				throw new LuaError("unsupported int size");
+			}
+			chunk.order(s.luacLittleEndian? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN);
+			return s.loadFunction(LuaString.valueOf(sname));
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
 	/**
 	 * Construct a source name from a supplied chunk name
 	 *
@@ -475,12 +660,138 @@ public class LoadState {
 	private LoadState(InputStream stream, String name) {
 		this.name = name;
 		this.is = new DataInputStream(stream);
+		this.chunk = null;
+	}
+
+	/** Private constructor for a load state reading a buffer lazily */
+	private LoadState(ByteBuffer chunk, String name) {
+		this.name = name;
+		this.is = new DataInputStream(new BufferInputStream(chunk));
+		this.chunk = chunk;
+	}
+
+	/** Private constructor for a load state decoding part of a lazily read buffer */
+	private LoadState(LoadState state, int position) {
+		this(state.chunk.duplicate().order(state.chunk.order()), state.name);
+		this.chunk.position(position);
+		this.luacVersion = state.luacVersion;
+		this.luacFormat = state.luacFormat;
+		this.luacLittleEndian = state.luacLittleEndian;
+		this.luacSizeofInt = state.luacSizeofInt;
+		this.luacSizeofSizeT = state.luacSizeofSizeT;
+		this.luacSizeofInstruction = state.luacSizeofInstruction;
+		this.luacSizeofLuaNumber = state.luacSizeofLuaNumber;
+		this.luacNumberFormat = state.luacNumberFormat;
+	}
+
+	/** The part of a nested function skipped by a lazy load. */
+	static final class Deferred {
+		private final LoadState state;
+		private final int       body;
+		private final int       upvalues;
+		private final boolean[] setsupvalue;
+
+		static final int COMPACT = 1;
+		static final int STRIP   = 2;
+
+		/** How to compact the function once it is decoded, guarded by it */
+		int compact;
+
+		Deferred(LoadState state, int body, int upvalues, boolean[] setsupvalue) {
+			this.state = state;
+			this.body = body;
+			this.upvalues = upvalues;
+			this.setsupvalue = setsupvalue;
+		}
+
+		/** Compact the function once it is decoded */
+		void compact(boolean stripdebug) {
+			compact = stripdebug? STRIP: COMPACT;
+		}
+
+		/** Whether the code of the function contains a SETUPVAL of an upvalue */
+		boolean setsupvalue(int upvalue) {
+			return setsupvalue != null && setsupvalue[upvalue];
+		}
+
+		/** Decode the code, constants and debug information of the function */
+		void decode(Prototype f) {
+			final LoadState s = new LoadState(state, body);
+			try {
+				f.code = s.loadIntArray();
+				s.loadValues(f);
+				s.chunk.position(upvalues);
+				s.skip(s.loadInt()*2L);
+				s.loadDebug(f);
+			} catch (IOException e) {
+				throw new LuaError("cannot decode " + f + ": " + e);
+			} catch (RuntimeException e) {
+				throw new LuaError("cannot decode " + f + ": " + e);
+			}
+		}
+	}
+
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining()? buffer.get() & 0xff: -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	private static final class LazyUndumper implements Globals.Undumper {
+		@Override
+		public Prototype undump(InputStream stream, String chunkname) throws IOException {
+			final byte[] signature = new byte[LUA_SIGNATURE.length];
+			for (int i = 0; i < signature.length; ++i)
+				if ((signature[i] = (byte) stream.read()) != LUA_SIGNATURE[i])
+					return null;
+			byte[] bytes = new byte[4096];
+			System.arraycopy(signature, 0, bytes, 0, signature.length);
+			int n = signature.length;
+			for (int r; (r = stream.read(bytes, n, bytes.length-n)) > 0;) {
+				n += r;
+				if (n == bytes.length)
+					bytes = Arrays.copyOf(bytes, n*2);
+			}
+			return undumpLazily(ByteBuffer.wrap(bytes, 0, n), chunkname);
+		}
 	}
 
 	private static final class GlobalsUndumper implements Globals.Undumper {
+		private final boolean compact;
+		private final boolean stripdebug;
+
+		GlobalsUndumper(boolean compact, boolean stripdebug) {
+			this.compact = compact;
+			this.stripdebug = stripdebug;
+		}
+
 		@Override
 		public Prototype undump(InputStream stream, String chunkname) throws IOException {
-			return LoadState.undump(stream, chunkname);
+			final Prototype p = LoadState.undump(stream, chunkname);
+			return compact && p != null? p.compact(stripdebug): p;
 		}
 	}
 }
@@ -108,6 +108,6 @@ public final class LuaBoolean extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TBOOLEAN, s_metatable);
 	}
 }
@@ -105,6 +105,9 @@ public class LuaClosure extends LuaFunction {
 
 	final Globals globals;
 
+	/* function from the prototype's implementation, sharing these upvalues */
+	private LuaFunction compiled;
+
 	/**
 	 * Create a closure around a Prototype with a specific environment. If the
 	 * prototype has upvalues, the environment will be written into the first
@@ -114,7 +117,7 @@ public class LuaClosure extends LuaFunction {
 	 * @param env the environment to associate with the closure.
 	 */
 	public LuaClosure(Prototype p, LuaValue env) {
-		this.p = p;
+		this.p = p.decode();
 		this.initupvalue1(env);
 		globals = env instanceof Globals? (Globals) env: null;
 	}
@@ -149,6 +152,44 @@ public class LuaClosure extends LuaFunction {
 		return "function: " + p.toString();
 	}
 
+	/**
+	 * Get the function to run in place of the interpreter, if the prototype has
+	 * an {@link Prototype#implementation} for the recompiler of the globals and
+	 * no debug hook is set. While one is, calls run in the interpreter so that
+	 * the hook sees them.
+	 */
+	private LuaFunction compiled() {
+		if (hooked())
+			return null;
+		LuaFunction f = compiled;
+		if (f == null) {
+			final Prototype.Implementation impl = implementation(p);
+			if (impl != null)
+				compiled = f = impl.newFunction(upValues, globals);
+		}
+		return f;
+	}
+
+	/**
+	 * Get the implementation of a prototype if it was produced by the
+	 * recompiler of the globals, since prototypes may be shared with Globals
+	 * that do not use it.
+	 */
+	private Prototype.Implementation implementation(Prototype p) {
+		final Prototype.Implementation impl = p.implementation;
+		return impl != null && globals != null && impl.recompiler() == globals.recompiler? impl: null;
+	}
+
+	/** Check if the running thread of the globals has a debug hook set */
+	private boolean hooked() {
+		return globals != null && globals.debuglib != null && globals.debuglib.hooked();
+	}
+
+	/** Check if calls may go to the compiled function without entering the globals */
+	private boolean isrunning() {
+		return globals == null || globals.isrunning();
+	}
+
 	private LuaValue[] getNewStack() {
 		int max = p.maxstacksize;
 		LuaValue[] stack = new LuaValue[max];
@@ -158,12 +199,28 @@ public class LuaClosure extends LuaFunction {
 
 	@Override
 	public final LuaValue call() {
+		final LuaFunction f = compiled();
+		if (f != null && isrunning()) {
+			try {
+				return f.call();
+			} catch (LuaError le) {
+				throw compiledError(le);
+			}
+		}
 		LuaValue[] stack = getNewStack();
 		return execute(stack, NONE).arg1();
 	}
 
 	@Override
 	public final LuaValue call(LuaValue arg) {
+		final LuaFunction f = compiled();
+		if (f != null && isrunning()) {
+			try {
+				return f.call(arg);
+			} catch (LuaError le) {
+				throw compiledError(le);
+			}
+		}
 		LuaValue[] stack = getNewStack();
 		switch (p.numparams) {
 		default:
@@ -176,6 +233,14 @@ public class LuaClosure extends LuaFunction {
 
 	@Override
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
+		final LuaFunction f = compiled();
+		if (f != null && isrunning()) {
+			try {
+				return f.call(arg1, arg2);
+			} catch (LuaError le) {
+				throw compiledError(le);
+			}
+		}
 		LuaValue[] stack = getNewStack();
 		switch (p.numparams) {
 		default:
@@ -192,6 +257,14 @@ public class LuaClosure extends LuaFunction {
 
 	@Override
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+		final LuaFunction f = compiled();
+		if (f != null && isrunning()) {
+			try {
+				return f.call(arg1, arg2, arg3);
+			} catch (LuaError le) {
+				throw compiledError(le);
+			}
+		}
 		LuaValue[] stack = getNewStack();
 		switch (p.numparams) {
 		default:
@@ -218,23 +291,131 @@ public class LuaClosure extends LuaFunction {
 
 	@Override
 	public final Varargs onInvoke(Varargs varargs) {
+		final LuaFunction f = compiled();
+		if (f != null && isrunning()) {
+			try {
+				return f.onInvoke(varargs);
+			} catch (LuaError le) {
+				throw compiledError(le);
+			}
+		}
 		LuaValue[] stack = getNewStack();
 		for (int i = 0; i < p.numparams; i++)
 			stack[i] = varargs.arg(i+1);
 		return execute(stack, p.is_vararg != 0? varargs.subargs(p.numparams+1): NONE);
 	}
 
+	/**
+	 * Call this closure using a register window of the calling frame.
+	 * <p>
+	 * Arguments are copied directly from the caller's registers into the new
+	 * frame, and results are written directly back into the caller's
+	 * registers, so that no {@link Varargs} is created for calls and returns
+	 * of fixed arity.
+	 *
+	 * @param src      the caller's registers holding the arguments
+	 * @param base     index of the first argument in {@code src}
+	 * @param nargs    number of arguments
+	 * @param dst      the caller's registers to receive the results
+	 * @param dbase    index of the first result in {@code dst}
+	 * @param nresults number of results wanted, padded with nil if needed
+	 */
+	final void callWindow(LuaValue[] src, int base, int nargs, LuaValue[] dst, int dbase, int nresults) {
+		LuaValue[] stack = getNewStack();
+		Varargs varargs = NONE;
+		final int n = p.numparams;
+		if (nargs > n) {
+			if (p.is_vararg != 0) {
+				if (nargs-n < 3)
+					varargs = varargsOf(src, base+n, nargs-n);
+				else {
+					// do not alias the caller's registers, results may overwrite them
+					LuaValue[] extra = new LuaValue[nargs-n];
+					System.arraycopy(src, base+n, extra, 0, nargs-n);
+					varargs = varargsOf(extra);
+				}
+			}
+			nargs = n;
+		}
+		System.arraycopy(src, base, stack, 0, nargs);
+		Varargs r = interpret(stack, varargs, dst, dbase, nresults);
+		if (r != null)
+			r.eval().copyto(dst, dbase, nresults);
+	}
+
 	protected Varargs execute(LuaValue[] stack, Varargs varargs) {
+		final Globals g = globals;
+		if (g == null || g.isrunning())
+			return interpret(stack, varargs, null, 0, 0);
+		// make the type metatables of this closure's globals visible while it runs,
+		// including any tail call it returns
+		final Globals prev = Globals.enter(g);
+		try {
+			return interpret(stack, varargs, null, 0, 0).eval();
+		} finally {
+			Globals.leave(g, prev);
+		}
+	}
+
+	/**
+	 * Run the compiled function of this closure in place of the bytecode. Kept
+	 * apart from {@link #interpret(LuaValue[], Varargs, LuaValue[], int, int)}
+	 * so that the debug library can tell a frame of that method which has not
+	 * entered the interpreter from one that has.
+	 */
+	private Varargs executeCompiled(LuaFunction f, LuaValue[] stack, Varargs varargs, LuaValue[] ret, int reta,
+		int nret) {
+		final Varargs v;
+		try {
+			v = f.invoke(varargsOf(stack, 0, p.numparams, varargs));
+		} catch (LuaError le) {
+			throw compiledError(le);
+		}
+		if (ret == null)
+			return v;
+		v.copyto(ret, reta, nret);
+		return null;
+	}
+
+	/**
+	 * Execute the bytecode of this closure. The debug library finds the frames
+	 * of the interpreter on the java stack by the name of this method, which
+	 * no other method of this class has.
+	 *
+	 * @param stack    the registers of the new frame, with parameters in place
+	 * @param varargs  the extra arguments for a vararg function
+	 * @param ret      the caller's registers to receive the results, or null
+	 * @param reta     index of the first result in {@code ret}
+	 * @param nret     number of results wanted in {@code ret}
+	 * @return the results, or null if they were written into {@code ret}
+	 */
+	private Varargs interpret(LuaValue[] stack, Varargs varargs, LuaValue[] ret, int reta, int nret) {
 		// loop through instructions
 		int i, a, b, c, pc = 0, top = 0;
 		LuaValue o;
 		Varargs v = NONE;
+
+		// closure state is held in locals so tail calls can rebind the frame
+		LuaClosure cl = this;
+		Prototype p = this.p;
+		UpValue[] upValues = this.upValues;
+		Globals globals = this.globals;
 		int[] code = p.code;
 		LuaValue[] k = p.k;
 
-		// upvalues are only possible when closures create closures
-		// TODO: use linked list.
-		UpValue[] openups = p.p.length > 0? new UpValue[stack.length]: null;
+		// open upvalues of this frame, linked in order of decreasing stack index
+		UpValue openups = null;
+
+		// run the compiled function instead, if there is one
+		final LuaFunction f = compiled();
+		if (f != null)
+			return executeCompiled(f, stack, varargs, ret, reta, nret);
+
+		// count calls and loop iterations towards recompiling
+		final Globals.Recompiler rc = globals != null && !hooked()? globals.recompiler: null;
+		final int hot = rc != null? rc.threshold(): 0;
+		if (rc != null && ++p.hotness == hot)
+			rc.recompile(p);
 
 		// allow for debug hooks
 		if (globals != null && globals.debuglib != null)
@@ -376,13 +557,10 @@ public class LuaClosure extends LuaFunction {
 
 				case Lua.OP_JMP: /*	A sBx	pc+=sBx; if (A) close all upvalues >= R(A - 1)	*/
 					pc += (i>>>14)-0x1ffff;
-					if (a > 0) {
-						for (--a, b = openups.length; --b >= 0;)
-							if (openups[b] != null && openups[b].index >= a) {
-								openups[b].close();
-								openups[b] = null;
-							}
-					}
+					if (a > 0)
+						openups = closeUpvalues(openups, a-1);
+					if (rc != null && i>>>14 < 0x1ffff && ++p.hotness == hot)
+						rc.recompile(p);
 					continue;
 
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
@@ -453,6 +631,11 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						c = i>>14 & 0x1ff;
+						if (b > 0 && c > 0 && (o = stack[a]) instanceof LuaClosure && ((LuaClosure) o).globals == globals) {
+							((LuaClosure) o).callWindow(stack, a+1, b-1, stack, a, c-1);
+							v = NONE;
+							continue;
+						}
 						v = stack[a].invoke(b > 0? varargsOf(stack, a+1, b-1): // exact arg count
 							varargsOf(stack, a+1, top-v.narg()-(a+1), v)); // from prev top
 						if (c > 0) {
@@ -466,6 +649,45 @@ public class LuaClosure extends LuaFunction {
 					}
 
 				case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+					if ((o = stack[a]) instanceof LuaClosure && ((LuaClosure) o).globals == globals
+						&& ((LuaClosure) o).compiled() == null) {
+						// reuse this frame for the called closure instead of returning to a trampoline
+						final LuaClosure ncl = (LuaClosure) o;
+						final Prototype np = ncl.p;
+						final Varargs more = (b = i>>>23) > 0? NONE: v;
+						final int nargs = b > 0? b-1: top-v.narg()-(a+1);
+						Varargs nvarargs = NONE;
+						if (np.is_vararg != 0)
+							nvarargs = nargs > np.numparams
+								? varargsOf(stack, a+1+np.numparams, nargs-np.numparams, more).dealias()
+								: more.subargs(np.numparams-nargs+1);
+						openups = closeUpvalues(openups, 0);
+						if (globals != null && globals.debuglib != null)
+							globals.debuglib.onReturn();
+						final LuaValue[] nstack = np.maxstacksize <= stack.length? stack
+							: new LuaValue[np.maxstacksize];
+						c = Math.min(nargs, np.numparams);
+						System.arraycopy(stack, a+1, nstack, 0, c);
+						for (; c < np.numparams; ++c)
+							nstack[c] = more.arg(c-nargs+1);
+						System.arraycopy(NILS, 0, nstack, c, nstack.length-c);
+						cl = ncl;
+						p = np;
+						upValues = ncl.upValues;
+						globals = ncl.globals;
+						code = np.code;
+						k = np.k;
+						stack = nstack;
+						varargs = nvarargs;
+						v = NONE;
+						top = 0;
+						pc = -1;
+						if (globals != null && globals.debuglib != null)
+							globals.debuglib.onCall(cl, varargs, stack);
+						if (rc != null && ++p.hotness == hot)
+							rc.recompile(p);
+						continue;
+					}
 					switch (i & Lua.MASK_B) {
 					case 1<<Lua.POS_B:
 						return new TailcallVarargs(stack[a], NONE);
@@ -484,6 +706,13 @@ public class LuaClosure extends LuaFunction {
 
 				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 					b = i>>>23;
+					if (ret != null) {
+						if (b == 0)
+							copyResults(stack, a, top-v.narg()-a, v, ret, reta, nret);
+						else
+							copyResults(stack, a, b-1, NONE, ret, reta, nret);
+						return null;
+					}
 					switch (b) {
 					case 0:
 						return varargsOf(stack, a, top-v.narg()-a, v);
@@ -504,6 +733,8 @@ public class LuaClosure extends LuaFunction {
 						stack[a] = idx;
 						stack[a+3] = idx;
 						pc += (i>>>14)-0x1ffff;
+						if (rc != null && ++p.hotness == hot)
+							rc.recompile(p);
 					}
 				}
 					continue;
@@ -521,6 +752,11 @@ public class LuaClosure extends LuaFunction {
 					continue;
 
 				case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
+					if ((o = stack[a]) instanceof LuaClosure && ((LuaClosure) o).globals == globals) {
+						((LuaClosure) o).callWindow(stack, a+1, 2, stack, a+3, i>>14 & 0x1ff);
+						v = NONE;
+						continue;
+					}
 					v = stack[a].invoke(varargsOf(stack[a+1], stack[a+2]));
 					c = i>>14 & 0x1ff;
 					while ( --c >= 0 )
@@ -532,6 +768,8 @@ public class LuaClosure extends LuaFunction {
 					if (!stack[a+1].isnil()) { /* continue loop? */
 						stack[a] = stack[a+1]; /* save control varible. */
 						pc += (i>>>14)-0x1ffff;
+						if (rc != null && ++p.hotness == hot)
+							rc.recompile(p);
 					}
 					continue;
 
@@ -559,16 +797,39 @@ public class LuaClosure extends LuaFunction {
 
 				case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
 				{
-					Prototype newp = p.p[i>>>14];
+					Prototype newp = p.p[b = i>>>14];
 					LuaClosure ncl = new LuaClosure(newp, globals);
 					Upvaldesc[] uv = newp.upvalues;
-					for (int j = 0, nup = uv.length; j < nup; ++j) {
-						if (uv[j].instack) /* upvalue refes to local variable? */
-							ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
-						else /* get upvalue from enclosing function */
-							ncl.upValues[j] = upValues[uv[j].idx];
+					if ((globals == null || globals.debuglib == null) && p.capturesByValue(b)) {
+						/* captured locals are never assigned, copy their values */
+						for (int j = 0, nup = uv.length; j < nup; ++j)
+							ncl.upValues[j] = uv[j].instack? new UpValue(stack[uv[j].idx]): upValues[uv[j].idx];
+					} else {
+						for (int j = 0, nup = uv.length; j < nup; ++j) {
+							if (uv[j].instack) { /* upvalue refes to local variable? */
+								UpValue prev = null, up = openups;
+								while ( up != null && up.index > uv[j].idx ) {
+									prev = up;
+									up = up.next;
+								}
+								if (up == null || up.index != uv[j].idx) {
+									UpValue n = new UpValue(stack, uv[j].idx);
+									n.next = up;
+									if (prev == null)
+										openups = n;
+									else
+										prev.next = n;
+									up = n;
+								}
+								ncl.upValues[j] = up;
+							} else /* get upvalue from enclosing function */
+								ncl.upValues[j] = upValues[uv[j].idx];
+						}
 					}
-					stack[a] = ncl;
+					final Prototype.Implementation impl = implementation(newp);
+					stack[a] = impl != null && globals.debuglib == null
+						? impl.newFunction(ncl.upValues, globals)
+						: ncl;
 				}
 					continue;
 
@@ -592,17 +853,14 @@ public class LuaClosure extends LuaFunction {
 			}
 		} catch (LuaError le) {
 			if (le.traceback == null)
-				processErrorHooks(le, p, pc);
+				cl.processErrorHooks(le, p, pc);
 			throw le;
 		} catch (Exception e) {
 			LuaError le = new LuaError(e);
-			processErrorHooks(le, p, pc);
+			cl.processErrorHooks(le, p, pc);
 			throw le;
 		} finally {
-			if (openups != null)
-				for (int u = openups.length; --u >= 0;)
-					if (openups[u] != null)
-						openups[u].close();
+			closeUpvalues(openups, 0);
 			if (globals != null && globals.debuglib != null)
 				globals.debuglib.onReturn();
 		}
@@ -614,11 +872,26 @@ public class LuaClosure extends LuaFunction {
 	 * @param msg the message to use in error hook processing.
 	 */
 	String errorHook(String msg, int level) {
+		return errorHook(msg, level, null);
+	}
+
+	/**
+	 * Run the error hook if there is one
+	 *
+	 * @param msg    the message to use in error hook processing.
+	 * @param frames the frames of the traceback, if the debug library has
+	 *               already found them, or null.
+	 */
+	private String errorHook(String msg, int level, DebugLibBase.CallFrame[] frames) {
 		if (globals == null)
 			return msg;
 		final LuaThread r = globals.running;
-		if (r.errorfunc == null)
-			return globals.debuglib != null? msg + "\n" + globals.debuglib.traceback(level): msg;
+		if (r.errorfunc == null) {
+			if (globals.debuglib == null)
+				return msg;
+			return msg + "\n"
+				+ (frames != null? globals.debuglib.traceback(level, frames): globals.debuglib.traceback(level));
+		}
 		final LuaValue e = r.errorfunc;
 		r.errorfunc = null;
 		try {
@@ -630,13 +903,28 @@ public class LuaClosure extends LuaFunction {
 		}
 	}
 
+	/**
+	 * Run the error hook for an error raised by the compiled function, which
+	 * has its position from the frames it unwound, putting those frames at the
+	 * top of the traceback if there is a debug library.
+	 */
+	private LuaError compiledError(LuaError le) {
+		if (le.traceback != null)
+			return le;
+		final DebugLibBase d = globals != null? globals.debuglib: null;
+		le.traceback = errorHook(le.getMessage(), le.level, d != null? d.unwound(le.compiledframes): null);
+		return le;
+	}
+
 	private void processErrorHooks(LuaError le, Prototype p, int pc) {
 		String file = "?";
 		int line = -1;
+		DebugLibBase.CallFrame[] frames = null;
 		{
 			DebugLibBase.CallFrame frame = null;
 			if (globals != null && globals.debuglib != null) {
-				frame = globals.debuglib.getCallFrame(le.level);
+				frames = globals.debuglib.getCallFrames();
+				frame = le.level >= 1 && le.level <= frames.length? frames[le.level-1]: null;
 				if (frame != null) {
 					String src = frame.shortsource();
 					file = src != null? src: "?";
@@ -645,23 +933,37 @@ public class LuaClosure extends LuaFunction {
 			}
 			if (frame == null) {
 				file = p.source != null? p.source.tojstring(): "?";
-				line = p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length? p.lineinfo[pc]: -1;
+				line = p.getline(pc);
 			}
 		}
 		le.fileline = file + ":" + line;
-		le.traceback = errorHook(le.getMessage(), le.level);
+		le.traceback = errorHook(le.getMessage(), le.level, frames);
 	}
 
-	private UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
-		final int n = openups.length;
-		for (int i = 0; i < n; ++i)
-			if (openups[i] != null && openups[i].index == idx)
-				return openups[i];
-		for (int i = 0; i < n; ++i)
-			if (openups[i] == null)
-				return openups[i] = new UpValue(stack, idx);
-		error("No space for upvalue");
-		return null;
+	/**
+	 * Copy results of a return into the caller's registers, padding with nil.
+	 */
+	private static void copyResults(LuaValue[] src, int from, int n, Varargs more, LuaValue[] dst, int to,
+		int want) {
+		final int m = Math.min(n, want);
+		System.arraycopy(src, from, dst, to, m);
+		more.copyto(dst, to+m, want-m);
+	}
+
+	/**
+	 * Close the open upvalues of a frame at or above a stack index.
+	 *
+	 * @param openups the open upvalues, in order of decreasing stack index
+	 * @param level   the lowest stack index to close
+	 * @return the remaining open upvalues
+	 */
+	private static UpValue closeUpvalues(UpValue openups, int level) {
+		while ( openups != null && openups.index >= level ) {
+			UpValue u = openups;
+			openups = u.next;
+			u.close();
+		}
+		return openups;
 	}
 
 	protected LuaValue getUpvalue(int i) {
@@ -21,6 +21,8 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import org.luaj.vm2.lib.debug.DebugLibBase;
+
 /**
  * RuntimeException that is thrown and caught in response to a lua error.
  * <p>
@@ -50,6 +52,12 @@ public class LuaError extends RuntimeException {
 
 	private LuaValue object;
 
+	/* frames of compiled functions this unwinds, captured with the stack trace when there is a debug library */
+	StackWalker.StackFrame[] compiledframes;
+
+	/* number of frames of compiled functions this has unwound */
+	private int unwound;
+
 	/**
 	 * Get the string message if it was supplied, or a string representation of
 	 * the message object if that was supplied.
@@ -127,6 +135,40 @@ public class LuaError extends RuntimeException {
 		this.level = 1;
 	}
 
+	/**
+	 * Fill in the stack trace and, if the running Globals has a debug library,
+	 * the frames of compiled functions it would leave out if they are hidden
+	 * classes, which are used in the traceback of an error raised in compiled
+	 * code. Without a debug library this walks no further than any exception.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		super.fillInStackTrace();
+		final Globals g = Globals.current();
+		if (g != null && g.debuglib != null)
+			compiledframes = DebugLibBase.compiledFrames();
+		return this;
+	}
+
+	/**
+	 * Called by the exception handlers of functions compiled to java bytecode
+	 * as this unwinds one of their frames, to give the error the position of
+	 * the frame at its level, as the interpreter does. The generated code
+	 * keeps the lines of its frames in its exception table, so positions cost
+	 * nothing until an error is raised.
+	 *
+	 * @param line   the line the frame was at
+	 * @param source the source of the compiled function
+	 * @return this error, to be thrown on
+	 */
+	public LuaError unwind(int line, String source) {
+		if (fileline == null && traceback == null && ++unwound == level) {
+			final Globals g = Globals.current();
+			fileline = (g != null && g.debuglib != null? Prototype.shortsource(source): source) + ":" + line;
+		}
+		return this;
+	}
+
 	/**
 	 * Get the cause, if any.
 	 */
@@ -65,7 +65,7 @@ abstract public class LuaFunction extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TFUNCTION, s_metatable);
 	}
 
 	@Override
@@ -82,7 +82,7 @@ public class LuaNil extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TNIL, s_metatable);
 	}
 
 	@Override
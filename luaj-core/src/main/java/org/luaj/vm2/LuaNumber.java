@@ -79,7 +79,7 @@ abstract public class LuaNumber extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TNUMBER, s_metatable);
 	}
 
 	@Override
@@ -21,7 +21,6 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -61,12 +60,15 @@ import org.luaj.vm2.lib.MathLib;
 public class LuaString extends LuaValue {
 
 	/**
-	 * The singleton instance for string metatables that forwards to the string
-	 * functions. Typically, this is set to the string metatable as a side
-	 * effect of loading the string library, and is read-write to provide
-	 * flexible behavior by default. When used in a server environment where
-	 * there may be roge scripts, this should be replaced with a read-only table
-	 * since it is shared across all lua code in this Java VM.
+	 * The default string metatable that forwards to the string functions.
+	 * Typically, this is set to a frozen metatable, shared by all threads, as
+	 * a side effect of loading the string library for the first time, so that
+	 * it cannot be changed by lua code. Lua code running in a {@link Globals}
+	 * uses the metatable registered in that Globals instead, see
+	 * {@link Globals#setTypeMetatable(int, LuaValue)}, so this default mainly
+	 * applies to strings used from Java. Assigning it does not affect a
+	 * Globals with a string metatable of its own, such as one the string
+	 * library was loaded into.
 	 */
 	public static LuaValue s_metatable;
 
@@ -122,9 +124,7 @@ public class LuaString extends LuaValue {
 	 *         String
 	 */
 	public static LuaString valueOf(String string) {
-		char[] c = string.toCharArray();
-		byte[] b = new byte[lengthAsUtf8(c)];
-		encodeToUtf8(c, c.length, b, 0);
+		byte[] b = encodeToUtf8(string);
 		return valueUsing(b, 0, b.length);
 	}
 
@@ -287,7 +287,7 @@ public class LuaString extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TSTRING, s_metatable);
 	}
 
 	@Override
@@ -765,7 +765,7 @@ public class LuaString extends LuaValue {
 	 *         {@link LuaString}
 	 */
 	public InputStream toInputStream() {
-		return new ByteArrayInputStream(m_bytes, m_offset, m_length);
+		return new ByteArraySource(m_bytes, m_offset, m_length);
 	}
 
 	/**
@@ -932,6 +932,14 @@ public class LuaString extends LuaValue {
 		return j-off;
 	}
 
+	/** Encode a Java String as a new array of UTF-8 bytes. */
+	static byte[] encodeToUtf8(String string) {
+		char[] c = string.toCharArray();
+		byte[] b = new byte[lengthAsUtf8(c)];
+		encodeToUtf8(c, c.length, b, 0);
+		return b;
+	}
+
 	/**
 	 * Check that a byte sequence is valid UTF-8
 	 *
@@ -22,6 +22,7 @@
 package org.luaj.vm2;
 
 import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
 import java.util.Vector;
 
 /**
@@ -77,7 +78,7 @@ import java.util.Vector;
  * @see LuaValue
  */
 public class LuaTable extends LuaValue implements Metatable {
-	private static final int       MIN_HASH_CAPACITY = 2;
+	static final int               MIN_HASH_CAPACITY = 2;
 	private static final LuaString N                 = valueOf("n");
 
 	/** the array values */
@@ -92,6 +93,12 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** metatable for this table, or null */
 	protected Metatable m_metatable;
 
+	/** true while the storage may also be referenced by another table */
+	private boolean shared;
+
+	/** changed whenever a value in the hash part may have changed, see {@link IndexCache} */
+	int version;
+
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
@@ -183,11 +190,15 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	@Override
 	public void presize(int narray) {
+		if (shared)
+			unshare();
 		if (narray > array.length)
 			array = resize(array, 1<<log2(narray));
 	}
 
 	public void presize(int narray, int nhash) {
+		shared = false;
+		++version;
 		if (nhash > 0 && nhash < MIN_HASH_CAPACITY)
 			nhash = MIN_HASH_CAPACITY;
 		// Size of both parts must be a power of two.
@@ -196,6 +207,42 @@ public class LuaTable extends LuaValue implements Metatable {
 		hashEntries = 0;
 	}
 
+	/**
+	 * Make this table refer to the contents and metatable of {@code source}
+	 * without copying them.
+	 * <p>
+	 * Both tables are marked as sharing their storage, and whichever is
+	 * modified first takes a private copy beforehand, so neither observes
+	 * changes made to the other. Weak tables must not be shared.
+	 *
+	 * @param source the table whose contents to share
+	 * @see Globals#fork()
+	 */
+	void share(LuaTable source) {
+		array = source.array;
+		hash = source.hash;
+		hashEntries = source.hashEntries;
+		m_metatable = source.m_metatable;
+		shared = source.shared = true;
+		++version;
+	}
+
+	/** Copy storage referenced by {@link #share(LuaTable)} before modifying it */
+	private void unshare() {
+		shared = false;
+		LuaValue[] a = array;
+		Slot[] h = hash;
+		array = a.length > 0? a.clone(): NOVALS;
+		hash = h.length > 0? new Slot[h.length]: NOBUCKETS;
+		hashEntries = 0;
+		for (Slot s : h)
+			for (Slot slot = s; slot != null; slot = slot.rest()) {
+				StrongSlot e = slot.first();
+				if (e != null)
+					hashset(e.key(), e.value());
+			}
+	}
+
 	/** Resize the table */
 	private static LuaValue[] resize(LuaValue[] old, int n) {
 		LuaValue[] v = new LuaValue[n];
@@ -219,6 +266,32 @@ public class LuaTable extends LuaValue implements Metatable {
 	 */
 	protected int getHashLength() { return hash.length; }
 
+	/**
+	 * Make an immutable copy of this table that can be shared between threads
+	 * and {@link Globals} instances.
+	 * <p>
+	 * Tables reachable as values or as the metatable are frozen as well, so the
+	 * whole structure is read-only; keys are kept as they are. The copy uses
+	 * compact storage and a precomputed length, and any attempt to modify it
+	 * raises a {@link LuaError}. Weak tables cannot be frozen.
+	 *
+	 * @return frozen copy of this table, or this table if already frozen
+	 * @throws LuaError if this table or a table reachable from it is weak
+	 * @see #isfrozen()
+	 */
+	public LuaTable freeze() {
+		return FrozenTable.freeze(this, new IdentityHashMap<LuaTable, FrozenTable>());
+	}
+
+	/**
+	 * Check if this table was produced by {@link #freeze()}.
+	 *
+	 * @return true if the table can no longer be modified
+	 */
+	public boolean isfrozen() {
+		return false;
+	}
+
 	@Override
 	public LuaValue getmetatable() {
 		return m_metatable != null? m_metatable.toLuaValue(): null;
@@ -226,6 +299,9 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	@Override
 	public LuaValue setmetatable(LuaValue metatable) {
+		if (shared)
+			unshare();
+		++version;
 		boolean hadWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
 		boolean hadWeakValues = m_metatable != null && m_metatable.useWeakValues();
 		m_metatable = metatableOf(metatable);
@@ -299,6 +375,8 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	@Override
 	public void rawset(int key, LuaValue value) {
+		if (shared)
+			unshare();
 		if (!arrayset(key, value))
 			hashset(LuaInteger.valueOf(key), value);
 	}
@@ -306,6 +384,8 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** caller must ensure key is not nil */
 	@Override
 	public void rawset(LuaValue key, LuaValue value) {
+		if (shared)
+			unshare();
 		if (!key.isinttype() || !arrayset(key.toint(), value))
 			hashset(key, value);
 	}
@@ -313,6 +393,8 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** Set an array element */
 	private boolean arrayset(int key, LuaValue value) {
 		if (key > 0 && key <= array.length) {
+			if (m_metatable != null)
+				WeakTable.release(array[key-1]);
 			array[key-1] = value.isnil()? null: m_metatable != null? m_metatable.wrap(value): value;
 			return true;
 		}
@@ -495,6 +577,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param value value to set
 	 */
 	public void hashset(LuaValue key, LuaValue value) {
+		if (shared)
+			unshare();
+		++version;
 		if (value.isnil())
 			hashRemove(key);
 		else {
@@ -509,7 +594,7 @@ public class LuaTable extends LuaValue implements Metatable {
 					}
 				}
 			}
-			if (checkLoadFactor()) {
+			if (checkLoadFactor() || m_metatable != null && m_metatable.collected(hashEntries+array.length)) {
 				if ((m_metatable == null || !m_metatable.useWeakValues()) && key.isinttype() && key.toint() > 0) {
 					// a rehash might make room in the array portion for this key.
 					rehash(key.toint());
@@ -1525,4 +1610,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	public LuaValue arrayget(LuaValue[] array, int index) {
 		return array[index];
 	}
+
+	@Override
+	public boolean collected(int entries) {
+		return false;
+	}
 }
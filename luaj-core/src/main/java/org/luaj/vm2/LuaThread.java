@@ -148,7 +148,7 @@ public class LuaThread extends LuaValue {
 
 	@Override
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typemetatable(TTHREAD, s_metatable);
 	}
 
 	public String getStatus() { return STATUS_NAMES[state.status]; }
@@ -184,6 +184,9 @@ public class LuaThread extends LuaValue {
 
 		public int status = LuaThread.STATUS_INITIAL;
 
+		/* the running Globals of the thread that first resumed this, which the coroutine's thread runs in */
+		private Globals resumer;
+
 		State(Globals globals, LuaThread lua_thread, LuaValue function) {
 			this.globals = globals;
 			this.lua_thread = new WeakReference(lua_thread);
@@ -192,6 +195,8 @@ public class LuaThread extends LuaValue {
 
 		@Override
 		public synchronized void run() {
+			final Globals g = resumer;
+			final Globals prev = g != null? Globals.enter(g): null;
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
@@ -199,6 +204,8 @@ public class LuaThread extends LuaValue {
 			} catch (Throwable t) {
 				this.error = t.getMessage();
 			} finally {
+				if (g != null)
+					Globals.leave(g, prev);
 				this.status = LuaThread.STATUS_DEAD;
 				this.notify();
 			}
@@ -210,6 +217,8 @@ public class LuaThread extends LuaValue {
 				globals.running = new_thread;
 				this.args = args;
 				if (this.status == STATUS_INITIAL) {
+					final Globals r = Globals.current();
+					this.resumer = r != null? r: globals;
 					this.status = STATUS_RUNNING;
 					new Thread(this, "Coroutine-" + (++coroutine_count)).start();
 				} else {
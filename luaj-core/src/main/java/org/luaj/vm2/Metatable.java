@@ -48,4 +48,11 @@ interface Metatable {
 	 * weak reference that has been dropped.
 	 */
 	LuaValue arrayget(LuaValue[] array, int index);
+
+	/**
+	 * Account for weak keys and values that have been garbage collected, and
+	 * return whether enough of the given number of entries are dead that the
+	 * table should be rehashed to remove them.
+	 */
+	boolean collected(int entries);
 }
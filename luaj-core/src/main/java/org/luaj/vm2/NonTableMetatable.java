@@ -39,4 +39,9 @@ class NonTableMetatable implements Metatable {
 	public LuaValue arrayget(LuaValue[] array, int index) {
 		return array[index];
 	}
+
+	@Override
+	public boolean collected(int entries) {
+		return false;
+	}
 }
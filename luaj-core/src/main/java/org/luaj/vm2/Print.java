@@ -118,7 +118,7 @@ public class Print extends Lua {
 	 * @param f the {@link Prototype}
 	 */
 	public static void printCode(Prototype f) {
-		int[] code = f.code;
+		int[] code = f.decode().code;
 		int pc, n = code.length;
 		for (pc = 0; pc < n; pc++) {
 			pc = printOpCode(f, pc);
@@ -289,7 +289,7 @@ public class Print extends Lua {
 	}
 
 	private static int getline(Prototype f, int pc) {
-		return pc > 0 && f.lineinfo != null && pc < f.lineinfo.length? f.lineinfo[pc]: -1;
+		return pc > 0? f.getline(pc): -1;
 	}
 
 	static void printHeader(Prototype f) {
@@ -350,6 +350,7 @@ public class Print extends Lua {
 	 * @param full      true to print all fields, false to print short form.
 	 */
 	public static void printFunction(Prototype prototype, boolean full) {
+		prototype.decode();
 		int i, n = prototype.p.length;
 		printHeader(prototype);
 		printCode(prototype);
@@ -21,6 +21,8 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import java.util.Arrays;
+
 /**
  * Prototype representing compiled lua code.
  *
@@ -134,6 +136,59 @@ public class Prototype {
 	public int                       maxstacksize;
 	private static final Upvaldesc[] NOUPVALUES  = {};
 	private static final Prototype[] NOSUBPROTOS = {};
+	private static final int[]       NOLINES     = {};
+	private static final LocVars[]   NOLOCVARS   = {};
+
+	/* line info packed by compact(), as zigzag varint deltas restarting every 2^LINEBLOCK instructions */
+	private static final int LINEBLOCK = 5;
+	private byte[]           packedlines;
+	private int[]            lineblocks;
+	private int              nlines;
+
+	/* for each child prototype, whether its closures may capture locals by value */
+	private volatile boolean[] capturesByValue;
+
+	/* where to find the rest of a prototype that was undumped lazily, or null */
+	volatile LoadState.Deferred deferred;
+
+	/* calls and loop iterations counted towards Globals.Recompiler.threshold() */
+	int hotness;
+
+	/**
+	 * Interface for a replacement of the interpreter for one prototype, such as
+	 * a class generated from its bytecode.
+	 *
+	 * @see Globals.Recompiler
+	 */
+	public interface Implementation {
+		/**
+		 * Create a function running this prototype with a closure's upvalues.
+		 * The upvalues are shared, not copied, so the function sees and makes
+		 * the same assignments to them as the closure. The function makes the
+		 * closure's Globals, if any, the running one whenever it is called
+		 * while that is not.
+		 */
+		LuaFunction newFunction(UpValue[] upvalues, Globals globals);
+
+		/**
+		 * The recompiler that produced this implementation. Only closures
+		 * whose {@link Globals} use that recompiler run it.
+		 */
+		Globals.Recompiler recompiler();
+	}
+
+	/**
+	 * The implementation used in place of the interpreter by closures of this
+	 * prototype, or null. Typically set from another thread by a
+	 * {@link Globals.Recompiler}.
+	 * <p>
+	 * A prototype may be shared by several Globals, for example through a
+	 * {@link org.luaj.vm2.compiler.PrototypeCache} or {@link Globals#fork()},
+	 * so closures only use it if their Globals has the
+	 * {@link Globals#recompiler} that produced it. The others keep
+	 * interpreting the prototype.
+	 */
+	public volatile Implementation implementation;
 
 	public Prototype() {
 		p = NOSUBPROTOS;
@@ -150,6 +205,161 @@ public class Prototype {
 		return source + ":" + linedefined + "-" + lastlinedefined;
 	}
 
+	/**
+	 * Decode the body of a prototype that was undumped lazily.
+	 * <p>
+	 * When a chunk is loaded with
+	 * {@link LoadState#undumpLazily(java.nio.ByteBuffer, String)}, the nested
+	 * prototypes in {@link #p} initially hold only their header values,
+	 * upvalue descriptors and nested prototypes; {@link #code}, {@link #k},
+	 * {@link #lineinfo}, {@link #locvars} and {@link #source} are null until
+	 * this is called. {@link LuaClosure} calls it when a closure is created, so
+	 * only code that inspects prototypes without running them needs to. For
+	 * any other prototype it does nothing.
+	 *
+	 * @return this prototype, fully decoded
+	 * @throws LuaError if the chunk data can no longer be decoded
+	 */
+	public Prototype decode() {
+		if (deferred != null) {
+			synchronized (this) {
+				final LoadState.Deferred d = deferred;
+				if (d != null) {
+					d.decode(this);
+					deferred = null;
+					if (d.compact != 0)
+						compact(d.compact == LoadState.Deferred.STRIP);
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Get the source line of an instruction.
+	 *
+	 * @param pc the program counter
+	 * @return the line, or -1 if not known
+	 */
+	public int getline(int pc) {
+		final int[] li = lineinfo;
+		if (li != null && pc >= 0 && pc < li.length)
+			return li[pc];
+		final byte[] b = packedlines;
+		if (b == null || pc < 0 || pc >= nlines)
+			return -1;
+		final int block = pc>>LINEBLOCK;
+		int pos = lineblocks[block*2];
+		int line = lineblocks[block*2+1];
+		for (int i = block<<LINEBLOCK; i <= pc; ++i) {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				final int x = b[pos++];
+				v |= (x & 0x7f)<<shift;
+				if (x >= 0)
+					break;
+			}
+			line += v>>>1 ^ -(v & 1);
+		}
+		return line;
+	}
+
+	/**
+	 * Get the source line of every instruction, unpacking them if the
+	 * prototype has been compacted.
+	 *
+	 * @return the line of each instruction, empty if not known
+	 */
+	public int[] getlineinfo() {
+		if (packedlines == null || lineinfo != null && lineinfo.length > 0)
+			return lineinfo;
+		final int[] li = new int[nlines];
+		for (int pc = 0; pc < li.length; ++pc)
+			li[pc] = getline(pc);
+		return li;
+	}
+
+	/**
+	 * Reduce the memory used by this prototype and its nested prototypes.
+	 * <p>
+	 * Line info is packed into a byte per instruction in most cases and
+	 * {@link #lineinfo} is left empty; use {@link #getline(int)} or
+	 * {@link #getlineinfo()} to read it. Constants, the source name and the
+	 * names of locals and upvalues are replaced by instances shared with other
+	 * compacted prototypes. When debug information is stripped, line info,
+	 * locals and upvalue names are dropped entirely, so errors and the debug
+	 * library no longer report lines or names.
+	 * <p>
+	 * This should be done before the prototype is shared with other threads.
+	 * Nested prototypes of a lazily undumped chunk are compacted when they are
+	 * decoded.
+	 *
+	 * @param stripdebug true to drop debug information rather than pack it
+	 * @return this prototype
+	 */
+	public Prototype compact(boolean stripdebug) {
+		if (compactLater(stripdebug))
+			return this;
+		if (stripdebug) {
+			lineinfo = NOLINES;
+			packedlines = null;
+			lineblocks = null;
+			nlines = 0;
+			locvars = NOLOCVARS;
+			for (int i = 0; i < upvalues.length; ++i)
+				upvalues[i].name = null;
+		} else {
+			if (lineinfo != null && lineinfo.length > 0)
+				packlines();
+			for (int i = 0; i < locvars.length; ++i)
+				locvars[i].varname = ConstantPool.intern(locvars[i].varname);
+			for (int i = 0; i < upvalues.length; ++i)
+				upvalues[i].name = ConstantPool.intern(upvalues[i].name);
+		}
+		source = ConstantPool.intern(source);
+		for (int i = 0; i < k.length; ++i)
+			k[i] = ConstantPool.intern(k[i]);
+		for (int i = 0; i < p.length; ++i)
+			p[i].compact(stripdebug);
+		return this;
+	}
+
+	/* if this prototype has not been decoded, arrange for it to be compacted when it is */
+	private synchronized boolean compactLater(boolean stripdebug) {
+		if (deferred == null)
+			return false;
+		deferred.compact(stripdebug);
+		return true;
+	}
+
+	private void packlines() {
+		final int n = lineinfo.length;
+		final int[] blocks = new int[((n-1>>LINEBLOCK)+1)*2];
+		byte[] b = new byte[n+8];
+		int pos = 0;
+		for (int pc = 0, line = 0; pc < n; ++pc) {
+			if ((pc & (1<<LINEBLOCK)-1) == 0) {
+				blocks[(pc>>LINEBLOCK)*2] = pos;
+				blocks[(pc>>LINEBLOCK)*2+1] = line;
+			}
+			final int d = lineinfo[pc]-line;
+			line = lineinfo[pc];
+			if (pos+5 > b.length)
+				b = Arrays.copyOf(b, b.length*2);
+			for (int v = d<<1 ^ d>>31; ; v >>>= 7) {
+				if ((v & ~0x7f) == 0) {
+					b[pos++] = (byte) v;
+					break;
+				}
+				b[pos++] = (byte) (v | 0x80);
+			}
+		}
+		packedlines = pos == b.length? b: Arrays.copyOf(b, pos);
+		lineblocks = blocks;
+		nlines = n;
+		lineinfo = NOLINES;
+	}
+
 	/**
 	 * Get the name of a local variable.
 	 *
@@ -169,8 +379,193 @@ public class Prototype {
 		return null; /* not found */
 	}
 
+	/**
+	 * Test if closures of a child prototype may capture the locals of this
+	 * function by value rather than through open upvalues.
+	 * <p>
+	 * This is the case when every local of this function that the child
+	 * captures is never assigned once it has been captured, neither by this
+	 * function within the local's scope nor by any closure sharing the
+	 * upvalue. Assignments that only happen before a capture, such as those in
+	 * the branches of an {@code if} initializing the local, do not count. The
+	 * analysis uses the local variable debug information, so it is
+	 * conservative when that has been stripped. It is computed on first use
+	 * and cached.
+	 *
+	 * @param child the index of the child prototype in {@link #p}
+	 * @return true if captured locals of the child may be copied by value
+	 */
+	public boolean capturesByValue(int child) {
+		boolean[] c = capturesByValue;
+		if (c == null)
+			capturesByValue = c = analyzeCaptures();
+		return c[child];
+	}
+
+	private boolean[] analyzeCaptures() {
+		final boolean[] byvalue = new boolean[p.length];
+		if (locvars == null || locvars.length == 0)
+			return byvalue;
+
+		// find the locals captured by each closure, and those assigned while captured
+		final boolean[] mutated = new boolean[locvars.length];
+		final int[][] captured = new int[p.length][];
+		for (int pc = 0; pc < code.length; ++pc) {
+			final int i = code[pc];
+			if (Lua.GET_OPCODE(i) == Lua.OP_SETLIST && Lua.GETARG_C(i) == 0)
+				++pc;
+			if (Lua.GET_OPCODE(i) != Lua.OP_CLOSURE)
+				continue;
+			final int bx = Lua.GETARG_Bx(i);
+			final Prototype child = p[bx];
+			int[] vars = captured[bx];
+			if (vars == null)
+				captured[bx] = vars = new int[child.upvalues.length];
+			for (int u = 0; u < child.upvalues.length; ++u) {
+				if (!child.upvalues[u].instack)
+					continue;
+				final int v = findlocal(child.upvalues[u].idx, pc);
+				if (v < 0 || vars[u] != 0 && vars[u] != v+1) {
+					vars[u] = -1;
+					continue;
+				}
+				vars[u] = v+1;
+				if (!mutated[v] && (assignsAfter(locvars[v], child.upvalues[u].idx, pc) || child.setsupvalue(u)))
+					mutated[v] = true;
+			}
+		}
+		for (int c = 0; c < p.length; ++c) {
+			final int[] vars = captured[c];
+			if (vars == null)
+				continue;
+			boolean ok = true;
+			for (int u = 0; ok && u < vars.length; ++u)
+				if (p[c].upvalues[u].instack)
+					ok = vars[u] > 0 && !mutated[vars[u]-1];
+			byvalue[c] = ok;
+		}
+		return byvalue;
+	}
+
+	/* index in locvars of the local held in a register at a pc, or -1 */
+	private int findlocal(int reg, int pc) {
+		for (int v = 0, n = 0; v < locvars.length && locvars[v].startpc <= pc; v++)
+			if (pc < locvars[v].endpc && n++ == reg)
+				return v;
+		return -1;
+	}
+
+	/*
+	 * whether an instruction in the scope of a local that can be reached from
+	 * one capturing it, including that one, may assign its register
+	 */
+	private boolean assignsAfter(LocVars var, int reg, int capturepc) {
+		final int end = Math.min(var.endpc, code.length);
+		final boolean[] visited = new boolean[code.length];
+		final int[] work = new int[code.length];
+		int top = 0;
+		visited[capturepc] = true;
+		work[top++] = capturepc;
+		while ( top > 0 ) {
+			final int pc = work[--top];
+			final int i = code[pc];
+			if (assigns(i, reg))
+				return true;
+			final int op = Lua.GET_OPCODE(i);
+			int next = pc+1, jump = -1;
+			switch (op) {
+			case Lua.OP_JMP:
+			case Lua.OP_FORPREP:
+				next = pc+1+Lua.GETARG_sBx(i);
+				break;
+			case Lua.OP_FORLOOP:
+			case Lua.OP_TFORLOOP:
+				jump = pc+1+Lua.GETARG_sBx(i);
+				break;
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+			case Lua.OP_TEST:
+			case Lua.OP_TESTSET:
+				jump = pc+2;
+				break;
+			case Lua.OP_LOADBOOL:
+				if (Lua.GETARG_C(i) != 0)
+					next = pc+2;
+				break;
+			case Lua.OP_SETLIST:
+				if (Lua.GETARG_C(i) == 0)
+					next = pc+2;
+				break;
+			case Lua.OP_RETURN:
+				next = -1;
+				break;
+			}
+			for (int k = 0; k < 2; k++) {
+				final int t = k == 0? next: jump;
+				if (t >= var.startpc && t < end && !visited[t]) {
+					visited[t] = true;
+					work[top++] = t;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* whether an instruction may assign a register */
+	private static boolean assigns(int i, int reg) {
+		final int op = Lua.GET_OPCODE(i);
+		final int a = Lua.GETARG_A(i);
+		switch (op) {
+		case Lua.OP_LOADNIL:
+			return a <= reg && reg <= a+Lua.GETARG_B(i);
+		case Lua.OP_CALL:
+		case Lua.OP_TAILCALL:
+		case Lua.OP_VARARG:
+			return reg >= a;
+		case Lua.OP_TFORCALL:
+			return reg >= a+3;
+		case Lua.OP_SELF:
+			return reg == a || reg == a+1;
+		case Lua.OP_FORLOOP:
+			return reg == a || reg == a+3;
+		case Lua.OP_FORPREP:
+			return a <= reg && reg <= a+2;
+		case Lua.OP_SETLIST:
+			return false;
+		default:
+			return Lua.testAMode(op) && reg == a;
+		}
+	}
+
+	/* whether closures of this prototype, or closures they create, may assign an upvalue */
+	private boolean setsupvalue(int upvalue) {
+		/* the code of a prototype not decoded yet was scanned when it was undumped */
+		final LoadState.Deferred d = deferred;
+		if (d != null && d.setsupvalue(upvalue))
+			return true;
+		for (int pc = 0; d == null && pc < code.length; ++pc) {
+			final int i = code[pc];
+			if (Lua.GET_OPCODE(i) == Lua.OP_SETUPVAL && Lua.GETARG_B(i) == upvalue)
+				return true;
+			if (Lua.GET_OPCODE(i) == Lua.OP_SETLIST && Lua.GETARG_C(i) == 0)
+				++pc;
+		}
+		for (int c = 0; c < p.length; ++c) {
+			final Upvaldesc[] uv = p[c].upvalues;
+			for (int u = 0; u < uv.length; ++u)
+				if (!uv[u].instack && uv[u].idx == upvalue && p[c].setsupvalue(u))
+					return true;
+		}
+		return false;
+	}
+
 	public String shortsource() {
-		String name = source.tojstring();
+		return shortsource(source.tojstring());
+	}
+
+	/** The name of a source as shown in messages and tracebacks */
+	public static String shortsource(String name) {
 		if (name.startsWith("@") || name.startsWith("="))
 			name = name.substring(1);
 		else if (name.startsWith("\033"))
@@ -32,6 +32,7 @@ public final class UpValue {
 
 	LuaValue[] array; // initially the stack, becomes a holder
 	int        index;
+	UpValue    next;  // next open upvalue of the same frame, with a lower index
 
 	/**
 	 * Create an upvalue relative to a stack
@@ -44,6 +45,15 @@ public final class UpValue {
 		this.index = index;
 	}
 
+	/**
+	 * Create a closed upvalue holding a value
+	 *
+	 * @param value the value of the upvalue
+	 */
+	public UpValue(LuaValue value) {
+		this.array = new LuaValue[] { value };
+	}
+
 	@Override
 	public String toString() {
 		return index + "/" + array.length + " " + array[index];
@@ -81,5 +91,6 @@ public final class UpValue {
 		array = new LuaValue[] { old[index] };
 		old[index] = null;
 		index = 0;
+		next = null;
 	}
 }
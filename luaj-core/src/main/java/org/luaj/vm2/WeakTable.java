@@ -21,6 +21,8 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 import org.luaj.vm2.LuaTable.Slot;
@@ -40,6 +42,12 @@ public class WeakTable implements Metatable {
 	private final boolean  weakkeys, weakvalues;
 	private final LuaValue backing;
 
+	/** References to weak keys and values of this table, queued when collected */
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	/** Number of entries with a collected key or value since the table was last rehashed */
+	private int dead;
+
 	public static LuaTable make(boolean weakkeys, boolean weakvalues) {
 		LuaString mode;
 		if (weakkeys && weakvalues) {
@@ -86,22 +94,47 @@ public class WeakTable implements Metatable {
 
 	@Override
 	public Slot entry(LuaValue key, LuaValue value) {
+		// a value moving from the array part is wrapped afresh
+		release(value);
 		value = value.strongvalue();
 		if (value == null)
 			return null;
 		if (weakkeys && !(key.isnumber() || key.isstring() || key.isboolean())) {
 			if (weakvalues && !(value.isnumber() || value.isstring() || value.isboolean())) {
-				return new WeakKeyAndValueSlot(key, value, null);
+				return new WeakKeyAndValueSlot(key, value, null, queue);
 			} else {
-				return new WeakKeySlot(key, value, null);
+				return new WeakKeySlot(key, value, null, queue);
 			}
 		}
 		if (weakvalues && !(value.isnumber() || value.isstring() || value.isboolean())) {
-			return new WeakValueSlot(key, value, null);
+			return new WeakValueSlot(key, value, null, queue);
 		}
 		return LuaTable.defaultEntry(key, value);
 	}
 
+	/**
+	 * Drain the references to collected keys and values, counting those still
+	 * in the table, and each entry once. Dead entries are
+	 * removed when the table is rehashed, so a rehash is requested once they
+	 * make up half of the entries, which keeps the hash part and the cost of
+	 * {@code next} proportional to the live entries.
+	 */
+	@Override
+	public boolean collected(int entries) {
+		for (Reference<?> r; (r = queue.poll()) != null;) {
+			QueuedReference q = (QueuedReference) r;
+			if (!q.released) {
+				++dead;
+				if (q.sibling != null)
+					q.sibling.released = true;
+			}
+		}
+		if (dead == 0 || dead*2 < entries)
+			return false;
+		dead = 0;
+		return true;
+	}
+
 	public static abstract class WeakSlot implements Slot {
 
 		protected Object key;
@@ -166,6 +199,7 @@ public class WeakTable implements Metatable {
 				return this;
 			} else {
 				// our key was dropped, remove ourselves from the chain.
+				release();
 				return next.set(target, value);
 			}
 		}
@@ -176,6 +210,7 @@ public class WeakTable implements Metatable {
 			if (strongkey() != null && strongvalue() != null) {
 				return this;
 			} else {
+				release();
 				return next;
 			}
 		}
@@ -186,6 +221,7 @@ public class WeakTable implements Metatable {
 			if (key == null) {
 				return next.remove(target);
 			} else if (target.keyeq(key)) {
+				release();
 				this.value = null;
 				return this;
 			} else {
@@ -203,10 +239,17 @@ public class WeakTable implements Metatable {
 					return copy(rest);
 				}
 			} else {
+				release();
 				return rest;
 			}
 		}
 
+		/* stop counting the references of this slot, which is leaving the table */
+		void release() {
+			WeakTable.release(key);
+			WeakTable.release(value);
+		}
+
 		public LuaValue strongkey() {
 			return (LuaValue) key;
 		}
@@ -223,7 +266,11 @@ public class WeakTable implements Metatable {
 		private final int keyhash;
 
 		protected WeakKeySlot(LuaValue key, LuaValue value, Slot next) {
-			super(weaken(key), value, next);
+			this(key, value, next, null);
+		}
+
+		WeakKeySlot(LuaValue key, LuaValue value, Slot next, ReferenceQueue<Object> queue) {
+			super(weaken(key, queue), value, next);
 			keyhash = key.hashCode();
 		}
 
@@ -256,22 +303,33 @@ public class WeakTable implements Metatable {
 
 	static class WeakValueSlot extends WeakSlot {
 
+		private final ReferenceQueue<Object> queue;
+
 		protected WeakValueSlot(LuaValue key, LuaValue value, Slot next) {
-			super(key, weaken(value), next);
+			this(key, value, next, null);
+		}
+
+		WeakValueSlot(LuaValue key, LuaValue value, Slot next, ReferenceQueue<Object> queue) {
+			super(key, weaken(value, queue), next);
+			this.queue = queue;
 		}
 
 		protected WeakValueSlot(WeakValueSlot copyFrom, Slot next) {
 			super(copyFrom.key, copyFrom.value, next);
+			this.queue = copyFrom.queue;
 		}
 
 		@Override
 		public int keyindex(int mask) {
-			return LuaTable.hashSlot(strongkey(), mask);
+			// a slot whose value was collected has dropped its key, and is discarded on relink
+			LuaValue key = strongkey();
+			return key != null? LuaTable.hashSlot(key, mask): 0;
 		}
 
 		@Override
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			WeakTable.release(this.value);
+			this.value = weaken(value, queue);
 			return this;
 		}
 
@@ -288,16 +346,24 @@ public class WeakTable implements Metatable {
 
 	static class WeakKeyAndValueSlot extends WeakSlot {
 
-		private final int keyhash;
+		private final int                    keyhash;
+		private final ReferenceQueue<Object> queue;
 
 		protected WeakKeyAndValueSlot(LuaValue key, LuaValue value, Slot next) {
-			super(weaken(key), weaken(value), next);
+			this(key, value, next, null);
+		}
+
+		WeakKeyAndValueSlot(LuaValue key, LuaValue value, Slot next, ReferenceQueue<Object> queue) {
+			super(weaken(key, queue), weaken(value, queue), next);
 			keyhash = key.hashCode();
+			this.queue = queue;
+			link(this.key, this.value);
 		}
 
 		protected WeakKeyAndValueSlot(WeakKeyAndValueSlot copyFrom, Slot next) {
 			super(copyFrom.key, copyFrom.value, next);
 			keyhash = copyFrom.keyhash;
+			queue = copyFrom.queue;
 		}
 
 		@Override
@@ -307,7 +373,9 @@ public class WeakTable implements Metatable {
 
 		@Override
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			WeakTable.release(this.value);
+			this.value = weaken(value, queue);
+			link(key, this.value);
 			return this;
 		}
 
@@ -335,18 +403,65 @@ public class WeakTable implements Metatable {
 	 *         type of {@code value}
 	 */
 	protected static LuaValue weaken(LuaValue value) {
+		return weaken(value, null);
+	}
+
+	/**
+	 * Convert a value to its weak counterpart, registering the reference with
+	 * a queue to be notified when the value is collected.
+	 *
+	 * @param value value to convert
+	 * @param queue queue to register the weak reference with, or null
+	 * @return {@link LuaValue} that is a strong or weak reference, depending on
+	 *         type of {@code value}
+	 */
+	static LuaValue weaken(LuaValue value, ReferenceQueue<Object> queue) {
 		switch (value.type()) {
 		case LuaValue.TFUNCTION:
 		case LuaValue.TTHREAD:
 		case LuaValue.TTABLE:
-			return new WeakValue(value);
+			return new WeakValue(value, queue);
 		case LuaValue.TUSERDATA:
-			return new WeakUserdata(value);
+			return new WeakUserdata(value, queue);
 		default:
 			return value;
 		}
 	}
 
+	/**
+	 * Weak reference registered with the queue of a table. It is counted as a
+	 * dead entry once collected, unless it was released because its value
+	 * left the table, or its sibling, the other weak reference of a slot with
+	 * a weak key and value, was counted first.
+	 */
+	static final class QueuedReference extends WeakReference<Object> {
+		boolean         released;
+		QueuedReference sibling;
+
+		QueuedReference(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+		}
+	}
+
+	/** Stop counting the reference of a weak key or value leaving a table. */
+	static void release(Object weak) {
+		if (weak instanceof WeakValue) {
+			QueuedReference q = ((WeakValue) weak).queued();
+			if (q != null)
+				q.released = true;
+		}
+	}
+
+	/* pair the references of a weak key and a weak value of one slot */
+	static void link(Object key, Object value) {
+		QueuedReference k = key instanceof WeakValue? ((WeakValue) key).queued(): null;
+		QueuedReference v = value instanceof WeakValue? ((WeakValue) value).queued(): null;
+		if (k != null && v != null) {
+			k.sibling = v;
+			v.sibling = k;
+		}
+	}
+
 	/**
 	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
 	 *
@@ -376,6 +491,15 @@ public class WeakTable implements Metatable {
 			ref = new WeakReference(value);
 		}
 
+		WeakValue(LuaValue value, ReferenceQueue<Object> queue) {
+			ref = queue != null? new QueuedReference(value, queue): new WeakReference(value);
+		}
+
+		/** The reference registered with the queue of a table, or null */
+		QueuedReference queued() {
+			return ref instanceof QueuedReference? (QueuedReference) ref: null;
+		}
+
 		@Override
 		public int type() {
 			illegal("type", "weak value");
@@ -415,12 +539,18 @@ public class WeakTable implements Metatable {
 		private final WeakReference ob;
 		private final LuaValue      mt;
 
-		private WeakUserdata(LuaValue value) {
+		private WeakUserdata(LuaValue value, ReferenceQueue<Object> queue) {
 			super(value);
-			ob = new WeakReference(value.touserdata());
+			// the userdata may be rewrapped, so only its object is watched
+			ob = queue != null? new QueuedReference(value.touserdata(), queue): new WeakReference(value.touserdata());
 			mt = value.getmetatable();
 		}
 
+		@Override
+		QueuedReference queued() {
+			return ob instanceof QueuedReference? (QueuedReference) ob: null;
+		}
+
 		@Override
 		public LuaValue strongvalue() {
 			Object u = ref.get();
@@ -439,7 +569,7 @@ public class WeakTable implements Metatable {
 
 	@Override
 	public LuaValue wrap(LuaValue value) {
-		return weakvalues? weaken(value): value;
+		return weakvalues? weaken(value, queue): value;
 	}
 
 	@Override
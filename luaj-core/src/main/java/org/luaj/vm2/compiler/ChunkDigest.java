@@ -0,0 +1,107 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.luaj.vm2.ByteArraySource;
+
+/**
+ * Helpers for the caches of compiled chunks, which key their entries by a
+ * SHA-256 digest of what the chunk was compiled from.
+ *
+ * @see PrototypeCache
+ * @see org.luaj.vm2.lib.jse.BytecodeCache
+ */
+public final class ChunkDigest {
+
+	private ChunkDigest() {}
+
+	/** Get a new SHA-256 digest. */
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * Add a string to a digest, followed by a terminator that no character
+	 * produces, so that consecutive strings cannot run into each other.
+	 */
+	public static void update(MessageDigest md, String s) {
+		final int n = s.length();
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			md.update((byte) (c>>8));
+			md.update((byte) c);
+		}
+		md.update((byte) 0xff);
+		md.update((byte) 0xff);
+	}
+
+	/**
+	 * Add the bytes remaining in a source to a digest, without reading them, so
+	 * that the source can still be compiled.
+	 */
+	public static void update(MessageDigest md, ByteArraySource source) {
+		final int position = source.position();
+		md.update(source.array(), position, source.limit()-position);
+	}
+
+	/**
+	 * Get a stream as a {@link ByteArraySource}, which is the stream itself
+	 * if it is one, such as the sources loaded from strings, and otherwise
+	 * holds the rest of the stream. Its bytes can then be digested and
+	 * compiled without copying them again.
+	 */
+	public static ByteArraySource source(InputStream stream) throws IOException {
+		if (stream instanceof ByteArraySource)
+			return (ByteArraySource) stream;
+		final byte[] bytes = readFully(stream);
+		return new ByteArraySource(bytes, 0, bytes.length);
+	}
+
+	/** Get a digest as lower case hexadecimal, as used in file names. */
+	public static String hex(byte[] digest) {
+		final StringBuffer sb = new StringBuffer(digest.length*2);
+		for (int i = 0; i < digest.length; i++) {
+			sb.append(Character.forDigit((digest[i]>>4) & 0xf, 16));
+			sb.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/** Read the rest of a stream. */
+	public static byte[] readFully(InputStream stream) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+		for (int n; (n = stream.read(buf)) != -1;)
+			baos.write(buf, 0, n);
+		return baos.toByteArray();
+	}
+}
@@ -232,10 +232,11 @@ public class DumpState {
 			dumpInt(0);
 		else
 			dumpString(f.source);
-		n = strip? 0: f.lineinfo.length;
+		final int[] lineinfo = strip? null: f.getlineinfo();
+		n = strip? 0: lineinfo.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++)
-			dumpInt(f.lineinfo[i]);
+			dumpInt(lineinfo[i]);
 		n = strip? 0: f.locvars.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++) {
@@ -251,6 +252,7 @@ public class DumpState {
 	}
 
 	void dumpFunction(final Prototype f) throws IOException {
+		f.decode();
 		dumpInt(f.linedefined);
 		dumpInt(f.lastlinedefined);
 		dumpChar(f.numparams);
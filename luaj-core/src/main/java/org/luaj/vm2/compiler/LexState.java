@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Hashtable;
 
+import org.luaj.vm2.ByteArraySource;
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaError;
@@ -55,6 +56,7 @@ public class LexState extends Constants {
 	}
 
 	private static final int EOZ            = -1;
+	private static final int ZBUF_SIZE      = 4096;
 	private static final int MAX_INT        = Integer.MAX_VALUE-2;
 	private static final int UCHAR_MAX      = 255;                // TODO, convert to unicode CHAR_MAX?
 	private static final int LUAI_MAXCCALLS = 200;
@@ -123,6 +125,9 @@ public class LexState extends Constants {
 	FuncState         fs;                        /* `FuncState' is private to the parser */
 	LuaC.CompileState L;
 	InputStream       z;                         /* input stream */
+	byte[]            zbuf;                      /* window of input bytes */
+	int               zpos;                      /* next byte in zbuf */
+	int               zlim;                      /* end of input bytes in zbuf */
 	char[]            buff;                      /* buffer for tokens */
 	int               nbuff;                     /* length of buffer */
 	Dyndata           dyd       = new Dyndata(); /* dynamic structures used by the parser */
@@ -184,11 +189,28 @@ public class LexState extends Constants {
 	}
 
 	void nextChar() {
+		current = zpos < zlim? zbuf[zpos++] & 0xff: fill();
+	}
+
+	/* refill the window from the input stream, returning the first byte */
+	private int fill() {
+		if (z == null)
+			return EOZ;
 		try {
-			current = z.read();
+			final int n = z.read(zbuf, 0, zbuf.length);
+			if (n > 0) {
+				zpos = 1;
+				zlim = n;
+				return zbuf[0] & 0xff;
+			}
+			final int c = n < 0? EOZ: z.read();
+			if (c == EOZ)
+				z = null;
+			return c;
 		} catch (IOException e) {
 			e.printStackTrace();
-			current = EOZ;
+			z = null;
+			return EOZ;
 		}
 	}
 
@@ -261,18 +283,30 @@ public class LexState extends Constants {
 			syntaxerror("chunk has too many lines");
 	}
 
-	void setinput(LuaC.CompileState L, int firstByte, InputStream z, LuaString source) {
+	void setinput(LuaC.CompileState L, InputStream z, LuaString source) {
 		this.decpoint = '.';
 		this.L = L;
 		this.lookahead.token = TK_EOS; /* no look-ahead token */
-		this.z = z;
+		if (z instanceof ByteArraySource) {
+			/* scan the caller's bytes in place */
+			final ByteArraySource s = (ByteArraySource) z;
+			this.zbuf = s.array();
+			this.zpos = s.position();
+			this.zlim = s.limit();
+			s.seek(zlim);
+			this.z = null;
+		} else {
+			this.zbuf = new byte[ZBUF_SIZE];
+			this.zpos = this.zlim = 0;
+			this.z = z;
+		}
 		this.fs = null;
 		this.linenumber = 1;
 		this.lastline = 1;
 		this.source = source;
 		this.envn = LuaValue.ENV; /* environment variable name */
 		this.nbuff = 0; /* initialize buffer */
-		this.current = firstByte; /* read first char */
+		this.nextChar(); /* read first char */
 		this.skipShebang();
 	}
 
@@ -84,6 +84,22 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 	/** A sharable instance of the LuaC compiler. */
 	public static final LuaC instance = new LuaC();
 
+	/**
+	 * A sharable instance of the LuaC compiler that compacts the prototypes it
+	 * produces.
+	 *
+	 * @see Prototype#compact(boolean)
+	 */
+	public static final LuaC compactInstance = new LuaC(true, false);
+
+	/**
+	 * A sharable instance of the LuaC compiler that compacts the prototypes it
+	 * produces and drops their debug information.
+	 *
+	 * @see Prototype#compact(boolean)
+	 */
+	public static final LuaC strippedInstance = new LuaC(true, true);
+
 	/**
 	 * Install the compiler so that LoadState will first try to use it when
 	 * handed bytes that are not already a compiled lua chunk.
@@ -95,7 +111,23 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 		globals.loader = instance;
 	}
 
-	protected LuaC() {}
+	private final boolean compact;
+	private final boolean stripdebug;
+
+	protected LuaC() {
+		this(false, false);
+	}
+
+	/**
+	 * Construct a compiler.
+	 *
+	 * @param compact    whether to compact the prototypes produced
+	 * @param stripdebug whether compacting also drops debug information
+	 */
+	protected LuaC(boolean compact, boolean stripdebug) {
+		this.compact = compact;
+		this.stripdebug = stripdebug;
+	}
 
 	/**
 	 * Compile lua source into a Prototype.
@@ -108,7 +140,8 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 	 */
 	@Override
 	public Prototype compile(InputStream stream, String chunkname) throws IOException {
-		return new CompileState().luaY_parser(stream, chunkname);
+		final Prototype p = new CompileState().luaY_parser(stream, chunkname);
+		return compact? p.compact(stripdebug): p;
 	}
 
 	@Override
@@ -138,7 +171,7 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 			FuncState funcstate = new FuncState();
 			// lexstate.buff = buff;
 			lexstate.fs = funcstate;
-			lexstate.setinput(this, z.read(), z, LuaValue.valueOf(name));
+			lexstate.setinput(this, z, LuaValue.valueOf(name));
 			/* main func. is always vararg */
 			funcstate.f = new Prototype();
 			funcstate.f.source = LuaValue.valueOf(name);
@@ -0,0 +1,245 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.luaj.vm2.ByteArraySource;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Compiler that remembers the {@link Prototype} produced for each distinct
+ * source.
+ *
+ * <p>
+ * The code, constants and nested prototypes of a {@link Prototype} are not
+ * modified once it has been compiled, so any number of {@link Globals} may
+ * build closures around the same instance. When many sandboxes load the same
+ * scripts, installing a cache in each of them means each script is parsed only
+ * once per process:
+ *
+ * <pre>
+ * {
+ * 	&#64;code
+ * 	Globals globals = JsePlatform.standardGlobals();
+ * 	PrototypeCache.install(globals);
+ * 	globals.load(script, "main.lua").call();
+ * }
+ * </pre>
+ *
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the compiler, the chunk name and
+ * the source bytes, so a chunk name reused for different text, or the same
+ * text compiled by a differently configured compiler, is compiled again. The
+ * cache holds at most a fixed number of prototypes and evicts the least
+ * recently used one when full. Sources that fail to compile are not cached.
+ *
+ * <p>
+ * The state a prototype does keep while running is safe to share between the
+ * Globals using it:
+ * <ul>
+ * <li>the count of calls towards a {@link Globals.Recompiler} is kept by all
+ * the Globals that have one, so a script that is hot across them is
+ * recompiled sooner;
+ * <li>a {@link Prototype#implementation} is only run by closures whose Globals
+ * use the recompiler that produced it, and the others keep interpreting;
+ * <li>the nested prototypes of a chunk undumped lazily are decoded once, by
+ * whichever Globals first creates a closure of them.
+ * </ul>
+ * A prototype returned by the cache should not be passed to
+ * {@link Prototype#compact(boolean)}, which is for prototypes not yet shared
+ * with other threads.
+ *
+ * <p>
+ * All methods are thread safe. Compilation itself happens outside the lock, so
+ * two threads missing on the same source at once may both compile it; the
+ * first result to arrive is kept and returned to both.
+ *
+ * @see Globals#compiler
+ * @see Globals#compilePrototype(InputStream, String)
+ * @see LuaC
+ */
+public class PrototypeCache implements Globals.Compiler {
+
+	/** Number of prototypes held by {@link #instance}. */
+	public static final int DEFAULT_CAPACITY = 512;
+
+	/** A process-wide cache in front of {@link LuaC#instance}. */
+	public static final PrototypeCache instance = new PrototypeCache(LuaC.instance, DEFAULT_CAPACITY);
+
+	/**
+	 * Install the shared cache as the compiler of a {@link Globals}.
+	 *
+	 * @param globals the Globals into which this is to be installed.
+	 */
+	public static void install(Globals globals) {
+		globals.compiler = instance;
+	}
+
+	private final Globals.Compiler compiler;
+	private final String           options;
+	private final int              capacity;
+	private final Map<Key, Prototype> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Construct a cache in front of a compiler.
+	 *
+	 * @param compiler the compiler used on a miss.
+	 * @param capacity the maximum number of prototypes to retain.
+	 */
+	public PrototypeCache(Globals.Compiler compiler, int capacity) {
+		this(compiler, "", capacity);
+	}
+
+	/**
+	 * Construct a cache in front of a compiler whose output depends on
+	 * settings other than its class.
+	 *
+	 * @param compiler the compiler used on a miss.
+	 * @param options  description of the compiler settings, made part of every
+	 *                 key.
+	 * @param capacity the maximum number of prototypes to retain.
+	 */
+	public PrototypeCache(Globals.Compiler compiler, String options, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.compiler = compiler;
+		this.options = compiler.getClass().getName() + ':' + options;
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Prototype>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Prototype> eldest) {
+				if (size() <= PrototypeCache.this.capacity)
+					return false;
+				++evictions;
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public Prototype compile(InputStream stream, String chunkname) throws IOException {
+		final ByteArraySource source = ChunkDigest.source(stream);
+		final Key key = new Key(digest(chunkname, source));
+		synchronized (entries) {
+			final Prototype p = entries.get(key);
+			if (p != null) {
+				++hits;
+				return p;
+			}
+			++misses;
+		}
+		final Prototype p = compiler.compile(source, chunkname);
+		synchronized (entries) {
+			final Prototype q = entries.get(key);
+			if (q != null)
+				return q;
+			entries.put(key, p);
+		}
+		return p;
+	}
+
+	/** Number of compilations answered from the cache. */
+	public long hits() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	/** Number of compilations passed through to the underlying compiler. */
+	public long misses() {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	/** Number of prototypes dropped to stay within the capacity. */
+	public long evictions() {
+		synchronized (entries) {
+			return evictions;
+		}
+	}
+
+	/** Number of prototypes currently held. */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/** Maximum number of prototypes held. */
+	public int capacity() { return capacity; }
+
+	/** Drop all cached prototypes and reset the statistics. */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			hits = misses = evictions = 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (entries) {
+			return "PrototypeCache[size=" + entries.size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + "]";
+		}
+	}
+
+	private byte[] digest(String chunkname, ByteArraySource source) {
+		final MessageDigest md = ChunkDigest.sha256();
+		ChunkDigest.update(md, options);
+		ChunkDigest.update(md, chunkname);
+		ChunkDigest.update(md, source);
+		return md.digest();
+	}
+
+	private static final class Key {
+		private final byte[] digest;
+		private final int    hash;
+
+		Key(byte[] digest) {
+			this.digest = digest;
+			this.hash = Arrays.hashCode(digest);
+		}
+
+		@Override
+		public int hashCode() { return hash; }
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+		}
+	}
+}
@@ -21,6 +21,7 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
@@ -64,7 +65,7 @@ import org.luaj.vm2.Varargs;
  * @see <a href="http://www.lua.org/manual/5.2/manual.html#6.7">Lua 5.2 Bitwise
  *      Operation Lib Reference</a>
  */
-public class Bit32Lib extends TwoArgFunction {
+public class Bit32Lib extends TwoArgFunction implements Globals.SharedLibrary {
 
 	public Bit32Lib() {
 	}
@@ -23,6 +23,7 @@ package org.luaj.vm2.lib;
 
 import java.util.Random;
 
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaDouble;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -94,7 +95,7 @@ import org.luaj.vm2.Varargs;
  * @see <a href="http://www.lua.org/manual/5.2/manual.html#6.6">Lua 5.2 Math Lib
  *      Reference</a>
  */
-public class MathLib extends TwoArgFunction {
+public class MathLib extends TwoArgFunction implements Globals.SharedLibrary {
 
 	/**
 	 * Pointer to the latest MathLib instance, used only to dispatch math.exp to
@@ -181,6 +181,24 @@ public class PackageLib extends TwoArgFunction {
 		return env;
 	}
 
+	/**
+	 * Take over the loaded modules, preloaded loaders and path of the package
+	 * table of a forked Globals, keeping the modules registered while loading
+	 * this library instance.
+	 *
+	 * @param forked the package table as it was forked
+	 * @see Globals#fork()
+	 */
+	public void inherit(LuaTable forked) {
+		LuaValue loaded = package_.get(_LOADED);
+		LuaValue inherited = forked.get(_LOADED);
+		for (Varargs e = loaded.next(NIL); !e.arg1().isnil(); e = loaded.next(e.arg1()))
+			inherited.set(e.arg1(), e.arg(2));
+		package_.set(_LOADED, inherited);
+		package_.set(_PRELOAD, forked.get(_PRELOAD));
+		package_.set(_PATH, forked.get(_PATH));
+	}
+
 	/** Allow packages to mark themselves as loaded */
 	public void setIsLoaded(String name, LuaTable value) {
 		package_.get(_LOADED).set(name, value);
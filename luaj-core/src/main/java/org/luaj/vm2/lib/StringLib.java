@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import org.luaj.vm2.Buffer;
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
@@ -70,7 +71,7 @@ import org.luaj.vm2.compiler.DumpState;
  * @see <a href="http://www.lua.org/manual/5.2/manual.html#6.4">Lua 5.2 String
  *      Lib Reference</a>
  */
-public class StringLib extends TwoArgFunction {
+public class StringLib extends TwoArgFunction implements Globals.SharedLibrary {
 
 	/**
 	 * Construct a StringLib, which can be initialized by calling it with a
@@ -85,13 +86,18 @@ public class StringLib extends TwoArgFunction {
 	 * containing the library functions, adding that table to the supplied
 	 * environment, adding the table to package.loaded, and returning table as
 	 * the return value. Creates a metatable that uses __INDEX to fall back on
-	 * itself to support string method operations. If the shared strings
-	 * metatable instance is null, will set the metatable as the global shared
-	 * metatable for strings.
+	 * itself to support string method operations, and registers it as the
+	 * string metatable of the environment if that is a {@link Globals}. If the
+	 * shared strings metatable instance is null, will also set it to a frozen
+	 * default metatable with its own table of the functions of this class,
+	 * which is built once for all instances, so that no environment can change
+	 * the string methods seen by the others. Assigning {@link LuaString#s_metatable}
+	 * afterwards does not affect a Globals that this library was loaded into,
+	 * since the Globals has its own string metatable.
 	 * <P>
-	 * All tables and metatables are read-write by default so if this will be
-	 * used in a server environment, sandboxing should be used. In particular,
-	 * the {@link LuaString#s_metatable} table should probably be made
+	 * All other tables and metatables are read-write by default so if this
+	 * will be used in a server environment, sandboxing should be used. In
+	 * particular, the string metatable of each Globals should probably be made
 	 * read-only.
 	 *
 	 * @param modname the module name supplied if this is loaded via 'require'.
@@ -100,6 +106,32 @@ public class StringLib extends TwoArgFunction {
 	 */
 	@Override
 	public LuaValue call(LuaValue modname, LuaValue env) {
+		LuaTable string = functions();
+		env.set("string", string);
+		if (!env.get("package").isnil())
+			env.get("package").get("loaded").set("string", string);
+		if (env instanceof Globals)
+			((Globals) env).setTypeMetatable(TSTRING, metatable(string));
+		if (LuaString.s_metatable == null)
+			LuaString.s_metatable = DefaultMetatable.INSTANCE;
+		return string;
+	}
+
+	/**
+	 * The frozen default string metatable, published once by the
+	 * initialization of this class however many threads load the library.
+	 */
+	private static final class DefaultMetatable {
+		static final LuaValue INSTANCE = metatable(new StringLib().functions()).freeze();
+	}
+
+	/* a metatable that uses __index to look up string methods in a table */
+	private static LuaTable metatable(LuaTable string) {
+		return LuaValue.tableOf(new LuaValue[] { INDEX, string });
+	}
+
+	/* a new table of the string functions, which refer to no environment */
+	private LuaTable functions() {
 		LuaTable string = new LuaTable();
 		string.set("byte", new Byte());
 		string.set("char", new Char());
@@ -115,13 +147,6 @@ public class StringLib extends TwoArgFunction {
 		string.set("reverse", new Reverse());
 		string.set("sub", new Sub());
 		string.set("upper", new Upper());
-
-		env.set("string", string);
-		if (!env.get("package").isnil())
-			env.get("package").get("loaded").set("string", string);
-		if (LuaString.s_metatable == null) {
-			LuaString.s_metatable = LuaValue.tableOf(new LuaValue[] { INDEX, string });
-		}
 		return string;
 	}
 
@@ -21,6 +21,7 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
@@ -65,7 +66,7 @@ import org.luaj.vm2.Varargs;
  * @see <a href="http://www.lua.org/manual/5.2/manual.html#6.5">Lua 5.2 Table
  *      Lib Reference</a>
  */
-public class TableLib extends TwoArgFunction {
+public class TableLib extends TwoArgFunction implements Globals.SharedLibrary {
 
 	/**
 	 * Perform one-time initialization on the library by creating a table
@@ -89,7 +90,7 @@ public class TableLib extends TwoArgFunction {
 		env.set("table", table);
 		if (!env.get("package").isnil())
 			env.get("package").get("loaded").set("table", table);
-		return NIL;
+		return table;
 	}
 
 	// "concat" (table [, sep [, i [, j]]]) -> string
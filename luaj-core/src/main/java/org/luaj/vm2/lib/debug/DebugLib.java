@@ -22,11 +22,8 @@
 package org.luaj.vm2.lib.debug;
 
 import org.luaj.vm2.Globals;
-import org.luaj.vm2.LuaBoolean;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaFunction;
-import org.luaj.vm2.LuaNil;
-import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -118,6 +115,7 @@ public class DebugLib extends DebugLibBase {
 	 */
 	@Override
 	public LuaValue call(LuaValue modname, LuaValue env) {
+		super.call(modname, env);
 		globals = env.checkglobals();
 		LuaTable debug = new LuaTable();
 		debug.set("debug", new debug());
@@ -171,12 +169,15 @@ public class DebugLib extends DebugLibBase {
 			String what = args.optjstring(a++, "flnStu");
 			DebugLib.CallStack callstack = callstack(thread);
 
-			// find the stack info
+			// find the stack info, walking the stack once for all levels
+			DebugLib.CallFrame[] frames = null;
 			DebugLib.CallFrame frame;
 			if (func.isnumber()) {
-				frame = callstack.getCallFrame(func.toint());
-				if (frame == null)
+				int level = func.toint();
+				frames = callstack.getCallFrames();
+				if (level < 1 || level > frames.length)
 					return NONE;
+				frame = frames[level-1];
 				func = frame.f;
 			} else if (func.isfunction()) {
 				frame = callstack.findCallFrame(func);
@@ -212,9 +213,10 @@ public class DebugLib extends DebugLibBase {
 			if (what.indexOf('L') >= 0) {
 				LuaTable lines = new LuaTable();
 				info.set(ACTIVELINES, lines);
-				DebugLib.CallFrame cf;
-				for (int l = 1; (cf = callstack.getCallFrame(l)) != null; ++l)
-					if (cf.f == func)
+				if (frames == null)
+					frames = callstack.getCallFrames();
+				for (DebugLib.CallFrame cf : frames)
+					if (func != null && cf.f == func)
 						lines.insert(-1, valueOf(cf.currentline()));
 			}
 			if (what.indexOf('f') >= 0) {
@@ -334,28 +336,18 @@ public class DebugLib extends DebugLibBase {
 	}
 
 	//	debug.setmetatable (value, table)
-	static final class setmetatable extends TwoArgFunction {
+	final class setmetatable extends TwoArgFunction {
 		@Override
 		public LuaValue call(LuaValue value, LuaValue table) {
 			LuaValue mt = table.opttable(null);
 			switch (value.type()) {
 			case TNIL:
-				LuaNil.s_metatable = mt;
-				break;
 			case TNUMBER:
-				LuaNumber.s_metatable = mt;
-				break;
 			case TBOOLEAN:
-				LuaBoolean.s_metatable = mt;
-				break;
 			case TSTRING:
-				LuaString.s_metatable = mt;
-				break;
 			case TFUNCTION:
-				LuaFunction.s_metatable = mt;
-				break;
 			case TTHREAD:
-				LuaThread.s_metatable = mt;
+				globals.setTypeMetatable(value.type(), mt);
 				break;
 			default:
 				value.setmetatable(mt);
@@ -1,5 +1,10 @@
 package org.luaj.vm2.lib.debug;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+
 import org.luaj.vm2.*;
 import org.luaj.vm2.lib.TwoArgFunction;
 
@@ -11,6 +16,12 @@ public class DebugLibBase extends TwoArgFunction {
     protected final static LuaString WORD_RETURN = valueOf("return");
     protected final static LuaString WORD_QMARK = valueOf("?");
 
+    private static final StackWalker.StackFrame[] NOFRAMES = {};
+
+    /* walker of the java stack, showing the frames of compiled functions defined as hidden classes */
+    private static final StackWalker WALKER = StackWalker.getInstance(
+            EnumSet.of(StackWalker.Option.RETAIN_CLASS_REFERENCE, StackWalker.Option.SHOW_HIDDEN_FRAMES));
+
     private Globals globals;
 
     private boolean trace;
@@ -26,6 +37,15 @@ public class DebugLibBase extends TwoArgFunction {
         return env;
     }
 
+    /**
+     * Check if the running thread has a hook set. Closures with a compiled
+     * implementation run it only while none is, and otherwise run in the
+     * interpreter, which calls the hooks.
+     */
+    public boolean hooked() {
+        return globals.running.state.hookfunc != null;
+    }
+
     public void onCall(LuaFunction function) {
         LuaThread.State s = globals.running.state;
         if (s.inhook)
@@ -101,10 +121,100 @@ public class DebugLibBase extends TwoArgFunction {
         return callstack().traceback(level);
     }
 
+    /**
+     * Get the traceback of frames already found, starting at a specific
+     * level, so that a caller which has looked at the frames does not walk
+     * the stack again.
+     *
+     * @param level  the level to start at
+     * @param frames the frames from {@link #getCallFrames()} or
+     *               {@link #unwound(StackWalker.StackFrame[])}
+     */
+    public String traceback(int level, CallFrame[] frames) {
+        return callstack().traceback(level, frames);
+    }
+
+    /**
+     * Get the frames of compiled functions that an error unwound, innermost
+     * first, as captured by {@link #compiledFrames()}, followed by the frames
+     * still on the stack.
+     *
+     * @param frames the frames captured when the error was raised, or null
+     *               if it was raised without a debug library
+     */
+    public CallFrame[] unwound(StackWalker.StackFrame[] frames) {
+        if (frames == null)
+            frames = NOFRAMES;
+        CallFrame[] stacked = getCallFrames();
+        CallFrame[] unwound = new CallFrame[frames.length+stacked.length];
+        for (int i = 0; i < frames.length; ++i)
+            unwound[i] = new CompiledFrame(frames[i]);
+        System.arraycopy(stacked, 0, unwound, frames.length, stacked.length);
+        return unwound;
+    }
+
+    /**
+     * Get the frames of compiled functions on the java stack above the
+     * innermost frame of a closure, which an error raised now unwinds before
+     * the closure handles it. Called as errors are raised while the running
+     * Globals has a debug library, since the stack trace of an exception
+     * leaves out frames of hidden classes. Without one, errors do not walk
+     * the stack, and take their position from {@link LuaError#unwind(int, String)}.
+     *
+     * @return the frames, innermost first
+     */
+    public static StackWalker.StackFrame[] compiledFrames() {
+        return WALKER.walk(s -> {
+            List<StackWalker.StackFrame> list = null;
+            boolean entering = false;
+            for (Iterator<StackWalker.StackFrame> i = s.iterator(); i.hasNext();) {
+                StackWalker.StackFrame sf = i.next();
+                Class<?> c = sf.getDeclaringClass();
+                if (c == LuaClosure.class)
+                    break;
+                String m = sf.getMethodName();
+                if (c == Globals.class && m.equals("invokeIn")) {
+                    entering = true;
+                } else if (entering && Compiled.class.isAssignableFrom(c)) {
+                    entering = false;
+                } else if (Compiled.class.isAssignableFrom(c) && (m.equals("call") || m.equals("onInvoke"))) {
+                    if (list == null)
+                        list = new ArrayList<StackWalker.StackFrame>();
+                    list.add(sf);
+                }
+            }
+            return list != null? list.toArray(new StackWalker.StackFrame[list.size()]): NOFRAMES;
+        });
+    }
+
+    /* the source named by the constant field of a compiled function's class */
+    private static String compiledSource(Class<?> c) {
+        Object source = constant(c, Compiled.SOURCE);
+        return source instanceof String? (String) source: "=?";
+    }
+
+    /* a line named by a constant field of a compiled function's class, or -1 */
+    private static int compiledLine(Class<?> c, String name) {
+        Object line = constant(c, name);
+        return line instanceof Integer? (Integer) line: -1;
+    }
+
+    private static Object constant(Class<?> c, String name) {
+        try {
+            return c.getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     public CallFrame getCallFrame(int level) {
         return callstack().getCallFrame(level);
     }
 
+    public CallFrame[] getCallFrames() {
+        return callstack().getCallFrames();
+    }
+
     public static class DebugInfo {
         public String    name;            /* (n) */
         public String    namewhat;        /* (n) 'global', 'local', 'field', 'method' */
@@ -128,6 +238,13 @@ public class DebugLibBase extends TwoArgFunction {
                 this.lastlinedefined = p.lastlinedefined;
                 this.what = this.linedefined == 0? "main": "Lua";
                 this.short_src = p.shortsource();
+            } else if (f instanceof Compiled) {
+                Class<?> c = f.getClass();
+                this.source = compiledSource(c);
+                this.linedefined = compiledLine(c, Compiled.LINEDEFINED);
+                this.lastlinedefined = compiledLine(c, Compiled.LASTLINEDEFINED);
+                this.what = this.linedefined == 0? "main": "Lua";
+                this.short_src = Prototype.shortsource(this.source);
             } else {
                 this.source = "=[Java]";
                 this.linedefined = -1;
@@ -188,9 +305,22 @@ public class DebugLibBase extends TwoArgFunction {
          * @return String containing the traceback.
          */
         public synchronized String traceback(int level) {
+            return traceback(level, getCallFrames());
+        }
+
+        /**
+         * Get the traceback of frames already found, starting at a specific
+         * level.
+         *
+         * @param level
+         * @param frames the frames, the frame at level 1 first
+         * @return String containing the traceback.
+         */
+        public synchronized String traceback(int level, CallFrame[] frames) {
             StringBuilder sb = new StringBuilder();
             sb.append("stack traceback:");
-            for (CallFrame c; (c = getCallFrame(level++)) != null;) {
+            for (int i = Math.max(level, 1)-1; i < frames.length; ++i) {
+                CallFrame c = frames[i];
                 sb.append("\n\t");
                 sb.append(c.shortsource());
                 sb.append(':');
@@ -216,10 +346,91 @@ public class DebugLibBase extends TwoArgFunction {
             return sb.toString();
         }
 
+        /**
+         * Get the frame at a level of the stack, where frames of compiled
+         * functions running on the thread count as levels too.
+         *
+         * @param level 1 for the function that called the debug library
+         * @return the frame, or null if the stack is not that deep
+         */
         public synchronized CallFrame getCallFrame(int level) {
-            if (level < 1 || level > calls)
+            if (level < 1)
                 return null;
-            return frame[calls-level];
+            CallFrame[] frames = frames(level);
+            return level <= frames.length? frames[level-1]: null;
+        }
+
+        /**
+         * Get all the frames of the stack, as {@link #getCallFrame(int)} would
+         * find them level by level, with one walk of the java stack. Used by
+         * queries that look at more than one level.
+         *
+         * @return the frames, the frame at level 1 first
+         */
+        public synchronized CallFrame[] getCallFrames() {
+            return frames(Integer.MAX_VALUE);
+        }
+
+        /*
+         * The frames from the top, at least n of them if there are as many,
+         * with those of compiled functions among the ones tracked by onCall.
+         * Compiled functions are not tracked, so as not to cost anything, and
+         * are found only now by walking the java stack, if this is the stack
+         * of the thread running on it. The frame of a closure is the frame of
+         * its interpreter, unless that ran a compiled function instead, and a
+         * compiled function that entered its globals has one frame, not two.
+         */
+        private CallFrame[] frames(final int n) {
+            if (globals.running.callstack != this)
+                return tracked(calls, n, new ArrayList<CallFrame>(), false);
+            return WALKER.walk(s -> {
+                List<CallFrame> list = new ArrayList<CallFrame>();
+                int t = calls;
+                boolean compiled = false, dispatched = false, entering = false;
+                for (Iterator<StackWalker.StackFrame> i = s.iterator(); i.hasNext() && list.size() <= n;) {
+                    StackWalker.StackFrame sf = i.next();
+                    Class<?> c = sf.getDeclaringClass();
+                    String m = sf.getMethodName();
+                    if (c == LuaClosure.class) {
+                        if (m.equals("executeCompiled")) {
+                            dispatched = true;
+                        } else if (m.equals("interpret")) {
+                            while (!dispatched && t > 0 && !(frame[t-1].f instanceof LuaClosure))
+                                list.add(frame[--t]);
+                            if (!dispatched && t > 0)
+                                list.add(frame[--t]);
+                            dispatched = false;
+                        }
+                    } else if (c == Globals.class && m.equals("invokeIn")) {
+                        entering = true;
+                    } else if (Compiled.class.isAssignableFrom(c)) {
+                        if (entering)
+                            entering = false;
+                        else if (m.equals("call") || m.equals("onInvoke")) {
+                            list.add(new CompiledFrame(sf));
+                            compiled = true;
+                        }
+                    } else if (t > 0 && frame[t-1].f != null && c == frame[t-1].f.getClass()) {
+                        list.add(frame[--t]);
+                    }
+                }
+                return tracked(t, n, list, compiled);
+            });
+        }
+
+        /* add tracked frames below t to a list, linking copies of them if it has compiled frames */
+        private CallFrame[] tracked(int t, int n, List<CallFrame> list, boolean compiled) {
+            while (t > 0 && list.size() <= n)
+                list.add(frame[--t]);
+            CallFrame[] frames = list.toArray(new CallFrame[list.size()]);
+            if (compiled) {
+                for (int i = frames.length-1; i >= 0; --i) {
+                    if (!(frames[i] instanceof CompiledFrame))
+                        frames[i] = new CallFrame(frames[i]);
+                    frames[i].previous = i+1 < frames.length? frames[i+1]: null;
+                }
+            }
+            return frames;
         }
 
         public synchronized CallFrame findCallFrame(LuaValue func) {
@@ -234,10 +445,13 @@ public class DebugLibBase extends TwoArgFunction {
             for (int i = 0, n = what.length(); i < n; ++i) {
                 switch (what.charAt(i)) {
                     case 'S':
-                        ar.funcinfo(f);
+                        if (f == null && ci instanceof CompiledFrame)
+                            ((CompiledFrame) ci).funcinfo(ar);
+                        else
+                            ar.funcinfo(f);
                         break;
                     case 'l':
-                        ar.currentline = ci != null && ci.f.isclosure()? ci.currentline(): -1;
+                        ar.currentline = ci != null && (ci.f == null || ci.f.isclosure())? ci.currentline(): -1;
                         break;
                     case 'u':
                         if (f != null && f.isclosure()) {
@@ -256,7 +470,7 @@ public class DebugLibBase extends TwoArgFunction {
                         break;
                     case 'n': {
                         /* calling function is a known Lua function? */
-                        if (ci != null && ci.previous != null) {
+                        if (ci != null && ci.previous != null && ci.previous.f != null) {
                             if (ci.previous.f.isclosure()) {
                                 NameWhat nw = getfuncname(ci.previous);
                                 if (nw != null) {
@@ -294,6 +508,17 @@ public class DebugLibBase extends TwoArgFunction {
         public LuaValue[]  stack = EMPTY;
         public CallFrame   previous;
 
+        public CallFrame() {}
+
+        /* copy of a frame, sharing its registers */
+        CallFrame(CallFrame cf) {
+            this.f = cf.f;
+            this.pc = cf.pc;
+            this.top = cf.top;
+            this.v = cf.v;
+            this.stack = cf.stack;
+        }
+
         public void set(LuaClosure function, Varargs varargs, LuaValue[] stack) {
             this.f = function;
             this.v = varargs;
@@ -343,8 +568,7 @@ public class DebugLibBase extends TwoArgFunction {
         public int currentline() {
             if (!f.isclosure())
                 return -1;
-            int[] li = f.checkclosure().p.lineinfo;
-            return li == null || pc < 0 || pc >= li.length? -1: li[pc];
+            return f.checkclosure().p.getline(pc);
         }
 
         public String sourceline() {
@@ -364,6 +588,87 @@ public class DebugLibBase extends TwoArgFunction {
         }
     }
 
+    /**
+     * Marker of the classes of functions compiled to java bytecode, such as
+     * those generated by luajc. Their calls are not tracked, and their frames
+     * are described from the java stack when asked for, using the line number
+     * tables of their methods and constant static fields describing their
+     * prototype, named {@link #SOURCE}, {@link #LINEDEFINED} and
+     * {@link #LASTLINEDEFINED}.
+     */
+    public interface Compiled {
+        String SOURCE          = "source";
+        String LINEDEFINED     = "linedefined";
+        String LASTLINEDEFINED = "lastlinedefined";
+    }
+
+    /**
+     * Frame of a compiled function found on the java stack. Its function and
+     * locals are not known, and its current line is the line of the
+     * instruction it is at.
+     */
+    public class CompiledFrame extends CallFrame {
+        private final String source;
+        private final int    line, linedefined, lastlinedefined;
+
+        CompiledFrame(StackWalker.StackFrame sf) {
+            this(sf.getDeclaringClass(), sf.getLineNumber());
+        }
+
+        CompiledFrame(Class<?> c, int line) {
+            this.source = compiledSource(c);
+            this.linedefined = compiledLine(c, Compiled.LINEDEFINED);
+            this.lastlinedefined = compiledLine(c, Compiled.LASTLINEDEFINED);
+            this.line = line;
+        }
+
+        void funcinfo(DebugInfo ar) {
+            ar.source = source;
+            ar.linedefined = linedefined;
+            ar.lastlinedefined = lastlinedefined;
+            ar.what = linedefined == 0? "main": "Lua";
+            ar.short_src = shortsource();
+        }
+
+        @Override
+        public String shortsource() {
+            return Prototype.shortsource(source);
+        }
+
+        @Override
+        public void instr(int pc, Varargs v, int top) {}
+
+        @Override
+        public Varargs getLocal(int i) {
+            return NIL;
+        }
+
+        @Override
+        public Varargs setLocal(int i, LuaValue value) {
+            return NIL;
+        }
+
+        @Override
+        public int currentline() {
+            return line;
+        }
+
+        @Override
+        public String sourceline() {
+            return shortsource() + ":" + line;
+        }
+
+        @Override
+        public int linedefined() {
+            return linedefined;
+        }
+
+        @Override
+        public LuaString getlocalname(int index) {
+            return null;
+        }
+    }
+
     record NameWhat(String name, String namewhat) {
     }
 
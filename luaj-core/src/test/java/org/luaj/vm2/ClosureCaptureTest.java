@@ -0,0 +1,88 @@
+package org.luaj.vm2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.compiler.LuaC;
+
+class ClosureCaptureTest {
+
+	private static Prototype compile(String script) throws IOException {
+		return LuaC.instance.compile(new ByteArrayInputStream(script.getBytes()), "script");
+	}
+
+	private static Varargs run(String script) throws IOException {
+		return new LuaClosure(compile(script), new Globals()).invoke();
+	}
+
+	@Test
+	void testUnassignedLocalCapturedByValue() throws IOException {
+		Prototype p = compile("local x = 1 return function() return x end");
+		assertTrue(p.capturesByValue(0));
+	}
+
+	@Test
+	void testAssignedLocalCapturedByReference() throws IOException {
+		Prototype p = compile("local x = 1 local f = function() return x end x = 2 return f");
+		assertFalse(p.capturesByValue(0));
+	}
+
+	@Test
+	void testLocalAssignedBeforeCaptureCapturedByValue() throws IOException {
+		Prototype p = compile("local c = ... local x if c then x = 1 else x = 2 end\n"
+			+ "return function() return x end");
+		assertTrue(p.capturesByValue(0));
+		assertEquals(2, new LuaClosure(p, new Globals()).invoke().arg1().call().toint());
+	}
+
+	@Test
+	void testLocalAssignedInLoopAfterCaptureCapturedByReference() throws IOException {
+		Prototype p = compile("local fs, x = {}, 0 for i = 1, 3 do x = x + i fs[i] = function() return x end end\n"
+			+ "return fs[1]()");
+		assertFalse(p.capturesByValue(0));
+		assertEquals(6, new LuaClosure(p, new Globals()).invoke().toint(1));
+	}
+
+	@Test
+	void testUpvalueAssignedByClosureCapturedByReference() throws IOException {
+		Prototype p = compile("local x = 1 local f = function() return x end\n"
+			+ "local g = function() return function() x = 2 end end return f, g");
+		assertFalse(p.capturesByValue(0));
+		assertFalse(p.capturesByValue(1));
+	}
+
+	@Test
+	void testRecursiveLocalFunctionCapturedByReference() throws IOException {
+		Prototype p = compile("local function f(n) return n > 0 and f(n-1) or 0 end return f(3)");
+		assertFalse(p.capturesByValue(0));
+	}
+
+	@Test
+	void testLoopVariables() throws IOException {
+		Varargs v = run("local fs = {} for i = 1, 3 do fs[i] = function() return i end end\n"
+			+ "return fs[1](), fs[2](), fs[3]()");
+		assertEquals(1, v.arg(1).toint());
+		assertEquals(2, v.arg(2).toint());
+		assertEquals(3, v.arg(3).toint());
+	}
+
+	@Test
+	void testSharedUpvalues() throws IOException {
+		Varargs v = run("local x = 1 local get = function() return x end\n"
+			+ "local set = function(n) x = n end set(5) local y = get() x = 7 return y, get()");
+		assertEquals(5, v.arg(1).toint());
+		assertEquals(7, v.arg(2).toint());
+	}
+
+	@Test
+	void testStrippedDebugInfoCapturedByReference() throws IOException {
+		Prototype p = compile("local x = 1 return function() return x end");
+		p.locvars = new LocVars[0];
+		assertFalse(p.capturesByValue(0));
+	}
+}
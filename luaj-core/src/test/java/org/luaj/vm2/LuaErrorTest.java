@@ -0,0 +1,56 @@
+package org.luaj.vm2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.debug.DebugLibBase;
+
+class LuaErrorTest {
+
+	private static LuaError raise(Globals g, String script) throws IOException {
+		Prototype p = LuaC.instance.compile(new ByteArrayInputStream(script.getBytes()), "@script");
+		try {
+			new LuaClosure(p, g).call();
+		} catch (LuaError le) {
+			return le;
+		}
+		throw new AssertionError("no error");
+	}
+
+	private static Globals globals() {
+		Globals g = new Globals();
+		g.load(new BaseLib());
+		return g;
+	}
+
+	@Test
+	void testErrorWithoutDebugLibraryDoesNotWalkStack() throws IOException {
+		LuaError le = raise(globals(), "local function f() error('boom') end\nf()");
+		assertNull(le.compiledframes);
+		assertEquals("@script:1 boom", le.getMessage());
+	}
+
+	@Test
+	void testErrorWithDebugLibraryCapturesCompiledFrames() throws IOException {
+		Globals g = globals();
+		g.load(new DebugLibBase());
+		LuaError le = raise(g, "local function f() error('boom') end\nf()");
+		assertNotNull(le.compiledframes);
+		assertEquals(0, le.compiledframes.length);
+	}
+
+	@Test
+	void testUnwindGivesPositionOfFrameAtLevel() {
+		LuaError le = new LuaError("boom", 2);
+		le.unwind(3, "@inner.lua").unwind(7, "@outer.lua").unwind(9, "@main.lua");
+		assertEquals("@outer.lua:7 boom", le.getMessage());
+		assertEquals("boom", new LuaError("boom", 0).unwind(3, "@inner.lua").getMessage());
+	}
+}
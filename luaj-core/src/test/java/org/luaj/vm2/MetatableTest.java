@@ -22,11 +22,17 @@
 package org.luaj.vm2;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.luaj.vm2.TypeTest.MyData;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.StringLib;
 import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
@@ -369,4 +375,71 @@ class MetatableTest {
 		checkTable(t, aaa, zzz, ccc, sss, nil, yyy, ttt, nil, zzz, ccc, sss, nil, nil, nil);
 		checkTable(m, aaa, bbb, nil, nil, nil, yyy, ttt, aaa, bbb, nil, nil, nil, yyy, ttt);
 	}
+
+	private static Globals newGlobals() {
+		Globals g = new Globals();
+		g.load(new BaseLib());
+		g.load(new StringLib());
+		LuaC.install(g);
+		return g;
+	}
+
+	@Test
+	void testTypeMetatablesArePerGlobals() {
+		Globals a = newGlobals();
+		Globals b = newGlobals();
+		LuaValue mt = LuaValue.tableOf(new LuaValue[] { LuaValue.LEN, new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue arg) { return LuaValue.valueOf(42); }
+		}, });
+		a.setTypeMetatable(LuaValue.TNUMBER, mt);
+		assertSame(mt, a.getTypeMetatable(LuaValue.TNUMBER));
+		assertSame(mt, a.load("return getmetatable(1)").call());
+		assertEquals(LuaValue.valueOf(42), a.load("return #5").call());
+		assertEquals(LuaValue.NIL, b.load("return getmetatable(1)").call());
+		assertSame(a.get("string"), a.load("return getmetatable('').__index").call());
+		assertSame(b.get("string"), b.load("return getmetatable('').__index").call());
+		assertNull(LuaValue.ONE.getmetatable());
+		assertNull(Globals.current());
+	}
+
+	@Test
+	void testTypeMetatableFollowsCalledClosure() {
+		Globals a = newGlobals();
+		Globals b = newGlobals();
+		a.setTypeMetatable(LuaValue.TBOOLEAN, LuaValue.tableOf());
+		LuaValue fromA = a.load("return function() return getmetatable(true) end").call();
+		b.set("f", fromA);
+		assertEquals(LuaValue.TRUE, b.load("return f() ~= nil and getmetatable(true) == nil").call());
+	}
+
+	@Test
+	void testDefaultStringMetatableIsSharedAndFrozen() throws InterruptedException {
+		LuaValue saved = LuaString.s_metatable;
+		try {
+			Thread[] threads = new Thread[4];
+			final LuaValue[] seen = new LuaValue[threads.length];
+			for (int i = 0; i < threads.length; i++) {
+				final int n = i;
+				threads[i] = new Thread(() -> {
+					newGlobals();
+					seen[n] = LuaString.s_metatable;
+				});
+			}
+			LuaString.s_metatable = null;
+			for (Thread t : threads)
+				t.start();
+			for (Thread t : threads)
+				t.join();
+			for (LuaValue mt : seen)
+				assertSame(seen[0], mt);
+			assertTrue(seen[0].checktable().isfrozen());
+			assertEquals(LuaValue.valueOf("ABC"), LuaValue.valueOf("abc").method("upper"));
+			Globals g = newGlobals();
+			LuaString.s_metatable = LuaValue.tableOf();
+			assertEquals(LuaValue.valueOf("ABC"), g.load("return ('abc'):upper()").call());
+		} finally {
+			LuaString.s_metatable = saved;
+		}
+	}
 }
@@ -23,6 +23,8 @@ package org.luaj.vm2;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -434,4 +436,113 @@ class TableTest {
 		}
 		assertEquals(expected, actual);
 	}
+
+	@Test
+	void testFreezeCopiesContents() {
+		LuaTable t = new_Table();
+		for (int i = 1; i <= 10; ++i)
+			t.set(i, LuaValue.valueOf(i*10));
+		t.set(20, LuaValue.valueOf(200));
+		t.set("name", LuaValue.valueOf("rates"));
+		LuaTable inner = new_Table();
+		inner.set("x", LuaValue.valueOf(1));
+		t.set("inner", inner);
+		t.set("self", t);
+
+		LuaTable f = t.freeze();
+		assertNotSame(t, f);
+		assertTrue(f.isfrozen());
+		assertSame(f, f.freeze());
+		assertEquals(10, f.length());
+		assertEquals(10, f.getArrayLength());
+		assertEquals(keyCount(t), keyCount(f));
+		for (int i = 1; i <= 10; ++i)
+			assertEquals(i*10, f.get(i).toint());
+		assertEquals(200, f.get(20).toint());
+		assertEquals("rates", f.get("name").tojstring());
+		assertTrue(f.get("inner").checktable().isfrozen());
+		assertEquals(1, f.get("inner").get("x").toint());
+		assertSame(f, f.get("self"));
+
+		t.set(1, LuaValue.valueOf("changed"));
+		inner.set("x", LuaValue.valueOf(2));
+		assertEquals(10, f.get(1).toint());
+		assertEquals(1, f.get("inner").get("x").toint());
+	}
+
+	@Test
+	void testFrozenTableRejectsWrites() {
+		LuaTable t = new_Table();
+		t.set(1, LuaValue.valueOf("a"));
+		t.set("k", LuaValue.valueOf("v"));
+		LuaTable f = t.freeze();
+		assertThrows(LuaError.class, () -> f.rawset(1, LuaValue.valueOf("b")));
+		assertThrows(LuaError.class, () -> f.rawset("k", LuaValue.NIL));
+		assertThrows(LuaError.class, () -> f.set(2, LuaValue.valueOf("c")));
+		assertThrows(LuaError.class, () -> f.insert(0, LuaValue.valueOf("c")));
+		assertThrows(LuaError.class, () -> f.remove(1));
+		assertThrows(LuaError.class, () -> f.setmetatable(new LuaTable()));
+		assertEquals("a", f.get(1).tojstring());
+		assertEquals("v", f.get("k").tojstring());
+		assertEquals(1, f.length());
+	}
+
+	@Test
+	void testFreezeKeepsMetatable() {
+		LuaTable mt = new LuaTable();
+		mt.set(LuaValue.INDEX, LuaValue.tableOf(new LuaValue[] { LuaValue.valueOf("d"), LuaValue.valueOf(4) }));
+		LuaTable t = new_Table();
+		t.setmetatable(mt);
+		LuaTable f = t.freeze();
+		assertEquals(4, f.get("d").toint());
+		assertTrue(f.getmetatable().checktable().isfrozen());
+
+		LuaTable weak = new_Table();
+		weak.setmetatable(LuaValue.tableOf(new LuaValue[] { LuaValue.MODE, LuaValue.valueOf("k") }));
+		assertThrows(LuaError.class, weak::freeze);
+	}
+
+	@Test
+	void testIndexCacheSeesUpdates() {
+		LuaTable t = new_Table();
+		LuaString a = LuaValue.valueOf("a");
+		IndexCache cache = new IndexCache(a);
+		assertEquals(LuaValue.NIL, cache.get(t));
+		t.set(a, LuaValue.valueOf(1));
+		assertEquals(LuaValue.valueOf(1), cache.get(t));
+		assertEquals(LuaValue.valueOf(1), cache.get(t));
+		t.set(a, LuaValue.valueOf(2));
+		assertEquals(LuaValue.valueOf(2), cache.get(t));
+		for (int i = 0; i < 100; ++i)
+			t.set("k"+i, LuaValue.valueOf(i));
+		assertEquals(LuaValue.valueOf(2), cache.get(t));
+		t.set(a, LuaValue.NIL);
+		assertEquals(LuaValue.NIL, cache.get(t));
+	}
+
+	@Test
+	void testIndexCacheRelinksOnOtherTables() {
+		LuaString a = LuaValue.valueOf("a");
+		LuaTable t1 = LuaValue.tableOf(new LuaValue[] { a, LuaValue.valueOf(1) });
+		LuaTable t2 = LuaValue.tableOf(new LuaValue[] { a, LuaValue.valueOf(2) });
+		IndexCache cache = new IndexCache(a);
+		assertEquals(LuaValue.valueOf(1), cache.get(t1));
+		assertEquals(LuaValue.valueOf(2), cache.get(t2));
+		assertEquals(LuaValue.valueOf(1), cache.get(t1.freeze()));
+		assertEquals(LuaValue.valueOf(2), cache.get(t2));
+	}
+
+	@Test
+	void testIndexCacheFollowsMetatable() {
+		LuaString a = LuaValue.valueOf("a");
+		LuaTable t = new_Table();
+		t.set(a, LuaValue.valueOf(1));
+		IndexCache cache = new IndexCache(a);
+		assertEquals(LuaValue.valueOf(1), cache.get(t));
+		LuaTable mt = new LuaTable();
+		mt.set(LuaValue.INDEX, LuaValue.tableOf(new LuaValue[] { a, LuaValue.valueOf(3) }));
+		t.setmetatable(mt);
+		t.rawset(a, LuaValue.NIL);
+		assertEquals(LuaValue.valueOf(3), cache.get(t));
+	}
 }
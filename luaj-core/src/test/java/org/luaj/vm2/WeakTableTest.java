@@ -224,6 +224,49 @@ class WeakTableTest {
 		assertEquals(3, size);
 	}
 
+	@Test
+	void testCollectedEntriesRemovedOnInsert() {
+		LuaTable t = WeakTable.make(false, true);
+		for (int i = 0; i < 1000; i++)
+			t.set("key" + i, new LuaTable());
+		assertTrue(t.getHashLength() >= 1000);
+
+		// the values are only weakly referenced, so inserts will rehash them away
+		collectGarbage();
+		LuaTable value = new LuaTable();
+		for (int i = 0; i < 10 && t.getHashLength() >= 1000; i++) {
+			t.set("live" + i, value);
+			collectGarbage();
+		}
+		assertTrue(t.getHashLength() < 64, "dead entries should have been removed");
+		assertEquals(value, t.get("live0"));
+	}
+
+	@Test
+	void testOverwrittenValuesAreNotCountedDead() {
+		LuaTable t = WeakTable.make(true, true);
+		LuaValue[] keys = new LuaValue[100];
+		LuaValue[] values = new LuaValue[100];
+		for (int i = 0; i < 100; i++) {
+			keys[i] = new LuaTable();
+			t.set(keys[i], new LuaTable());
+		}
+
+		// the replaced and removed values are garbage, but no live entry is dead
+		for (int i = 0; i < 100; i++)
+			t.set(keys[i], values[i] = new LuaTable());
+		t.set(keys[0], LuaValue.NIL);
+		collectGarbage();
+		assertFalse(t.m_metatable.collected(99));
+
+		// an entry whose key and value are both collected is counted once
+		for (int i = 0; i < 60; i++)
+			keys[i] = values[i] = null;
+		collectGarbage();
+		assertFalse(t.m_metatable.collected(198));
+		assertTrue(t.m_metatable.collected(99));
+	}
+
 	public static class MyData {
 		public final int value;
 
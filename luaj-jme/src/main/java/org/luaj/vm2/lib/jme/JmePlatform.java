@@ -139,6 +139,32 @@ public class JmePlatform {
 		return globals;
 	}
 
+	/**
+	 * Create a standard set of globals for JME in which libraries other than
+	 * the base, package and string libraries are only loaded when a script
+	 * first uses them.
+	 *
+	 * @return Table of globals with the standard JME libraries installed
+	 *         lazily
+	 * @see #standardGlobals()
+	 * @see Globals#lazyload(String, org.luaj.vm2.LuaValue)
+	 */
+	public static Globals lazyGlobals() {
+		Globals globals = new Globals();
+		globals.load(new BaseLib());
+		globals.load(new PackageLib());
+		globals.lazyload("bit32", new Bit32Lib());
+		globals.lazyload("os", new OsLib());
+		globals.lazyload("math", new MathLib());
+		globals.lazyload("table", new TableLib());
+		globals.load(new StringLib());
+		globals.lazyload("coroutine", new CoroutineLib());
+		globals.lazyload("io", new JmeIoLib());
+		LoadState.install(globals);
+		LuaC.install(globals);
+		return globals;
+	}
+
 	/**
 	 * Create standard globals including the {@link DebugLib} library.
 	 *
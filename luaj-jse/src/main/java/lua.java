@@ -37,6 +37,7 @@ import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.Bundle;
 import org.luaj.vm2.luajc.LuaJC;
 
 /**
@@ -49,6 +50,7 @@ public class lua {
 		+ "Available options are:\n" + "  -e stat  execute string 'stat'\n" + "  -l name  require library 'name'\n"
 		+ "  -i       enter interactive mode after executing 'script'\n" + "  -v       show version information\n"
 		+ "  -b      	use luajc bytecode-to-bytecode compiler (requires bcel on class path)\n"
+		+ "  -a      	use the chunks compiled ahead of time by luajc -b in jars on the class path\n"
 		+ "  -n      	nodebug - do not load debug library by default\n" + "  -p      	print the prototype\n"
 		+ "  -c enc  	use the supplied encoding 'enc' for input files\n" + "  --       stop handling options\n"
 		+ "  -        execute stdin and stop handling options";
@@ -70,6 +72,7 @@ public class lua {
 		boolean processing = true;
 		boolean nodebug = false;
 		boolean luajc = false;
+		boolean bundle = false;
 		Vector libs = null;
 		try {
 			// stateful argument processing
@@ -90,6 +93,9 @@ public class lua {
 					case 'b':
 						luajc = true;
 						break;
+					case 'a':
+						bundle = true;
+						break;
 					case 'l':
 						if (++i >= args.length)
 							usageExit();
@@ -133,6 +139,8 @@ public class lua {
 			globals = nodebug? JsePlatform.standardGlobals(): JsePlatform.debugGlobals();
 			if (luajc)
 				LuaJC.install(globals);
+			if (bundle)
+				Bundle.install(globals);
 			for (int i = 0, n = libs != null? libs.size(): 0; i < n; i++)
 				loadLibrary((String) libs.elementAt(i));
 
@@ -22,12 +22,19 @@
 ******************************************************************************/
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
@@ -35,6 +42,7 @@ import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.compiler.DumpState;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.BytecodeOptimizer;
 
 /**
  * Compiler for lua files to lua bytecode.
@@ -45,9 +53,11 @@ public class luac {
 	private static final String usage = "usage: java -cp luaj-jse.jar luac [options] [filenames].\n"
 		+ "Available options are:\n" + "  -        process stdin\n" + "  -l       list\n"
 		+ "  -o name  output to file 'name' (default is \"luac.out\")\n" + "  -p       parse only\n"
-		+ "  -s       strip debug information\n" + "  -e       little endian format for numbers\n"
+		+ "  -O       optimize bytecode\n" + "  -s       strip debug information\n" + "  -e       little endian format for numbers\n"
 		+ "  -i<n>    number format 'n', (n=0,1 or 4, default=" + DumpState.NUMBER_FORMAT_DEFAULT + ")\n"
 		+ "  -v       show version information\n" + "  -c enc  	use the supplied encoding 'enc' for input files\n"
+		+ "  -d dir   write each file, or the files in each directory, to 'dir' as .luac\n"
+		+ "  -j n     with -d, compile using n threads\n" + "  -u       with -d, only compile files newer than their output\n"
 		+ "  --       stop handling options\n";
 
 	private static void usageExit() {
@@ -58,12 +68,16 @@ public class luac {
 	private boolean list         = false;
 	private String  output       = "luac.out";
 	private boolean parseonly    = false;
+	private boolean optimize     = false;
 	private boolean stripdebug   = false;
 	private boolean littleendian = false;
 	private int     numberformat = DumpState.NUMBER_FORMAT_DEFAULT;
 	private boolean versioninfo  = false;
 	private boolean processing   = true;
 	private String  encoding     = null;
+	private String  destdir      = null;
+	private int     threads      = 1;
+	private boolean update       = false;
 
 	public static void main(String[] args) throws IOException {
 		new luac(args);
@@ -92,6 +106,9 @@ public class luac {
 					case 'p':
 						parseonly = true;
 						break;
+					case 'O':
+						optimize = true;
+						break;
 					case 's':
 						stripdebug = true;
 						break;
@@ -111,6 +128,21 @@ public class luac {
 							usageExit();
 						encoding = args[i];
 						break;
+					case 'd':
+						if (++i >= args.length)
+							usageExit();
+						destdir = args[i];
+						break;
+					case 'j':
+						if (++i >= args.length)
+							usageExit();
+						threads = Integer.parseInt(args[i]);
+						if (threads < 1)
+							usageExit();
+						break;
+					case 'u':
+						update = true;
+						break;
 					case '-':
 						if (args[i].length() > 2)
 							usageExit();
@@ -127,6 +159,12 @@ public class luac {
 			if (versioninfo)
 				System.out.println(version);
 
+			// compile each file to its own output
+			if (destdir != null) {
+				processBatch(args);
+				return;
+			}
+
 			// open output file
 			// process input files
 			try (OutputStream fos = new FileOutputStream(output)) {
@@ -158,6 +196,76 @@ public class luac {
 		}
 	}
 
+	private void processBatch(String[] args) throws IOException {
+		final List<File[]> files = new ArrayList<File[]>();
+		processing = true;
+		for (int i = 0; i < args.length; i++) {
+			if (!processing || !args[i].startsWith("-")) {
+				final File f = new File(args[i]);
+				if (f.isDirectory())
+					collectFiles(f, new File(destdir), files);
+				else
+					files.add(new File[] { f, new File(destdir, output(f.getName())) });
+			} else if (args[i].length() > 1) {
+				switch (args[i].charAt(1)) {
+				case 'o':
+				case 'c':
+				case 'd':
+				case 'j':
+					++i;
+					break;
+				case '-':
+					processing = false;
+					break;
+				}
+			}
+		}
+
+		final ThreadLocal<Globals> globals = ThreadLocal.withInitial(JsePlatform::standardGlobals);
+		final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final File[] f : files) {
+			if (update && f[1].isFile() && f[1].lastModified() >= f[0].lastModified())
+				continue;
+			tasks.add(() -> {
+				String name = f[0].getPath();
+				f[1].getAbsoluteFile().getParentFile().mkdirs();
+				try (OutputStream out = new FileOutputStream(f[1])) {
+					processScript(globals.get(), new FileInputStream(f[0]), name.substring(0, name.length()-4), out);
+				}
+				return null;
+			});
+		}
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (Future<Object> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			e.getCause().printStackTrace(System.err);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void collectFiles(File dir, File outdir, List<File[]> files) {
+		final File[] list = dir.listFiles();
+		if (list == null)
+			return;
+		for (File f : list) {
+			if (f.isDirectory())
+				collectFiles(f, new File(outdir, f.getName()), files);
+			else if (f.getName().endsWith(".lua"))
+				files.add(new File[] { f, new File(outdir, output(f.getName())) });
+		}
+	}
+
+	private static String output(String name) {
+		return (name.endsWith(".lua")? name.substring(0, name.length()-4): name) + ".luac";
+	}
+
 	private void processScript(Globals globals, InputStream script, String chunkname, OutputStream out)
 		throws IOException {
 		try {
@@ -166,10 +274,14 @@ public class luac {
 			Prototype chunk = encoding != null
 				? globals.compilePrototype(new InputStreamReader(script, encoding), chunkname)
 				: globals.compilePrototype(script, chunkname);
+			if (optimize)
+				chunk = BytecodeOptimizer.optimize(chunk);
 
 			// list the chunk
 			if (list)
-				Print.printCode(chunk);
+				synchronized (Print.class) {
+					Print.printCode(chunk);
+				}
 
 			// write out the chunk
 			if (!parseonly) {
@@ -21,19 +21,33 @@
 * THE SOFTWARE.
 ******************************************************************************/
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.Bundle;
 import org.luaj.vm2.luajc.LuaJC;
 
 /**
@@ -45,9 +59,13 @@ public class luajc {
 
 	private static final String usage = "usage: java -cp luaj-jse.jar,bcel-5.2.jar luajc [options] fileordir [, fileordir ...]\n"
 		+ "Available options are:\n" + "  -        process stdin\n" + "  -s src	source directory\n"
-		+ "  -d dir	destination directory\n" + "  -p pkg	package prefix to apply to all classes\n"
+		+ "  -d dir	destination directory, or jar file if it ends with .jar\n"
+		+ "  -p pkg	package prefix to apply to all classes\n"
 		+ "  -m		generate main(String[]) function for JSE\n" + "  -r		recursively compile all\n"
 		+ "  -l		load classes to verify generated bytecode\n"
+		+ "  -j n	compile using n threads, including the functions within a file\n"
+		+ "  -u		only compile files newer than their output\n"
+		+ "  -b		bundle: add a chunk index to the jar, for org.luaj.vm2.luajc.Bundle\n"
 		+ "  -c enc  	use the supplied encoding 'enc' for input files\n" + "  -v   	verbose\n";
 
 	private static void usageExit() {
@@ -63,8 +81,19 @@ public class luajc {
 	private boolean       loadclasses = false;
 	private String        encoding    = null;
 	private String        pkgprefix   = null;
+	private int           threads     = 1;
+	private boolean       update      = false;
+	private boolean       bundle      = false;
 	private final List    files       = new ArrayList();
-	private final Globals globals;
+
+	/* classes of the jar being written, and of the one being replaced */
+	private final Map<String, byte[]> jarclasses = new TreeMap<String, byte[]>();
+	private final Map<String, Long>   jartimes   = new TreeMap<String, Long>();
+
+	/* lines of the chunk index of a bundle, by class name */
+	private final Map<String, String> jarindex = new TreeMap<String, String>();
+
+	private final ThreadLocal<Globals> globals = ThreadLocal.withInitial(JsePlatform::standardGlobals);
 
 	public static void main(String[] args) throws IOException {
 		new luajc(args);
@@ -113,6 +142,19 @@ public class luajc {
 				case 'v':
 					verbose = true;
 					break;
+				case 'j':
+					if (++i >= args.length)
+						usageExit();
+					threads = Integer.parseInt(args[i]);
+					if (threads < 1)
+						usageExit();
+					break;
+				case 'u':
+					update = true;
+					break;
+				case 'b':
+					bundle = true;
+					break;
 				default:
 					usageExit();
 					break;
@@ -145,10 +187,130 @@ public class luajc {
 			System.exit(-1);
 		}
 
+		// read the classes of the jar being replaced
+		final boolean jar = destdir.endsWith(".jar");
+		if (bundle && !jar) {
+			System.err.println("bundle needs a jar file as destination");
+			System.exit(-1);
+		}
+		if (jar && update)
+			readJar();
+
 		// process input files
-		globals = JsePlatform.standardGlobals();
-		for (Object file : files)
-			processFile((InputFile) file);
+		if (threads <= 1) {
+			for (Object file : files)
+				processFile((InputFile) file);
+		} else {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				for (Object file : files)
+					tasks.add(() -> {
+						processFile((InputFile) file);
+						return null;
+					});
+				for (Future<Object> f : pool.invokeAll(tasks))
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace(System.err);
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		// write the jar
+		if (jar)
+			writeJar();
+	}
+
+	private void readJar() throws IOException {
+		if (!new File(destdir).isFile())
+			return;
+		final JarFile jf = new JarFile(destdir);
+		try {
+			for (Enumeration<JarEntry> e = jf.entries(); e.hasMoreElements();) {
+				final JarEntry entry = e.nextElement();
+				final String name = entry.getName();
+				if (name.equals(Bundle.INDEX))
+					readIndex(jf.getInputStream(entry));
+				if (entry.isDirectory() || !name.endsWith(".class"))
+					continue;
+				final String classname = name.substring(0, name.length()-6);
+				jarclasses.put(classname, readFully(jf.getInputStream(entry)));
+				jartimes.put(classname, Long.valueOf(entry.getTime()));
+			}
+		} finally {
+			jf.close();
+		}
+	}
+
+	private void readIndex(InputStream is) throws IOException {
+		final BufferedReader r = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+		try {
+			for (String line; (line = r.readLine()) != null;) {
+				final String[] f = line.split("\t");
+				if (f.length == 3)
+					jarindex.put(f[1], line);
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	private void writeJar() throws IOException {
+		final File f = new File(destdir);
+		if (f.getAbsoluteFile().getParentFile() != null)
+			f.getAbsoluteFile().getParentFile().mkdirs();
+		final JarOutputStream jos = new JarOutputStream(new FileOutputStream(f));
+		try {
+			for (Map.Entry<String, byte[]> e : jarclasses.entrySet()) {
+				final JarEntry entry = new JarEntry(e.getKey() + ".class");
+				final Long time = jartimes.get(e.getKey());
+				if (time != null)
+					entry.setTime(time.longValue());
+				jos.putNextEntry(entry);
+				jos.write(e.getValue());
+				jos.closeEntry();
+			}
+			if (bundle) {
+				jos.putNextEntry(new JarEntry(Bundle.INDEX));
+				for (String line : jarindex.values())
+					jos.write((line + "\n").getBytes("UTF-8"));
+				jos.closeEntry();
+			}
+		} finally {
+			jos.close();
+		}
+		if (verbose)
+			System.out.println("  " + destdir + " (" + jarclasses.size() + " classes)");
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buf = new byte[4096];
+			for (int n; (n = is.read(buf)) != -1;)
+				baos.write(buf, 0, n);
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/* whether the classes of a file are newer than its source */
+	private boolean isUpToDate(InputFile inf) {
+		final String classname = LuaJC.toStandardJavaClassName(inf.luachunkname);
+		final long modified = inf.infile.lastModified();
+		if (destdir.endsWith(".jar")) {
+			synchronized (jarclasses) {
+				final Long time = jartimes.get(classname);
+				return time != null && time.longValue() >= modified;
+			}
+		}
+		final File out = new File(destdir, classname + ".class");
+		return out.isFile() && out.lastModified() >= modified;
 	}
 
 	private void collectFiles(String path) {
@@ -214,33 +376,58 @@ public class luajc {
 	}
 
 	private void processFile(InputFile inf) {
-		inf.outdir.mkdirs();
+		final boolean jar = destdir.endsWith(".jar");
+		if (update && isUpToDate(inf)) {
+			if (verbose)
+				System.out.println("chunk=" + inf.luachunkname + " is up to date");
+			return;
+		}
+		if (!jar)
+			inf.outdir.mkdirs();
 		try {
 			if (verbose)
 				System.out.println("chunk=" + inf.luachunkname + " srcfile=" + inf.srcfilename);
 
 			// create the chunk
+			final boolean parallel = threads > 1;
+			final String mainclass = LuaJC.toStandardJavaClassName(inf.luachunkname);
 			FileInputStream fis = new FileInputStream(inf.infile);
-			final Hashtable t = encoding != null
-				? LuaJC.instance.compileAll(new InputStreamReader(fis, encoding), inf.luachunkname, inf.srcfilename,
-					globals, genmain)
-				: LuaJC.instance.compileAll(fis, inf.luachunkname, inf.srcfilename, globals, genmain);
+			final Prototype p = encoding != null
+				? globals.get().compilePrototype(new InputStreamReader(fis, encoding), mainclass)
+				: globals.get().loadPrototype(fis, mainclass, "bt");
 			fis.close();
+			final Hashtable t = LuaJC.instance.compileAll(p, inf.luachunkname, inf.srcfilename, genmain, parallel);
 
-			// write out the chunk
-			for (Enumeration e = t.keys(); e.hasMoreElements();) {
-				String key = (String) e.nextElement();
-				byte[] bytes = (byte[]) t.get(key);
-				if (key.indexOf('/') >= 0) {
-					String d = (destdir != null? destdir + "/": "")+key.substring(0, key.lastIndexOf('/'));
-					new File(d).mkdirs();
+			if (jar) {
+				// add the chunk to the jar, replacing any classes from an earlier version
+				final String line = bundle? Bundle.indexLine(inf.luachunkname, p): null;
+				synchronized (jarclasses) {
+					jarclasses.keySet().removeIf(k -> k.equals(mainclass) || k.startsWith(mainclass + "$"));
+					for (Enumeration e = t.keys(); e.hasMoreElements();) {
+						String key = (String) e.nextElement();
+						byte[] bytes = (byte[]) t.get(key);
+						jarclasses.put(key, bundle? Bundle.shareable(bytes): bytes);
+						jartimes.remove(key);
+					}
+					if (bundle)
+						jarindex.put(mainclass, line);
+				}
+			} else {
+				// write out the chunk
+				for (Enumeration e = t.keys(); e.hasMoreElements();) {
+					String key = (String) e.nextElement();
+					byte[] bytes = (byte[]) t.get(key);
+					if (key.indexOf('/') >= 0) {
+						String d = (destdir != null? destdir + "/": "")+key.substring(0, key.lastIndexOf('/'));
+						new File(d).mkdirs();
+					}
+					String destpath = (destdir != null? destdir + "/": "") + key + ".class";
+					if (verbose)
+						System.out.println("  " + destpath + " (" + bytes.length + " bytes)");
+					FileOutputStream fos = new FileOutputStream(destpath);
+					fos.write(bytes);
+					fos.close();
 				}
-				String destpath = (destdir != null? destdir + "/": "") + key + ".class";
-				if (verbose)
-					System.out.println("  " + destpath + " (" + bytes.length + " bytes)");
-				FileOutputStream fos = new FileOutputStream(destpath);
-				fos.write(bytes);
-				fos.close();
 			}
 
 			// try to load the files
@@ -0,0 +1,174 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import org.luaj.vm2.ByteArraySource;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.ChunkDigest;
+import org.luaj.vm2.compiler.DumpState;
+
+/**
+ * Compiler that keeps the lua bytecode of file chunks in a cache directory.
+ *
+ * <p>
+ * Chunks whose name starts with '@', which is how {@link Globals#loadfile},
+ * the {@code loadfile} and {@code dofile} functions and the lua searcher of
+ * {@code require} name them, are looked up in the directory by a SHA-256
+ * digest of the compiler, the chunk name and the source text. On a hit the
+ * chunk is read back with {@link LoadState#undump(InputStream, String)}
+ * instead of being parsed; on a miss it is compiled and written with
+ * {@link DumpState}. Chunks with any other name are compiled directly.
+ *
+ * <pre>
+ * {
+ * 	&#64;code
+ * 	Globals globals = JsePlatform.standardGlobals();
+ * 	BytecodeCache.install(globals, new File("/var/cache/luaj"));
+ * 	globals.get("require").call("app.main");
+ * }
+ * </pre>
+ *
+ * <p>
+ * Each entry is written to a temporary file in the cache directory and then
+ * renamed into place, so other threads and other processes sharing the
+ * directory see either no entry or a complete one. Because entry names are
+ * derived from their content, concurrent writers of the same entry write
+ * identical bytes and either may win. Failures to read or write the cache are
+ * not reported; the chunk is simply compiled.
+ *
+ * <p>
+ * A cache constructed to read lazily maps each entry into memory and undumps
+ * it with {@link LoadState#undumpLazily(java.nio.ByteBuffer, String)}, so the
+ * nested functions of a chunk are decoded only when they are first used.
+ *
+ * @see Globals#compiler
+ * @see org.luaj.vm2.compiler.PrototypeCache
+ */
+public class BytecodeCache implements Globals.Compiler {
+
+	private final Globals.Compiler compiler;
+	private final File             directory;
+	private final boolean          lazy;
+
+	/**
+	 * Install a cache in front of the compiler of a {@link Globals}.
+	 *
+	 * @param globals   the Globals into which this is to be installed.
+	 * @param directory the cache directory, created if it does not exist.
+	 */
+	public static void install(Globals globals, File directory) {
+		globals.compiler = new BytecodeCache(globals.compiler, directory);
+	}
+
+	/**
+	 * Construct a cache in front of a compiler.
+	 *
+	 * @param compiler  the compiler used on a miss.
+	 * @param directory the cache directory, created if it does not exist.
+	 */
+	public BytecodeCache(Globals.Compiler compiler, File directory) {
+		this(compiler, directory, false);
+	}
+
+	/**
+	 * Construct a cache in front of a compiler.
+	 *
+	 * @param compiler  the compiler used on a miss.
+	 * @param directory the cache directory, created if it does not exist.
+	 * @param lazy      whether cached chunks are mapped into memory and their
+	 *                  nested functions decoded on first use.
+	 */
+	public BytecodeCache(Globals.Compiler compiler, File directory, boolean lazy) {
+		if (compiler == null)
+			throw new IllegalArgumentException("no compiler");
+		this.compiler = compiler;
+		this.directory = directory;
+		this.lazy = lazy;
+	}
+
+	/** The directory holding the cached chunks. */
+	public File directory() { return directory; }
+
+	@Override
+	public Prototype compile(InputStream stream, String chunkname) throws IOException {
+		if (!chunkname.startsWith("@"))
+			return compiler.compile(stream, chunkname);
+		final ByteArraySource source = ChunkDigest.source(stream);
+		final File entry = new File(directory, digest(chunkname, source) + ".luac");
+		if (entry.isFile()) {
+			final Prototype p = read(entry, chunkname);
+			if (p != null)
+				return p;
+		}
+		final Prototype p = compiler.compile(source, chunkname);
+		write(entry, p);
+		return p;
+	}
+
+	private Prototype read(File entry, String chunkname) {
+		try {
+			if (lazy) {
+				final FileChannel fc = FileChannel.open(entry.toPath(), StandardOpenOption.READ);
+				try {
+					return LoadState.undumpLazily(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), chunkname);
+				} finally {
+					fc.close();
+				}
+			}
+			final InputStream is = new BufferedInputStream(Files.newInputStream(entry.toPath()));
+			try {
+				return LoadState.undump(is, chunkname);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (LuaError e) {
+			return null;
+		}
+	}
+
+	private void write(File entry, final Prototype p) {
+		CacheFile.write(entry, os -> DumpState.dump(p, os, false, DumpState.NUMBER_FORMAT_NUM_PATCH_INT32, false));
+	}
+
+	private String digest(String chunkname, ByteArraySource source) {
+		final MessageDigest md = ChunkDigest.sha256();
+		ChunkDigest.update(md, compiler.getClass().getName());
+		ChunkDigest.update(md, chunkname);
+		md.update((byte) LoadState.LUAC_VERSION);
+		ChunkDigest.update(md, source);
+		return ChunkDigest.hex(md.digest());
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writer of the entries of a cache directory, such as those of
+ * {@link BytecodeCache} and {@link org.luaj.vm2.luajc.ClassCache}.
+ * <p>
+ * Each entry is written to a temporary file and renamed into place, so other
+ * threads and processes sharing the directory see either no entry or a
+ * complete one. Failures are not reported, since the entry can be produced
+ * again.
+ */
+public final class CacheFile {
+
+	/** The contents of an entry. */
+	public interface Content {
+		/** Write the contents to a stream, which is closed afterwards. */
+		void write(OutputStream os) throws IOException;
+	}
+
+	private CacheFile() {}
+
+	/**
+	 * Write an entry, creating its directory if it does not exist.
+	 *
+	 * @param entry   the file of the entry
+	 * @param content the contents of the entry
+	 * @return true if the entry was written
+	 */
+	public static boolean write(File entry, Content content) {
+		final File directory = entry.getParentFile();
+		Path tmp = null;
+		try {
+			directory.mkdirs();
+			tmp = Files.createTempFile(directory.toPath(), entry.getName(), ".tmp");
+			final OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp));
+			try {
+				content.write(os);
+			} finally {
+				os.close();
+			}
+			try {
+				Files.move(tmp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			// the contents could not be produced, e.g. a prototype with an unsupported constant
+			return false;
+		} finally {
+			if (tmp != null)
+				tmp.toFile().delete();
+		}
+	}
+}
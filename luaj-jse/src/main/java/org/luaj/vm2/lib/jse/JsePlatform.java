@@ -124,6 +124,33 @@ public class JsePlatform {
 		return globals;
 	}
 
+	/**
+	 * Create a standard set of globals for JSE in which libraries other than
+	 * the base, package and string libraries are only loaded when a script
+	 * first uses them.
+	 *
+	 * @return Table of globals with the standard JSE libraries installed
+	 *         lazily
+	 * @see #standardGlobals()
+	 * @see Globals#lazyload(String, LuaValue)
+	 */
+	public static Globals lazyGlobals() {
+		Globals globals = new Globals();
+		globals.load(new JseBaseLib());
+		globals.load(new PackageLib());
+		globals.lazyload("bit32", new Bit32Lib());
+		globals.lazyload("table", new TableLib());
+		globals.load(new JseStringLib());
+		globals.lazyload("coroutine", new CoroutineLib());
+		globals.lazyload("math", new JseMathLib());
+		globals.lazyload("io", new JseIoLib());
+		globals.lazyload("os", new JseOsLib());
+		globals.lazyload("luajava", new LuajavaLib());
+		LoadState.install(globals);
+		LuaC.install(globals);
+		return globals;
+	}
+
 	/**
 	 * Create standard globals including the {@link DebugLib} library.
 	 *
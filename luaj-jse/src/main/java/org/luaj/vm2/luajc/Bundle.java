@@ -0,0 +1,252 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.ChunkDigest;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.VarArgFunction;
+
+/**
+ * Chunks compiled ahead of time by {@code luajc -b} into jars on the class
+ * path.
+ * <p>
+ * Such a jar holds the classes of its chunks and an index, the resource
+ * {@link #INDEX}, with one line per chunk giving its module name, the name of
+ * the class of its main function, and a digest of its prototype. Installing a
+ * bundle adds a searcher to {@code package.searchers} that finds modules in the
+ * index, so {@code require} creates them without reading, compiling or
+ * generating any code, and makes the bundle the loader of the globals, which
+ * uses the compiled classes for chunks loaded from a source that has not
+ * changed since, and passes the others to the loader it replaces.
+ *
+ * <pre>
+ * {
+ * 	&#64;code
+ * 	Globals globals = JsePlatform.standardGlobals();
+ * 	Bundle.install(globals);
+ * 	globals.get("require").call("app.main");
+ * }
+ * </pre>
+ *
+ * <p>
+ * The classes are loaded by the class loader holding the jar, normally the
+ * application class loader, and their class files have a version that class
+ * data sharing accepts. Starting a service once with
+ * {@code -XX:ArchiveClassesAtExit=app.jsa} and then with
+ * {@code -XX:SharedArchiveFile=app.jsa} therefore maps the classes of every
+ * module it required from the archive.
+ *
+ * @see LuaJC
+ */
+public class Bundle implements Globals.Loader {
+
+	/** Name of the resource holding the index of the chunks in a jar. */
+	public static final String INDEX = "META-INF/luaj/bundle.index";
+
+	/** Version of the class files in a jar, the oldest that class data sharing archives. */
+	static final int CLASS_VERSION = 50;
+
+	private final ClassLoader    classloader;
+	private final Globals.Loader fallback;
+
+	/* entries by module name, and by class name */
+	private final Map<String, Entry> modules = new HashMap<String, Entry>();
+	private final Map<String, Entry> classes = new HashMap<String, Entry>();
+
+	private static final class Entry {
+		final String     classname;
+		final String     digest;
+		volatile Class<?> c;
+
+		Entry(String classname, String digest) {
+			this.classname = classname;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Install the bundles on the class path of a class loader in a set of
+	 * globals, as its loader and as a searcher of its package library.
+	 *
+	 * @param globals     the Globals into which this is to be installed.
+	 * @param classloader the class loader whose jars are searched for an
+	 *                    {@link #INDEX}.
+	 * @return the installed bundle
+	 */
+	public static Bundle install(Globals globals, ClassLoader classloader) throws IOException {
+		final Bundle bundle = new Bundle(classloader, globals.loader);
+		globals.loader = bundle;
+		final LuaValue searchers = globals.get("package").get("searchers");
+		if (searchers.istable())
+			((LuaTable) searchers).insert(2, bundle.new searcher(globals));
+		return bundle;
+	}
+
+	/**
+	 * Install the bundles on the class path of the class loader of luaj.
+	 *
+	 * @see #install(Globals, ClassLoader)
+	 */
+	public static Bundle install(Globals globals) throws IOException {
+		return install(globals, Bundle.class.getClassLoader());
+	}
+
+	/**
+	 * Construct a bundle of all the chunks indexed in the jars of a class
+	 * loader. Where two index the same module, the one found first is used.
+	 *
+	 * @param classloader the class loader to search for an {@link #INDEX}.
+	 * @param fallback    the loader of chunks not in the bundle, or null to
+	 *                    interpret them.
+	 */
+	public Bundle(ClassLoader classloader, Globals.Loader fallback) throws IOException {
+		this.classloader = classloader;
+		this.fallback = fallback;
+		for (Enumeration<URL> e = classloader.getResources(INDEX); e.hasMoreElements();) {
+			final BufferedReader r = new BufferedReader(
+				new InputStreamReader(e.nextElement().openStream(), StandardCharsets.UTF_8));
+			try {
+				for (String line; (line = r.readLine()) != null;) {
+					final String[] f = line.split("\t");
+					if (f.length != 3 || modules.containsKey(f[0]) || classes.containsKey(f[1]))
+						continue;
+					final Entry entry = new Entry(f[1], f[2]);
+					modules.put(f[0], entry);
+					classes.put(f[1], entry);
+				}
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	/** Whether a module is in the bundle. */
+	public boolean contains(String modname) {
+		return modules.containsKey(modname);
+	}
+
+	/**
+	 * Create the main function of a module in the bundle.
+	 *
+	 * @param modname the module name, such as {@code "app.main"}
+	 * @param env     the environment of the function
+	 * @return the function, or null if the module is not in the bundle
+	 */
+	public LuaFunction module(String modname, LuaValue env) {
+		final Entry entry = modules.get(modname);
+		return entry != null? newInstance(entry, env): null;
+	}
+
+	@Override
+	public LuaFunction load(Prototype p, String chunkname, LuaValue env) throws IOException {
+		final String classname = LuaJC.toStandardJavaClassName(LuaJC.toStandardLuaFileName(chunkname));
+		final Entry entry = classes.get(classname);
+		if (entry != null && entry.digest.equals(digest(p)))
+			return newInstance(entry, env);
+		return fallback != null? fallback.load(p, chunkname, env): new LuaClosure(p, env);
+	}
+
+	private LuaFunction newInstance(Entry entry, LuaValue env) {
+		try {
+			Class<?> c = entry.c;
+			if (c == null)
+				entry.c = c = Class.forName(entry.classname, true, classloader);
+			return JavaLoader.newInstance(c, env);
+		} catch (Exception e) {
+			throw new IllegalStateException("bad bundle: " + entry.classname + ": " + e);
+		}
+	}
+
+	/**
+	 * Searcher of {@code package.searchers} for the modules of a bundle. Passes
+	 * the class name of the module to its main function after the module name.
+	 */
+	public class searcher extends VarArgFunction {
+		private final Globals globals;
+
+		public searcher(Globals globals) {
+			this.globals = globals;
+		}
+
+		@Override
+		public Varargs invoke(Varargs args) {
+			final String name = args.checkjstring(1);
+			final Entry entry = modules.get(name);
+			if (entry == null)
+				return valueOf("\n\tno module '" + name + "' in bundle");
+			return varargsOf(newInstance(entry, globals), valueOf(entry.classname));
+		}
+	}
+
+	/**
+	 * The line of the {@link #INDEX} for a chunk.
+	 *
+	 * @param luachunkname the chunk name, such as {@code "app/main"}
+	 * @param p            the prototype of the chunk
+	 */
+	public static String indexLine(String luachunkname, Prototype p) throws IOException {
+		final String stub = LuaJC.toStandardLuaFileName(luachunkname);
+		final String modname = stub.substring(0, stub.length()-4).replace('/', '.');
+		return modname + "\t" + LuaJC.toStandardJavaClassName(luachunkname) + "\t" + digest(p);
+	}
+
+	/**
+	 * Set the version of a class file generated for a bundle. Unlike the older
+	 * version that is generated, class data sharing archives it, and the class,
+	 * which has no stack map tables, is still verified by type inference.
+	 */
+	public static byte[] shareable(byte[] classfile) {
+		final byte[] b = classfile.clone();
+		b[4] = 0;
+		b[5] = 0;
+		b[6] = (byte) (CLASS_VERSION>>8);
+		b[7] = (byte) CLASS_VERSION;
+		return b;
+	}
+
+	/*
+	 * digest of a prototype as dumped without debug information, so that the
+	 * chunk name given when compiling does not matter
+	 */
+	static String digest(Prototype p) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DumpState.dump(p, baos, true);
+		return ChunkDigest.hex(ChunkDigest.sha256().digest(baos.toByteArray()));
+	}
+}
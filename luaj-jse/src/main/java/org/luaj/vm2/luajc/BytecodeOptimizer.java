@@ -0,0 +1,954 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LocVars;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+
+/**
+ * Optimizing pass over the lua bytecode produced by {@link LuaC}.
+ * <p>
+ * The code generator in {@link LuaC} folds constants within one expression
+ * but otherwise emits straightforward bytecode. This class rewrites a compiled
+ * {@link Prototype} tree in place with a fixed pipeline of passes, repeated
+ * until none of them finds anything more to do:
+ * <ul>
+ * <li>jump threading, so that a jump to a jump goes straight to the final
+ * target, and removal of jumps to the next instruction</li>
+ * <li>constant propagation across basic blocks, which substitutes known
+ * constants for register operands, folds arithmetic and {@code not} on
+ * them, and resolves conditional branches whose outcome is known</li>
+ * <li>removal of redundant {@code MOVE} instructions</li>
+ * <li>merging of adjacent {@code LOADNIL} instructions</li>
+ * <li>removal of stores to temporary registers that are never read</li>
+ * <li>removal of unreachable instructions</li>
+ * </ul>
+ * The result is ordinary lua 5.2 bytecode with consistent line and local
+ * variable information, so it may be interpreted, dumped with
+ * {@link org.luaj.vm2.compiler.DumpState} or compiled by {@link LuaJC}.
+ * <p>
+ * Registers captured as upvalues are never treated as constant or dead. Named
+ * locals are never removed, but a constant local may be replaced by its value
+ * where it is read, so a change made with {@code debug.setlocal} may not be
+ * seen by the optimized code.
+ * <p>
+ * To optimize everything a {@link Globals} compiles, install the optimizer in
+ * front of its compiler:
+ *
+ * <pre>
+ *  {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * BytecodeOptimizer.install(globals);
+ * globals.load("local DEBUG = false if DEBUG then print('x') end").call();
+ * }
+ * </pre>
+ *
+ * Prototypes must be optimized before they are first used.
+ *
+ * @see LuaC
+ * @see BasicBlock
+ */
+public class BytecodeOptimizer implements Globals.Compiler {
+
+	/** Upper bound on the rounds of the pass pipeline per prototype. */
+	private static final int MAX_ROUNDS = 8;
+
+	private final Globals.Compiler compiler;
+
+	/**
+	 * Install the optimizer in front of the current compiler of a
+	 * {@link Globals}.
+	 *
+	 * @param globals the Globals into which this is to be installed.
+	 */
+	public static void install(Globals globals) {
+		globals.compiler = new BytecodeOptimizer(globals.compiler != null? globals.compiler: LuaC.instance);
+	}
+
+	/**
+	 * Construct an optimizer for the output of a compiler.
+	 *
+	 * @param compiler the compiler producing the prototypes to optimize.
+	 */
+	public BytecodeOptimizer(Globals.Compiler compiler) {
+		this.compiler = compiler;
+	}
+
+	@Override
+	public Prototype compile(InputStream stream, String chunkname) throws IOException {
+		return optimize(compiler.compile(stream, chunkname));
+	}
+
+	/**
+	 * Optimize a prototype and all its nested prototypes in place.
+	 *
+	 * @param p the prototype to optimize
+	 * @return p
+	 */
+	public static Prototype optimize(Prototype p) {
+		p.decode();
+		for (int i = 0; i < p.p.length; i++)
+			optimize(p.p[i]);
+		new Pass(p).run();
+		return p;
+	}
+
+	/** The passes applied to one prototype. */
+	private static final class Pass {
+		private final Prototype p;
+		private final int       nreg;
+		private final boolean[] captured;
+		private int[]           code;
+		private boolean[]       removed;
+
+		Pass(Prototype p) {
+			this.p = p;
+			this.nreg = p.maxstacksize;
+			this.captured = new boolean[nreg];
+			this.code = p.code;
+		}
+
+		void run() {
+			if (code.length == 0)
+				return;
+			findCapturedRegisters();
+			for (int round = 0; round < MAX_ROUNDS; round++) {
+				boolean changed = threadJumps();
+				changed |= propagateConstants();
+				changed |= removeRedundantMoves();
+				changed |= mergeLoadNils();
+				changed |= removeDeadStores();
+				changed |= removeUnreachable();
+				if (!changed)
+					break;
+			}
+		}
+
+		private void findCapturedRegisters() {
+			for (int pc = 0; pc < code.length; pc++) {
+				if (Lua.GET_OPCODE(code[pc]) != Lua.OP_CLOSURE)
+					continue;
+				final Prototype child = p.p[Lua.GETARG_Bx(code[pc])];
+				for (int u = 0; u < child.upvalues.length; u++)
+					if (child.upvalues[u].instack && child.upvalues[u].idx < nreg)
+						captured[child.upvalues[u].idx] = true;
+			}
+		}
+
+		// ===================== instruction helpers =====================
+
+		private static boolean isTest(int op) {
+			switch (op) {
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+			case Lua.OP_TEST:
+			case Lua.OP_TESTSET:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/** True if the instruction at pc only executes as part of the one before it. */
+		private boolean isPinned(int pc) {
+			if (Lua.GET_OPCODE(code[pc]) == Lua.OP_EXTRAARG)
+				return true;
+			if (pc == 0)
+				return false;
+			final int prev = code[pc-1];
+			final int op = Lua.GET_OPCODE(prev);
+			return isTest(op) || op == Lua.OP_TFORCALL || op == Lua.OP_LOADBOOL && Lua.GETARG_C(prev) != 0;
+		}
+
+		private static int jumpTarget(int[] code, int pc) {
+			return pc+1+Lua.GETARG_sBx(code[pc]);
+		}
+
+		private static int setsBx(int i, int sbx) {
+			return i & ~(Lua.MAXARG_Bx<<Lua.POS_Bx) | (sbx+Lua.MAXARG_sBx)<<Lua.POS_Bx;
+		}
+
+		private static int setA(int i, int a) {
+			return i & ~(Lua.MAXARG_A<<Lua.POS_A) | a<<Lua.POS_A;
+		}
+
+		private static int setB(int i, int b) {
+			return i & ~(Lua.MAXARG_B<<Lua.POS_B) | b<<Lua.POS_B;
+		}
+
+		private static int setC(int i, int c) {
+			return i & ~(Lua.MAXARG_C<<Lua.POS_C) | c<<Lua.POS_C;
+		}
+
+		private static int createABC(int op, int a, int b, int c) {
+			return op<<Lua.POS_OP | a<<Lua.POS_A | b<<Lua.POS_B | c<<Lua.POS_C;
+		}
+
+		private static int createABx(int op, int a, int bx) {
+			return op<<Lua.POS_OP | a<<Lua.POS_A | bx<<Lua.POS_Bx;
+		}
+
+		/** Instructions that begin a basic block because something branches to them. */
+		private boolean[] findTargets() {
+			final boolean[] target = new boolean[code.length];
+			try {
+				BasicBlock.visitBranches(p, new BasicBlock.BranchVisitor(new boolean[code.length]) {
+					@Override
+					public void visitBranch(int frompc, int topc) {
+						if (topc < target.length)
+							target[topc] = true;
+					}
+				});
+			} catch (IllegalArgumentException e) {
+				Arrays.fill(target, true);
+			}
+			return target;
+		}
+
+		private void remove(int pc) {
+			if (removed == null)
+				removed = new boolean[code.length];
+			removed[pc] = true;
+		}
+
+		/**
+		 * Drop the instructions marked as removed, adjusting branch offsets,
+		 * line information and local variable ranges. A branch to a removed
+		 * instruction goes to the next remaining one.
+		 */
+		private boolean compact() {
+			if (removed == null)
+				return false;
+			final int n = code.length;
+			final int[] map = new int[n+1];
+			int m = 0;
+			for (int pc = 0; pc < n; pc++) {
+				map[pc] = m;
+				if (!removed[pc])
+					++m;
+			}
+			map[n] = m;
+			final int[] ncode = new int[m];
+			final int[] lineinfo = p.getlineinfo();
+			final boolean lines = lineinfo != null && lineinfo.length == n;
+			final int[] nlineinfo = lines? new int[m]: lineinfo;
+			for (int pc = 0; pc < n; pc++) {
+				if (removed[pc])
+					continue;
+				int i = code[pc];
+				switch (Lua.GET_OPCODE(i)) {
+				case Lua.OP_JMP:
+				case Lua.OP_FORLOOP:
+				case Lua.OP_FORPREP:
+				case Lua.OP_TFORLOOP:
+					i = setsBx(i, map[jumpTarget(code, pc)]-map[pc]-1);
+					break;
+				case Lua.OP_LOADBOOL:
+					// once the skipped instruction is gone, skipping means falling through
+					if (Lua.GETARG_C(i) != 0 && pc+1 < n && removed[pc+1])
+						i = setC(i, 0);
+					break;
+				}
+				ncode[map[pc]] = i;
+				if (lines)
+					nlineinfo[map[pc]] = lineinfo[pc];
+			}
+			if (p.locvars != null)
+				for (int v = 0; v < p.locvars.length; v++) {
+					final LocVars lv = p.locvars[v];
+					lv.startpc = map[Math.min(lv.startpc, n)];
+					lv.endpc = map[Math.min(lv.endpc, n)];
+				}
+			p.code = code = ncode;
+			p.lineinfo = nlineinfo;
+			removed = null;
+			return true;
+		}
+
+		// ===================== jump threading =====================
+
+		private boolean threadJumps() {
+			boolean changed = false;
+			final int n = code.length;
+			for (int pc = 0; pc < n; pc++) {
+				int i = code[pc];
+				if (Lua.GET_OPCODE(i) != Lua.OP_JMP)
+					continue;
+				int a = Lua.GETARG_A(i);
+				int t = jumpTarget(code, pc);
+				for (int hops = 0; t < n && t != pc && Lua.GET_OPCODE(code[t]) == Lua.OP_JMP && hops < n; hops++) {
+					final int a2 = Lua.GETARG_A(code[t]);
+					if (a2 != 0)
+						a = a == 0? a2: Math.min(a, a2);
+					t = jumpTarget(code, t);
+				}
+				if (t != jumpTarget(code, pc) || a != Lua.GETARG_A(i)) {
+					code[pc] = i = setsBx(setA(i, a), t-pc-1);
+					changed = true;
+				}
+				if (t == pc+1 && a == 0) {
+					if (!isPinned(pc)) {
+						remove(pc);
+					} else if (Lua.GET_OPCODE(code[pc-1]) == Lua.OP_TEST && !isPinned(pc-1)) {
+						remove(pc-1);
+						remove(pc);
+					}
+				}
+			}
+			return compact() || changed;
+		}
+
+		// ===================== constant propagation =====================
+
+		private boolean changed;
+
+		private boolean propagateConstants() {
+			final BasicBlock[] blocks;
+			try {
+				blocks = BasicBlock.findBasicBlocks(p);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			final int n = code.length;
+			final LuaValue[][] in = new LuaValue[n][];
+			in[0] = new LuaValue[nreg];
+			final BasicBlock[] work = new BasicBlock[n+1];
+			int nwork = 0;
+			final boolean[] queued = new boolean[n];
+			work[nwork++] = blocks[0];
+			queued[0] = true;
+			while ( nwork > 0 ) {
+				final BasicBlock b = work[--nwork];
+				queued[b.pc0] = false;
+				final LuaValue[] s = in[b.pc0].clone();
+				for (int pc = b.pc0; pc <= b.pc1; pc++)
+					step(s, pc, false);
+				if (b.next == null)
+					continue;
+				for (int j = 0; j < b.next.length; j++) {
+					final BasicBlock succ = b.next[j];
+					if (meet(in, succ.pc0, s) && !queued[succ.pc0]) {
+						queued[succ.pc0] = true;
+						work[nwork++] = succ;
+					}
+				}
+			}
+			changed = false;
+			for (int pc0 = 0; pc0 < n; pc0 = blocks[pc0].pc1+1) {
+				if (in[pc0] == null)
+					continue;
+				final LuaValue[] s = in[pc0].clone();
+				for (int pc = pc0; pc <= blocks[pc0].pc1; pc++)
+					if (removed == null || !removed[pc])
+						step(s, pc, true);
+			}
+			return compact() || changed;
+		}
+
+		private boolean meet(LuaValue[][] in, int pc0, LuaValue[] s) {
+			final LuaValue[] t = in[pc0];
+			if (t == null) {
+				in[pc0] = s.clone();
+				return true;
+			}
+			boolean c = false;
+			for (int r = 0; r < nreg; r++)
+				if (t[r] != null && (s[r] == null || !same(t[r], s[r]))) {
+					t[r] = null;
+					c = true;
+				}
+			return c;
+		}
+
+		private static boolean same(LuaValue a, LuaValue b) {
+			return a.type() == b.type() && a.raweq(b);
+		}
+
+		private void set(LuaValue[] s, int r, LuaValue v) {
+			if (r < nreg)
+				s[r] = captured[r]? null: v;
+		}
+
+		private void kill(LuaValue[] s, int from, int to) {
+			for (int r = from; r <= to && r < nreg; r++)
+				s[r] = null;
+		}
+
+		private LuaValue rkvalue(LuaValue[] s, int x) {
+			return Lua.ISK(x)? p.k[Lua.INDEXK(x)]: x < nreg? s[x]: null;
+		}
+
+		/** Replace a register operand holding a known constant by the constant. */
+		private int rk(LuaValue[] s, int x, boolean rewrite) {
+			if (!rewrite || Lua.ISK(x) || x >= nreg || s[x] == null)
+				return x;
+			final int idx = constant(s[x], Lua.MAXINDEXRK);
+			if (idx < 0)
+				return x;
+			changed = true;
+			return Lua.RKASK(idx);
+		}
+
+		/** Index of a constant in the constant table, adding it if needed. */
+		private int constant(LuaValue v, int max) {
+			final LuaValue[] k = p.k;
+			for (int i = 0; i < k.length && i <= max; i++)
+				if (same(k[i], v))
+					return i;
+			if (k.length > max)
+				return -1;
+			final LuaValue[] nk = new LuaValue[k.length+1];
+			System.arraycopy(k, 0, nk, 0, k.length);
+			nk[k.length] = v;
+			p.k = nk;
+			return k.length;
+		}
+
+		private static LuaValue fold(int op, LuaValue v1, LuaValue v2) {
+			if (v1 == null || v2 == null || v1.type() != LuaValue.TNUMBER || v2.type() != LuaValue.TNUMBER)
+				return null;
+			if ((op == Lua.OP_DIV || op == Lua.OP_MOD) && v2.eq_b(LuaValue.ZERO))
+				return null;
+			final LuaValue r;
+			switch (op) {
+			case Lua.OP_ADD:
+				r = v1.add(v2);
+				break;
+			case Lua.OP_SUB:
+				r = v1.sub(v2);
+				break;
+			case Lua.OP_MUL:
+				r = v1.mul(v2);
+				break;
+			case Lua.OP_DIV:
+				r = v1.div(v2);
+				break;
+			case Lua.OP_MOD:
+				r = v1.mod(v2);
+				break;
+			case Lua.OP_POW:
+				r = v1.pow(v2);
+				break;
+			case Lua.OP_UNM:
+				r = v1.neg();
+				break;
+			default:
+				return null;
+			}
+			return Double.isNaN(r.todouble())? null: r;
+		}
+
+		/** Outcome of a comparison of two constants, or null if not known. */
+		private static Boolean compare(int op, LuaValue v1, LuaValue v2) {
+			if (v1 == null || v2 == null)
+				return null;
+			if (op == Lua.OP_EQ)
+				return v1.eq_b(v2)? Boolean.TRUE: Boolean.FALSE;
+			final int t = v1.type();
+			if (t != v2.type() || t != LuaValue.TNUMBER && t != LuaValue.TSTRING)
+				return null;
+			return (op == Lua.OP_LT? v1.lt_b(v2): v1.lteq_b(v2))? Boolean.TRUE: Boolean.FALSE;
+		}
+
+		/**
+		 * Apply the effect of one instruction to the known register values,
+		 * rewriting the instruction when asked to.
+		 */
+		private void step(LuaValue[] s, int pc, boolean rewrite) {
+			final int i = code[pc];
+			final int op = Lua.GET_OPCODE(i);
+			final int a = Lua.GETARG_A(i);
+			final int b = Lua.GETARG_B(i);
+			final int c = Lua.GETARG_C(i);
+			switch (op) {
+			case Lua.OP_MOVE:
+				set(s, a, b < nreg? s[b]: null);
+				break;
+			case Lua.OP_LOADK:
+				set(s, a, p.k[Lua.GETARG_Bx(i)]);
+				break;
+			case Lua.OP_LOADKX:
+				set(s, a, pc+1 < code.length? p.k[Lua.GETARG_Ax(code[pc+1])]: null);
+				break;
+			case Lua.OP_LOADBOOL:
+				set(s, a, LuaValue.valueOf(b != 0));
+				break;
+			case Lua.OP_LOADNIL:
+				for (int r = a; r <= a+b; r++)
+					set(s, r, LuaValue.NIL);
+				break;
+			case Lua.OP_GETTABUP:
+				code[pc] = setC(i, rk(s, c, rewrite));
+				set(s, a, null);
+				break;
+			case Lua.OP_GETTABLE:
+				code[pc] = setC(i, rk(s, c, rewrite));
+				set(s, a, null);
+				break;
+			case Lua.OP_SETTABUP:
+			case Lua.OP_SETTABLE:
+				code[pc] = setC(setB(i, rk(s, b, rewrite)), rk(s, c, rewrite));
+				break;
+			case Lua.OP_SELF:
+				code[pc] = setC(i, rk(s, c, rewrite));
+				kill(s, a, a+1);
+				break;
+			case Lua.OP_ADD:
+			case Lua.OP_SUB:
+			case Lua.OP_MUL:
+			case Lua.OP_DIV:
+			case Lua.OP_MOD:
+			case Lua.OP_POW:
+			case Lua.OP_UNM: {
+				final LuaValue v = fold(op, rkvalue(s, b), op == Lua.OP_UNM? LuaValue.ZERO: rkvalue(s, c));
+				if (rewrite && v != null) {
+					final int idx = constant(v, Lua.MAXARG_Bx);
+					if (idx >= 0) {
+						code[pc] = createABx(Lua.OP_LOADK, a, idx);
+						changed = true;
+					}
+				} else if (op != Lua.OP_UNM) {
+					code[pc] = setC(setB(i, rk(s, b, rewrite)), rk(s, c, rewrite));
+				}
+				set(s, a, v);
+				break;
+			}
+			case Lua.OP_NOT: {
+				final LuaValue v = b < nreg? s[b]: null;
+				if (v != null && rewrite) {
+					code[pc] = createABC(Lua.OP_LOADBOOL, a, v.toboolean()? 0: 1, 0);
+					changed = true;
+				}
+				set(s, a, v == null? null: LuaValue.valueOf(!v.toboolean()));
+				break;
+			}
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE: {
+				final Boolean r = compare(op, rkvalue(s, b), rkvalue(s, c));
+				if (rewrite && r != null) {
+					resolveBranch(pc, r.booleanValue() == (a != 0));
+				} else {
+					code[pc] = setC(setB(i, rk(s, b, rewrite)), rk(s, c, rewrite));
+				}
+				break;
+			}
+			case Lua.OP_TEST: {
+				final LuaValue v = a < nreg? s[a]: null;
+				if (rewrite && v != null)
+					resolveBranch(pc, v.toboolean() == (c != 0));
+				break;
+			}
+			case Lua.OP_TESTSET: {
+				final LuaValue v = b < nreg? s[b]: null;
+				if (rewrite && v != null) {
+					final boolean taken = v.toboolean() == (c != 0);
+					if (resolveBranch(pc, taken) && taken)
+						code[pc] = createABC(Lua.OP_MOVE, a, b, 0);
+				}
+				set(s, a, null);
+				break;
+			}
+			case Lua.OP_CALL:
+			case Lua.OP_TAILCALL:
+			case Lua.OP_VARARG:
+			case Lua.OP_TFORCALL:
+				kill(s, a, nreg-1);
+				break;
+			case Lua.OP_FORLOOP:
+			case Lua.OP_FORPREP:
+				kill(s, a, a+3);
+				break;
+			case Lua.OP_GETUPVAL:
+			case Lua.OP_NEWTABLE:
+			case Lua.OP_LEN:
+			case Lua.OP_CONCAT:
+			case Lua.OP_CLOSURE:
+				set(s, a, null);
+				break;
+			case Lua.OP_SETUPVAL:
+			case Lua.OP_JMP:
+			case Lua.OP_RETURN:
+			case Lua.OP_TFORLOOP:
+			case Lua.OP_SETLIST:
+			case Lua.OP_EXTRAARG:
+				break;
+			default:
+				kill(s, 0, nreg-1);
+				break;
+			}
+		}
+
+		/**
+		 * Replace a test and the jump after it by the jump alone if it is
+		 * always taken, or by nothing if it never is.
+		 */
+		private boolean resolveBranch(int pc, boolean taken) {
+			if (isPinned(pc) || pc+1 >= code.length || Lua.GET_OPCODE(code[pc+1]) != Lua.OP_JMP)
+				return false;
+			if (Lua.GET_OPCODE(code[pc]) != Lua.OP_TESTSET || !taken)
+				remove(pc);
+			if (!taken)
+				remove(pc+1);
+			changed = true;
+			return true;
+		}
+
+		// ===================== moves and nils =====================
+
+		private boolean removeRedundantMoves() {
+			final boolean[] target = findTargets();
+			for (int pc = 0; pc < code.length; pc++) {
+				final int i = code[pc];
+				if (Lua.GET_OPCODE(i) != Lua.OP_MOVE || isPinned(pc))
+					continue;
+				final int a = Lua.GETARG_A(i);
+				final int b = Lua.GETARG_B(i);
+				if (a == b) {
+					remove(pc);
+				} else if (pc > 0 && !target[pc] && (removed == null || !removed[pc-1])
+					&& code[pc-1] == createABC(Lua.OP_MOVE, b, a, 0)) {
+					remove(pc);
+				}
+			}
+			return compact();
+		}
+
+		private boolean mergeLoadNils() {
+			final boolean[] target = findTargets();
+			int last = -1;
+			for (int pc = 0; pc < code.length; pc++) {
+				final int i = code[pc];
+				if (Lua.GET_OPCODE(i) != Lua.OP_LOADNIL || isPinned(pc)) {
+					last = -1;
+					continue;
+				}
+				if (last >= 0 && !target[pc]) {
+					final int a1 = Lua.GETARG_A(code[last]), e1 = a1+Lua.GETARG_B(code[last]);
+					final int a2 = Lua.GETARG_A(i), e2 = a2+Lua.GETARG_B(i);
+					if (a2 <= e1+1 && a1 <= e2+1) {
+						final int lo = Math.min(a1, a2);
+						code[last] = createABC(Lua.OP_LOADNIL, lo, Math.max(e1, e2)-lo, 0);
+						remove(pc);
+						continue;
+					}
+				}
+				last = pc;
+			}
+			return compact();
+		}
+
+		// ===================== dead stores =====================
+
+		/**
+		 * Remove stores to temporary registers whose value is never read.
+		 * Liveness is computed per basic block and then per instruction.
+		 */
+		private boolean removeDeadStores() {
+			final BasicBlock[] blocks;
+			try {
+				blocks = BasicBlock.findBasicBlocks(p);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			final int n = code.length;
+			final boolean[][] liveIn = new boolean[n][];
+			boolean again = true;
+			while ( again ) {
+				again = false;
+				for (int pc0 = lastBlock(blocks); pc0 >= 0; pc0 = pc0 > 0? blocks[pc0-1].pc0: -1) {
+					final boolean[] live = liveOut(blocks[pc0], liveIn);
+					for (int pc = blocks[pc0].pc1; pc >= pc0; pc--)
+						transfer(live, pc);
+					if (liveIn[pc0] == null || !Arrays.equals(liveIn[pc0], live)) {
+						liveIn[pc0] = live;
+						again = true;
+					}
+				}
+			}
+			for (int pc0 = 0; pc0 < n; pc0 = blocks[pc0].pc1+1) {
+				final boolean[] live = liveOut(blocks[pc0], liveIn);
+				for (int pc = blocks[pc0].pc1; pc >= pc0; pc--) {
+					if (isDeadStore(live, pc))
+						remove(pc);
+					else
+						transfer(live, pc);
+				}
+			}
+			return compact();
+		}
+
+		private static int lastBlock(BasicBlock[] blocks) {
+			return blocks[blocks.length-1].pc0;
+		}
+
+		private boolean[] liveOut(BasicBlock b, boolean[][] liveIn) {
+			final boolean[] live = new boolean[nreg];
+			System.arraycopy(captured, 0, live, 0, nreg);
+			if (b.next != null)
+				for (int j = 0; j < b.next.length; j++) {
+					final boolean[] in = liveIn[b.next[j].pc0];
+					if (in != null)
+						for (int r = 0; r < nreg; r++)
+							live[r] |= in[r];
+				}
+			return live;
+		}
+
+		private boolean isDeadStore(boolean[] live, int pc) {
+			final int i = code[pc];
+			final int a = Lua.GETARG_A(i);
+			final int last;
+			switch (Lua.GET_OPCODE(i)) {
+			case Lua.OP_MOVE:
+			case Lua.OP_LOADK:
+			case Lua.OP_GETUPVAL:
+				last = a;
+				break;
+			case Lua.OP_LOADBOOL:
+				if (Lua.GETARG_C(i) != 0)
+					return false;
+				last = a;
+				break;
+			case Lua.OP_LOADNIL:
+				last = a+Lua.GETARG_B(i);
+				break;
+			default:
+				return false;
+			}
+			if (isPinned(pc) || last >= nreg)
+				return false;
+			final int nlocals = activeLocals(pc+1);
+			for (int r = a; r <= last; r++)
+				if (live[r] || r < nlocals)
+					return false;
+			return true;
+		}
+
+		/** Number of named locals active at pc, which occupy the lowest registers. */
+		private int activeLocals(int pc) {
+			int count = 0;
+			if (p.locvars != null)
+				for (int v = 0; v < p.locvars.length; v++)
+					if (p.locvars[v].startpc <= pc && pc < p.locvars[v].endpc)
+						++count;
+			return count;
+		}
+
+		private void use(boolean[] live, int x) {
+			if (!Lua.ISK(x) && x < nreg)
+				live[x] = true;
+		}
+
+		private void useRange(boolean[] live, int from, int to) {
+			for (int r = from; r <= to && r < nreg; r++)
+				live[r] = true;
+		}
+
+		private void def(boolean[] live, int from, int to) {
+			for (int r = from; r <= to && r < nreg; r++)
+				live[r] = captured[r];
+		}
+
+		/** Backward liveness transfer across the instruction at pc. */
+		private void transfer(boolean[] live, int pc) {
+			final int i = code[pc];
+			final int a = Lua.GETARG_A(i);
+			final int b = Lua.GETARG_B(i);
+			final int c = Lua.GETARG_C(i);
+			switch (Lua.GET_OPCODE(i)) {
+			case Lua.OP_MOVE:
+			case Lua.OP_UNM:
+			case Lua.OP_NOT:
+			case Lua.OP_LEN:
+				def(live, a, a);
+				use(live, b);
+				break;
+			case Lua.OP_LOADK:
+			case Lua.OP_LOADKX:
+			case Lua.OP_LOADBOOL:
+			case Lua.OP_GETUPVAL:
+			case Lua.OP_NEWTABLE:
+				def(live, a, a);
+				break;
+			case Lua.OP_LOADNIL:
+				def(live, a, a+b);
+				break;
+			case Lua.OP_GETTABUP:
+				def(live, a, a);
+				use(live, c);
+				break;
+			case Lua.OP_GETTABLE:
+				def(live, a, a);
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_SETTABUP:
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_SETUPVAL:
+			case Lua.OP_TEST:
+				use(live, a);
+				break;
+			case Lua.OP_SETTABLE:
+				use(live, a);
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_SELF:
+				def(live, a, a+1);
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_ADD:
+			case Lua.OP_SUB:
+			case Lua.OP_MUL:
+			case Lua.OP_DIV:
+			case Lua.OP_MOD:
+			case Lua.OP_POW:
+				def(live, a, a);
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_CONCAT:
+				def(live, a, a);
+				useRange(live, b, c);
+				break;
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+				use(live, b);
+				use(live, c);
+				break;
+			case Lua.OP_TESTSET:
+				use(live, b);
+				break;
+			case Lua.OP_CALL:
+				if (c > 1)
+					def(live, a, a+c-2);
+				useRange(live, a, b == 0? nreg-1: a+b-1);
+				break;
+			case Lua.OP_TAILCALL:
+				useRange(live, a, b == 0? nreg-1: a+b-1);
+				break;
+			case Lua.OP_RETURN:
+				useRange(live, a, b == 0? nreg-1: a+b-2);
+				break;
+			case Lua.OP_FORLOOP:
+			case Lua.OP_FORPREP:
+				useRange(live, a, a+2);
+				break;
+			case Lua.OP_TFORCALL:
+				def(live, a+3, a+2+c);
+				useRange(live, a, a+2);
+				break;
+			case Lua.OP_TFORLOOP:
+				use(live, a+1);
+				break;
+			case Lua.OP_SETLIST:
+				useRange(live, a, b == 0? nreg-1: a+b);
+				break;
+			case Lua.OP_VARARG:
+				if (b > 1)
+					def(live, a, a+b-2);
+				break;
+			case Lua.OP_CLOSURE:
+				def(live, a, a);
+				break;
+			case Lua.OP_JMP:
+			case Lua.OP_EXTRAARG:
+				break;
+			default:
+				useRange(live, 0, nreg-1);
+				break;
+			}
+		}
+
+		// ===================== unreachable code =====================
+
+		private boolean removeUnreachable() {
+			final int n = code.length;
+			final boolean[] reached = new boolean[n];
+			final int[] work = new int[n];
+			int nwork = 0;
+			work[nwork++] = 0;
+			reached[0] = true;
+			final int[] succ = new int[2];
+			while ( nwork > 0 ) {
+				final int pc = work[--nwork];
+				final int ns = successors(pc, succ);
+				for (int j = 0; j < ns; j++) {
+					final int t = succ[j];
+					if (t >= 0 && t < n && !reached[t]) {
+						reached[t] = true;
+						work[nwork++] = t;
+					}
+				}
+			}
+			for (int pc = 0; pc < n; pc++)
+				if (!reached[pc])
+					remove(pc);
+			return compact();
+		}
+
+		private int successors(int pc, int[] succ) {
+			final int i = code[pc];
+			switch (Lua.GET_OPCODE(i)) {
+			case Lua.OP_JMP:
+			case Lua.OP_FORPREP:
+				succ[0] = jumpTarget(code, pc);
+				return 1;
+			case Lua.OP_FORLOOP:
+			case Lua.OP_TFORLOOP:
+				succ[0] = pc+1;
+				succ[1] = jumpTarget(code, pc);
+				return 2;
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+			case Lua.OP_TEST:
+			case Lua.OP_TESTSET:
+				succ[0] = pc+1;
+				succ[1] = pc+2;
+				return 2;
+			case Lua.OP_LOADBOOL:
+				succ[0] = Lua.GETARG_C(i) != 0? pc+2: pc+1;
+				return 1;
+			case Lua.OP_RETURN:
+				return 0;
+			default:
+				succ[0] = pc+1;
+				return 1;
+			}
+		}
+	}
+}
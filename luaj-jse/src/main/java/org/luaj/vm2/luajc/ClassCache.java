@@ -0,0 +1,222 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.ChunkDigest;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.CacheFile;
+
+/**
+ * Directory of the classes {@link LuaJC} generated for chunks, so that later
+ * runs can load them without analyzing and generating them again.
+ *
+ * <p>
+ * The classes of a chunk are kept in one jar file, named by a SHA-256 digest
+ * of the chunk's prototype as dumped with debug information, the names of the
+ * classes, and the versions of luaj and of the generated code. A chunk whose
+ * source differs in any way, or that was compiled by another version, is
+ * therefore never found.
+ *
+ * <pre>
+ * {
+ * 	&#64;code
+ * 	Globals globals = JsePlatform.standardGlobals();
+ * 	ClassCache.install(globals, new File("/var/cache/luaj/classes"));
+ * 	globals.get("require").call("app.main");
+ * }
+ * </pre>
+ *
+ * <p>
+ * As with {@link org.luaj.vm2.lib.jse.BytecodeCache}, each entry is written to
+ * a temporary file and renamed into place, so other threads and processes
+ * sharing the directory see either no entry or a complete one, and failures
+ * to read or write the cache are not reported. Reading an entry marks it as
+ * recently used. Once the entries together exceed the size limit, the least
+ * recently used ones are deleted.
+ *
+ * @see LuaJC#load(Prototype, String, org.luaj.vm2.LuaValue)
+ */
+public class ClassCache {
+
+	/** Size limit of a cache constructed without one. */
+	public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+	/*
+	 * changed whenever the generated code changes, to miss entries generated before:
+	 * 2 for direct calls of local functions, by-value captures, debug constants and entering the globals,
+	 * 3 for handlers giving errors their lines, 4 for entering the globals in every function
+	 */
+	private static final int FORMAT = 4;
+
+	private static final String SUFFIX = ".jar";
+
+	private final File directory;
+	private final long maxBytes;
+
+	/**
+	 * Install {@link LuaJC} using a cache as the loader of a {@link Globals}.
+	 *
+	 * @param globals   the Globals into which this is to be installed.
+	 * @param directory the cache directory, created if it does not exist.
+	 */
+	public static void install(Globals globals, File directory) {
+		globals.loader = new LuaJC(new ClassCache(directory, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * Construct a cache.
+	 *
+	 * @param directory the cache directory, created if it does not exist.
+	 * @param maxBytes  total size of the entries above which the least recently
+	 *                  used ones are deleted.
+	 */
+	public ClassCache(File directory, long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("negative size limit");
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/** The directory holding the cached classes. */
+	public File directory() { return directory; }
+
+	/**
+	 * Get the classes generated for a prototype.
+	 *
+	 * @param p         the prototype of the chunk
+	 * @param classname the name of the class of the main function
+	 * @param filename  the source file name recorded in the classes
+	 * @return map from class name to class bytes, or null if not cached
+	 */
+	public Hashtable get(Prototype p, String classname, String filename) {
+		final File entry = entry(p, classname, filename);
+		if (entry == null || !entry.isFile())
+			return null;
+		try {
+			final Hashtable h = new Hashtable();
+			final JarInputStream jis = new JarInputStream(new BufferedInputStream(Files.newInputStream(entry.toPath())));
+			try {
+				for (JarEntry e; (e = jis.getNextJarEntry()) != null;) {
+					final String name = e.getName();
+					if (name.endsWith(".class"))
+						h.put(name.substring(0, name.length()-6).replace('/', '.'), ChunkDigest.readFully(jis));
+				}
+			} finally {
+				jis.close();
+			}
+			if (!h.containsKey(classname))
+				return null;
+			entry.setLastModified(System.currentTimeMillis());
+			return h;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Keep the classes generated for a prototype.
+	 *
+	 * @param p         the prototype of the chunk
+	 * @param classname the name of the class of the main function
+	 * @param filename  the source file name recorded in the classes
+	 * @param classes   map from class name to class bytes
+	 */
+	public void put(Prototype p, String classname, String filename, Map classes) {
+		final File entry = entry(p, classname, filename);
+		if (entry == null)
+			return;
+		final boolean written = CacheFile.write(entry, os -> {
+			final JarOutputStream jos = new JarOutputStream(os);
+			for (Iterator it = classes.entrySet().iterator(); it.hasNext();) {
+				final Map.Entry e = (Map.Entry) it.next();
+				jos.putNextEntry(new JarEntry(((String) e.getKey()).replace('.', '/') + ".class"));
+				jos.write((byte[]) e.getValue());
+			}
+			jos.finish();
+		});
+		if (written)
+			evict();
+	}
+
+	private void evict() {
+		final File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (entries == null)
+			return;
+		long total = 0;
+		final long[] modified = new long[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			total += entries[i].length();
+			modified[i] = entries[i].lastModified();
+		}
+		if (total <= maxBytes)
+			return;
+		final Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			final File f = entries[order[i]];
+			final long n = f.length();
+			if (f.delete())
+				total -= n;
+		}
+	}
+
+	private File entry(Prototype p, String classname, String filename) {
+		final MessageDigest md = ChunkDigest.sha256();
+		ChunkDigest.update(md, Lua._VERSION);
+		final String version = ClassCache.class.getPackage().getImplementationVersion();
+		ChunkDigest.update(md, version != null? version: "");
+		md.update((byte) FORMAT);
+		ChunkDigest.update(md, classname);
+		ChunkDigest.update(md, filename);
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DumpState.dump(p, baos, false);
+			md.update(baos.toByteArray());
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// the prototype could not be dumped, e.g. an unsupported constant
+			return null;
+		}
+		return new File(directory, ChunkDigest.hex(md.digest()) + SUFFIX);
+	}
+}
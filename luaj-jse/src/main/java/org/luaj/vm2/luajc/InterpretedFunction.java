@@ -0,0 +1,163 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.VarArgFunction;
+
+/**
+ * Superclass of the classes {@link JavaGen} generates for functions whose
+ * code is too large for a java method.
+ * <p>
+ * The generated class has the same upvalue fields as a compiled function, so
+ * the function enclosing it creates and initializes it as usual, but it holds
+ * the lua bytecode of the function instead of java bytecode. The first call
+ * creates a {@link LuaClosure} over the function's upvalues, and all calls are
+ * run by that closure in the interpreter. Functions nested in it are
+ * interpreted as well.
+ */
+public abstract class InterpretedFunction extends VarArgFunction {
+
+	/** Longest string of bytes that is held in one class file constant. */
+	static final int CHUNK_LENGTH = 16384;
+
+	/**
+	 * The Globals of the function, set by the function creating it, which the
+	 * closure runs in.
+	 */
+	public Globals globals;
+
+	private LuaClosure closure;
+
+	/** The prototype of the function, shared by all instances of the class. */
+	protected abstract Prototype prototype();
+
+	/**
+	 * The upvalues of the function, read from the fields of this instance. An
+	 * upvalue written by either function is held in a one-element array, which
+	 * the returned {@link UpValue} refers to.
+	 */
+	protected abstract UpValue[] upvalues();
+
+	private LuaClosure closure() {
+		LuaClosure c = closure;
+		if (c == null) {
+			c = new LuaClosure(prototype(), globals);
+			c.upValues = upvalues();
+			closure = c;
+		}
+		return c;
+	}
+
+	@Override
+	public String name() {
+		return closure().name();
+	}
+
+	@Override
+	public LuaValue call() {
+		return closure().call();
+	}
+
+	@Override
+	public LuaValue call(LuaValue arg) {
+		return closure().call(arg);
+	}
+
+	@Override
+	public LuaValue call(LuaValue arg1, LuaValue arg2) {
+		return closure().call(arg1, arg2);
+	}
+
+	@Override
+	public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+		return closure().call(arg1, arg2, arg3);
+	}
+
+	@Override
+	public Varargs onInvoke(Varargs args) {
+		return closure().onInvoke(args);
+	}
+
+	/** Wrap an upvalue held in a field for reading only. */
+	protected static UpValue upvalue(LuaValue value) {
+		return new UpValue(value);
+	}
+
+	/** Wrap an upvalue held in a one-element array. */
+	protected static UpValue upvalue(LuaValue[] holder) {
+		return new UpValue(holder, 0);
+	}
+
+	/**
+	 * Load a prototype from the strings returned by {@link #chunks(Prototype)}.
+	 */
+	protected static Prototype undump(String[] chunks, String chunkname) {
+		int n = 0;
+		for (String s : chunks)
+			n += s.length();
+		byte[] b = new byte[n];
+		n = 0;
+		for (String s : chunks)
+			for (int i = 0, m = s.length(); i < m; i++)
+				b[n++] = (byte) s.charAt(i);
+		try {
+			return LoadState.undump(new ByteArrayInputStream(b), chunkname);
+		} catch (IOException e) {
+			throw new IllegalStateException("bad class gen: " + e);
+		}
+	}
+
+	/**
+	 * Dump a prototype as strings of at most {@link #CHUNK_LENGTH} characters,
+	 * one per byte.
+	 */
+	static String[] chunks(Prototype p) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			DumpState.dump(p, baos, false);
+		} catch (IOException e) {
+			throw new IllegalStateException("dump failed: " + e);
+		}
+		byte[] b = baos.toByteArray();
+		String[] chunks = new String[(b.length+CHUNK_LENGTH-1)/CHUNK_LENGTH];
+		for (int i = 0; i < chunks.length; i++) {
+			int off = i*CHUNK_LENGTH;
+			char[] c = new char[Math.min(CHUNK_LENGTH, b.length-off)];
+			for (int j = 0; j < c.length; j++)
+				c[j] = (char) (0xff & b[off+j]);
+			chunks[i] = new String(c);
+		}
+		return chunks;
+	}
+}
@@ -33,51 +33,77 @@ import org.apache.bcel.generic.ANEWARRAY;
 import org.apache.bcel.generic.ASTORE;
 import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ClassGenException;
 import org.apache.bcel.generic.CompoundInstruction;
 import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.DLOAD;
+import org.apache.bcel.generic.DSTORE;
 import org.apache.bcel.generic.FieldGen;
 import org.apache.bcel.generic.GOTO;
 import org.apache.bcel.generic.IFEQ;
+import org.apache.bcel.generic.IFGE;
+import org.apache.bcel.generic.IFGT;
+import org.apache.bcel.generic.IFLE;
+import org.apache.bcel.generic.IFLT;
 import org.apache.bcel.generic.IFNE;
+import org.apache.bcel.generic.IFNULL;
 import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionConstants;
 import org.apache.bcel.generic.InstructionFactory;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.LineNumberGen;
 import org.apache.bcel.generic.LocalVariableGen;
 import org.apache.bcel.generic.MethodGen;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.Type;
 import org.luaj.vm2.Buffer;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.IndexCache;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.MathLib;
 import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.VarArgFunction;
 import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.debug.DebugLibBase;
 
 public class JavaBuilder {
 
 	private static final String STR_VARARGS     = Varargs.class.getName();
+	private static final String STR_GLOBALS     = Globals.class.getName();
+	private static final String STR_COMPILED    = DebugLibBase.Compiled.class.getName();
 	private static final String STR_LUAVALUE    = LuaValue.class.getName();
 	private static final String STR_LUASTRING   = LuaString.class.getName();
 	private static final String STR_LUAINTEGER  = LuaInteger.class.getName();
 	private static final String STR_LUANUMBER   = LuaNumber.class.getName();
 	private static final String STR_LUABOOLEAN  = LuaBoolean.class.getName();
 	private static final String STR_LUATABLE    = LuaTable.class.getName();
+	private static final String STR_LUAERROR    = LuaError.class.getName();
+	private static final String STR_LUADOUBLE   = LuaDouble.class.getName();
 	private static final String STR_BUFFER      = Buffer.class.getName();
+	private static final String STR_INDEXCACHE  = IndexCache.class.getName();
+	private static final String STR_UPVALUE     = UpValue.class.getName();
 	private static final String STR_STRING      = String.class.getName();
+	private static final String STR_MATHLIB     = MathLib.class.getName();
 	private static final String STR_JSEPLATFORM = "org.luaj.vm2.lib.jse.JsePlatform";
+	private static final String STR_PROTOTYPE   = Prototype.class.getName();
+	private static final String STR_INTERPRETED = InterpretedFunction.class.getName();
 
 	private static final ObjectType TYPE_VARARGS    = new ObjectType(STR_VARARGS);
 	private static final ObjectType TYPE_LUAVALUE   = new ObjectType(STR_LUAVALUE);
@@ -86,10 +112,16 @@ public class JavaBuilder {
 	private static final ObjectType TYPE_LUANUMBER  = new ObjectType(STR_LUANUMBER);
 	private static final ObjectType TYPE_LUABOOLEAN = new ObjectType(STR_LUABOOLEAN);
 	private static final ObjectType TYPE_LUATABLE   = new ObjectType(STR_LUATABLE);
+	private static final ObjectType TYPE_LUAERROR   = new ObjectType(STR_LUAERROR);
 	private static final ObjectType TYPE_BUFFER     = new ObjectType(STR_BUFFER);
+	private static final ObjectType TYPE_INDEXCACHE = new ObjectType(STR_INDEXCACHE);
+	private static final ObjectType TYPE_UPVALUE    = new ObjectType(STR_UPVALUE);
 	private static final ObjectType TYPE_STRING     = new ObjectType(STR_STRING);
+	private static final ObjectType TYPE_PROTOTYPE  = new ObjectType(STR_PROTOTYPE);
+	private static final ObjectType TYPE_GLOBALS    = new ObjectType(STR_GLOBALS);
 
 	private static final ArrayType TYPE_LOCALUPVALUE = new ArrayType(TYPE_LUAVALUE, 1);
+	private static final ArrayType TYPE_UPVALUEARRAY = new ArrayType(TYPE_UPVALUE, 1);
 	private static final ArrayType TYPE_CHARARRAY    = new ArrayType(Type.CHAR, 1);
 	private static final ArrayType TYPE_STRINGARRAY  = new ArrayType(TYPE_STRING, 1);
 
@@ -103,10 +135,12 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_NONE                       = {};
 	private static final Type[] ARG_TYPES_INT                        = { Type.INT };
 	private static final Type[] ARG_TYPES_DOUBLE                     = { Type.DOUBLE };
+	private static final Type[] ARG_TYPES_DOUBLE_DOUBLE              = { Type.DOUBLE, Type.DOUBLE };
 	private static final Type[] ARG_TYPES_STRING                     = { Type.STRING };
 	private static final Type[] ARG_TYPES_CHARARRAY                  = { TYPE_CHARARRAY };
 	private static final Type[] ARG_TYPES_INT_LUAVALUE               = { Type.INT, TYPE_LUAVALUE };
 	private static final Type[] ARG_TYPES_INT_VARARGS                = { Type.INT, TYPE_VARARGS };
+	private static final Type[] ARG_TYPES_INT_STRING                 = { Type.INT, Type.STRING };
 	private static final Type[] ARG_TYPES_LUAVALUE_VARARGS           = { TYPE_LUAVALUE, TYPE_VARARGS };
 	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS  = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_VARARGS };
 	private static final Type[] ARG_TYPES_LUAVALUEARRAY              = { new ArrayType(TYPE_LUAVALUE, 1) };
@@ -117,9 +151,12 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE          = { TYPE_LUAVALUE, TYPE_LUAVALUE };
 	private static final Type[] ARG_TYPES_INT_INT                    = { Type.INT, Type.INT };
 	private static final Type[] ARG_TYPES_LUAVALUE                   = { TYPE_LUAVALUE };
+	private static final Type[] ARG_TYPES_LUASTRING                  = { TYPE_LUASTRING };
 	private static final Type[] ARG_TYPES_BUFFER                     = { TYPE_BUFFER };
 	private static final Type[] ARG_TYPES_STRINGARRAY                = { TYPE_STRINGARRAY };
 	private static final Type[] ARG_TYPES_LUAVALUE_STRINGARRAY       = { TYPE_LUAVALUE, TYPE_STRINGARRAY };
+	private static final Type[] ARG_TYPES_STRINGARRAY_STRING         = { TYPE_STRINGARRAY, TYPE_STRING };
+	private static final Type[] ARG_TYPES_LOCALUPVALUE               = { TYPE_LOCALUPVALUE };
 
 	// names, arg types for main prototype classes
 	private static final String[]     SUPER_NAME_N  = { STR_FUNC0, STR_FUNC1, STR_FUNC2, STR_FUNC3, STR_FUNCV, };
@@ -133,15 +170,24 @@ public class JavaBuilder {
 
 	// varable naming
 	private static final String PREFIX_CONSTANT     = "k";
+	private static final String PREFIX_INDEX_CACHE  = "g";
 	private static final String PREFIX_UPVALUE      = "u";
 	private static final String PREFIX_PLAIN_SLOT   = "s";
 	private static final String PREFIX_UPVALUE_SLOT = "a";
+	private static final String PREFIX_NUMERIC_SLOT = "d";
+	private static final String PREFIX_FOR_LOOP     = "f";
 	private static final String NAME_VARRESULT      = "v";
+	private static final String NAME_PROTOTYPE      = "prototype";
+	static final String         NAME_GLOBALS        = "globals";
+
+	// longest code the class file format allows in one method
+	private static final int MAX_CODE_LENGTH = 65535;
 
 	// basic info
 	private final ProtoInfo pi;
 	private final Prototype p;
 	private final String    classname;
+	private final boolean   interpreted;
 
 	// bcel variables
 	private final ClassGen           cg;
@@ -169,25 +215,29 @@ public class JavaBuilder {
 	private int              prev_line = -1;
 
 	public JavaBuilder(ProtoInfo pi, String classname, String filename) {
+		this(pi, classname, filename, false);
+	}
+
+	/**
+	 * Construct a builder for a class that runs the function in the
+	 * interpreter when interpreted, or else for a class that runs it as java
+	 * bytecode.
+	 *
+	 * @see InterpretedFunction
+	 */
+	JavaBuilder(ProtoInfo pi, String classname, String filename, boolean interpreted) {
 		this.pi = pi;
 		this.p = pi.prototype;
 		this.classname = classname;
+		this.interpreted = interpreted;
 
 		// what class to inherit from
-		superclassType = p.numparams;
-		if (p.is_vararg != 0 || superclassType >= SUPERTYPE_VARARGS)
-			superclassType = SUPERTYPE_VARARGS;
-		for (int inst : p.code) {
-			int o = Lua.GET_OPCODE(inst);
-			if (o == Lua.OP_TAILCALL || o == Lua.OP_RETURN && (Lua.GETARG_B(inst) < 1 || Lua.GETARG_B(inst) > 2)) {
-				superclassType = SUPERTYPE_VARARGS;
-				break;
-			}
-		}
+		int arity = fixedArity(p);
+		superclassType = interpreted || arity < 0? SUPERTYPE_VARARGS: arity;
 
 		// create class generator
-		cg = new ClassGen(classname, SUPER_NAME_N[superclassType], filename, Constants.ACC_PUBLIC | Constants.ACC_SUPER,
-			null);
+		cg = new ClassGen(classname, interpreted? STR_INTERPRETED: SUPER_NAME_N[superclassType], filename,
+			Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
 		cp = cg.getConstantPool(); // cg creates constant pool
 
 		// main instruction lists
@@ -195,24 +245,43 @@ public class JavaBuilder {
 		init = new InstructionList();
 		main = new InstructionList();
 
+		// describe the prototype for the debug library, which finds compiled frames on the java stack
+		if (!interpreted) {
+			cg.addInterface(STR_COMPILED);
+			if (p.source != null)
+				addConstantField(DebugLibBase.Compiled.SOURCE, p.source.tojstring());
+			addConstantField(DebugLibBase.Compiled.LINEDEFINED, p.linedefined);
+			addConstantField(DebugLibBase.Compiled.LASTLINEDEFINED, p.lastlinedefined);
+		}
+
+		// the globals of the function, set by the function creating it, or inherited when interpreted
+		if (!interpreted)
+			cg.addField(new FieldGen(Constants.ACC_PUBLIC, TYPE_GLOBALS, NAME_GLOBALS, cp).getField());
+
 		// create the fields
 		for (int i = 0; i < p.upvalues.length; i++) {
-			boolean isrw = pi.isReadWriteUpvalue(pi.upvals[i]);
-			Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+			Type uptype = upvalueType(pi.upvals[i]);
 			FieldGen fg = new FieldGen(0, uptype, upvalueName(i), cp);
 			cg.addField(fg.getField());
 		}
 
-		// create the method
-		mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
-			RETURN_TYPE_N[superclassType], // return type
-			ARG_TYPES_N[superclassType], // argument types
-			ARG_NAMES_N[superclassType], // arg names
-			METH_NAME_N[superclassType], STR_LUAVALUE, // method, defining class
-			main, cp);
+		// create the method, unless the lua bytecode is interpreted
+		if (interpreted) {
+			mg = null;
+		} else {
+			mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
+				RETURN_TYPE_N[superclassType], // return type
+				ARG_TYPES_N[superclassType], // argument types
+				ARG_NAMES_N[superclassType], // arg names
+				METH_NAME_N[superclassType], STR_LUAVALUE, // method, defining class
+				main, cp);
+
+			// enter the globals if called while they are not running
+			enterGlobals();
 
-		// initialize the values in the slots
-		initializeSlots();
+			// initialize the values in the slots
+			initializeSlots();
+		}
 
 		// initialize branching
 		int nc = p.code.length;
@@ -222,6 +291,71 @@ public class JavaBuilder {
 		lastInstrHandles = new InstructionHandle[nc];
 	}
 
+	/* add a field with a constant value, which costs no class initialization */
+	private void addConstantField(String name, Object value) {
+		Type type = value instanceof String? Type.STRING: Type.INT;
+		FieldGen fg = new FieldGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC | Constants.ACC_FINAL, type, name, cp);
+		if (value instanceof String)
+			fg.setInitValue((String) value);
+		else
+			fg.setInitValue(((Integer) value).intValue());
+		cg.addField(fg.getField());
+	}
+
+	/*
+	 * Run the body through Globals.invokeIn if the globals of the function are
+	 * not running, as when it is called from java or on a coroutine, so that
+	 * it sees their type metatables as a closure would.
+	 */
+	private void enterGlobals() {
+		BranchInstruction isnull = new IFNULL(null);
+		BranchInstruction isrunning = new IFNE(null);
+		main.append(InstructionConstants.THIS);
+		main.append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Constants.GETFIELD));
+		main.append(isnull);
+		main.append(InstructionConstants.THIS);
+		main.append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Constants.GETFIELD));
+		main.append(factory.createInvoke(STR_GLOBALS, "isrunning", Type.BOOLEAN, ARG_TYPES_NONE,
+			Constants.INVOKEVIRTUAL));
+		main.append(isrunning);
+		main.append(InstructionConstants.THIS);
+		main.append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Constants.GETFIELD));
+		main.append(InstructionConstants.THIS);
+		switch (superclassType) {
+		case 0:
+			main.append(factory.createGetStatic(STR_LUAVALUE, "NONE", TYPE_LUAVALUE));
+			break;
+		case 1:
+			main.append(new ALOAD(1));
+			break;
+		case 2:
+			main.append(new ALOAD(1));
+			main.append(new ALOAD(2));
+			main.append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS,
+				Constants.INVOKESTATIC));
+			break;
+		case 3:
+			main.append(new ALOAD(1));
+			main.append(new ALOAD(2));
+			main.append(new ALOAD(3));
+			main.append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS,
+				ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS, Constants.INVOKESTATIC));
+			break;
+		default:
+			main.append(new ALOAD(1));
+			break;
+		}
+		main.append(factory.createInvoke(STR_GLOBALS, "invokeIn", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS,
+			Constants.INVOKESTATIC));
+		if (superclassType != SUPERTYPE_VARARGS)
+			main.append(factory.createInvoke(STR_VARARGS, "arg1", TYPE_LUAVALUE, ARG_TYPES_NONE,
+				Constants.INVOKEVIRTUAL));
+		main.append(InstructionConstants.ARETURN);
+		InstructionHandle body = main.append(InstructionConstants.NOP);
+		isnull.setTarget(body);
+		isrunning.setTarget(body);
+	}
+
 	public void initializeSlots() {
 		int slot = 0;
 		createUpvalues(-1, 0, p.maxstacksize);
@@ -258,17 +392,36 @@ public class JavaBuilder {
 				storeLocal(-1, slot);
 			}
 		}
+
+		// numeric slots are never read before they are assigned, but the verifier cannot tell
+		for (slot = 0; slot < p.maxstacksize; slot++) {
+			if (pi.isNumericSlot(slot)) {
+				append(new PUSH(cp, 0.0));
+				append(new DSTORE(findSlot(slot, numericSlotVars, PREFIX_NUMERIC_SLOT, Type.DOUBLE)));
+			}
+		}
 	}
 
+	/**
+	 * Complete the class and convert it to class bytes.
+	 *
+	 * @throws CodeTooLargeException if the code of the function or of the
+	 *                               class initializer is too large for a java
+	 *                               method
+	 */
 	public byte[] completeClass(boolean genmain) {
 
+		// add methods returning the prototype and upvalues to interpret
+		if (interpreted)
+			addInterpretedMethods();
+
 		// add class initializer
 		if (!init.isEmpty()) {
 			MethodGen mg = new MethodGen(Constants.ACC_STATIC, Type.VOID, ARG_TYPES_NONE, new String[] {}, "<clinit>",
 				cg.getClassName(), init, cg.getConstantPool());
 			init.append(InstructionConstants.RETURN);
 			mg.setMaxStack();
-			cg.addMethod(mg.getMethod());
+			cg.addMethod(checkCodeLength(mg));
 			init.dispose();
 		}
 
@@ -276,13 +429,40 @@ public class JavaBuilder {
 		cg.addEmptyConstructor(Constants.ACC_PUBLIC);
 
 		// gen method
-		resolveBranches();
-		mg.setMaxStack();
-		cg.addMethod(mg.getMethod());
-		main.dispose();
+		if (!interpreted) {
+			resolveBranches();
+			addLineHandlers();
+			mg.setMaxStack();
+			cg.addMethod(checkCodeLength(mg));
+			main.dispose();
+		}
+
+		// add constructor taking the upvalues of an interpreted closure
+		if (hasSharedUpvalues()) {
+			MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, // access flags
+				Type.VOID, // return type
+				new Type[] { TYPE_UPVALUEARRAY }, // argument types
+				new String[] { "upvalues" }, // arg names
+				"<init>", classname, // method, defining class
+				main, cp);
+			append(InstructionConstants.THIS);
+			append(factory.createInvoke(cg.getSuperclassName(), "<init>", Type.VOID, Type.NO_ARGS,
+				Constants.INVOKESPECIAL));
+			for (int i = 0; i < p.upvalues.length; i++) {
+				append(InstructionConstants.THIS);
+				append(new ALOAD(1));
+				append(new PUSH(cp, i));
+				append(InstructionConstants.AALOAD);
+				append(factory.createFieldAccess(classname, upvalueName(i), TYPE_UPVALUE, Constants.PUTFIELD));
+			}
+			append(InstructionConstants.RETURN);
+			mg.setMaxStack();
+			cg.addMethod(mg.getMethod());
+			main.dispose();
+		}
 
 		// add initupvalue1(LuaValue env) to initialize environment for main chunk
-		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
+		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS && !pi.isSharedUpvalue(pi.upvals[0])) {
 			MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
 				Type.VOID, // return type
 				ARG_TYPES_LUAVALUE, // argument types
@@ -290,6 +470,15 @@ public class JavaBuilder {
 				"initupvalue1", STR_LUAVALUE, // method, defining class
 				main, cp);
 			boolean isrw = pi.isReadWriteUpvalue(pi.upvals[0]);
+			BranchInstruction notglobals = new IFEQ(null);
+			append(new ALOAD(1));
+			append(factory.createInstanceOf(TYPE_GLOBALS));
+			append(notglobals);
+			append(InstructionConstants.THIS);
+			append(new ALOAD(1));
+			append(factory.createCheckCast(TYPE_GLOBALS));
+			append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Constants.PUTFIELD));
+			notglobals.setTarget(main.append(InstructionConstants.NOP));
 			append(InstructionConstants.THIS);
 			append(new ALOAD(1));
 			if (isrw) {
@@ -336,6 +525,102 @@ public class JavaBuilder {
 		}
 	}
 
+	/*
+	 * Catch lua errors in the code of each line, and pass them the line with
+	 * LuaError.unwind before throwing them on, so that errors have positions
+	 * without the code keeping track of its line or walking the java stack.
+	 */
+	private void addLineHandlers() {
+		LineNumberGen[] lines = mg.getLineNumbers();
+		if (lines.length == 0)
+			return;
+		InstructionHandle end = main.getEnd();
+		BranchInstruction[] gotos = new BranchInstruction[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			InstructionHandle handler = main.append(new PUSH(cp, lines[i].getSourceLine()));
+			main.append(gotos[i] = new GOTO(null));
+			InstructionHandle last = i+1 < lines.length? lines[i+1].getInstruction().getPrev(): end;
+			mg.addExceptionHandler(lines[i].getInstruction(), last, handler, TYPE_LUAERROR);
+		}
+		InstructionHandle unwind = main.append(new PUSH(cp, p.source != null? p.source.tojstring(): "?"));
+		main.append(factory.createInvoke(STR_LUAERROR, "unwind", TYPE_LUAERROR, ARG_TYPES_INT_STRING,
+			Constants.INVOKEVIRTUAL));
+		main.append(InstructionConstants.ATHROW);
+		for (BranchInstruction b : gotos)
+			b.setTarget(unwind);
+	}
+
+	private static Method checkCodeLength(MethodGen mg) {
+		final Method m;
+		try {
+			m = mg.getMethod();
+		} catch (ClassGenException e) {
+			// branch offsets over 32K
+			throw new CodeTooLargeException(mg.getName());
+		}
+		if (m.getCode().getCode().length > MAX_CODE_LENGTH)
+			throw new CodeTooLargeException(mg.getName());
+		return m;
+	}
+
+	/** Thrown when the code of a method exceeds the class file limits. */
+	static final class CodeTooLargeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CodeTooLargeException(String method) {
+			super("code too large in " + method);
+		}
+	}
+
+	private void addInterpretedMethods() {
+		// static final Prototype prototype, undumped from strings in the constant pool
+		String[] chunks = InterpretedFunction.chunks(p);
+		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, TYPE_PROTOTYPE, NAME_PROTOTYPE, cp);
+		cg.addField(fg.getField());
+		init.append(new PUSH(cp, chunks.length));
+		init.append(new ANEWARRAY(cp.addClass(STR_STRING)));
+		for (int i = 0; i < chunks.length; i++) {
+			init.append(InstructionConstants.DUP);
+			init.append(new PUSH(cp, i));
+			init.append(new PUSH(cp, chunks[i]));
+			init.append(InstructionConstants.AASTORE);
+		}
+		init.append(new PUSH(cp, p.source != null? p.source.tojstring(): "?"));
+		init.append(factory.createInvoke(STR_INTERPRETED, "undump", TYPE_PROTOTYPE, ARG_TYPES_STRINGARRAY_STRING,
+			Constants.INVOKESTATIC));
+		init.append(factory.createPutStatic(classname, NAME_PROTOTYPE, TYPE_PROTOTYPE));
+
+		// protected Prototype prototype()
+		MethodGen mg = new MethodGen(Constants.ACC_PROTECTED | Constants.ACC_FINAL, TYPE_PROTOTYPE, ARG_TYPES_NONE,
+			new String[] {}, "prototype", classname, main, cp);
+		append(factory.createGetStatic(classname, NAME_PROTOTYPE, TYPE_PROTOTYPE));
+		append(InstructionConstants.ARETURN);
+		mg.setMaxStack();
+		cg.addMethod(mg.getMethod());
+		main.dispose();
+
+		// protected UpValue[] upvalues()
+		mg = new MethodGen(Constants.ACC_PROTECTED | Constants.ACC_FINAL, TYPE_UPVALUEARRAY, ARG_TYPES_NONE,
+			new String[] {}, "upvalues", classname, main, cp);
+		append(new PUSH(cp, p.upvalues.length));
+		append(new ANEWARRAY(cp.addClass(STR_UPVALUE)));
+		for (int i = 0; i < p.upvalues.length; i++) {
+			Type uptype = upvalueType(pi.upvals[i]);
+			append(InstructionConstants.DUP);
+			append(new PUSH(cp, i));
+			append(InstructionConstants.THIS);
+			append(factory.createFieldAccess(classname, upvalueName(i), uptype, Constants.GETFIELD));
+			if (uptype != TYPE_UPVALUE)
+				append(factory.createInvoke(STR_INTERPRETED, "upvalue", TYPE_UPVALUE,
+					uptype == TYPE_LOCALUPVALUE? ARG_TYPES_LOCALUPVALUE: ARG_TYPES_LUAVALUE, Constants.INVOKESTATIC));
+			append(InstructionConstants.AASTORE);
+		}
+		append(InstructionConstants.ARETURN);
+		mg.setMaxStack();
+		cg.addMethod(mg.getMethod());
+		main.dispose();
+	}
+
 	public void dup() {
 		append(InstructionConstants.DUP);
 	}
@@ -359,6 +644,8 @@ public class JavaBuilder {
 
 	private final Map<Integer, Integer>          plainSlotVars     = new HashMap<>();
 	private final Map<Integer, Integer>          upvalueSlotVars   = new HashMap<>();
+	private final Map<Integer, Integer>          numericSlotVars   = new HashMap<>();
+	private final Map<Integer, Integer>          forLoopVars       = new HashMap<>();
 	private final Map<Integer, LocalVariableGen> localVarGenBySlot = new HashMap<>();
 
 	private int findSlot(int slot, Map<Integer, Integer> map, String prefix, Type type) {
@@ -379,6 +666,11 @@ public class JavaBuilder {
 	}
 
 	public void loadLocal(int pc, int slot) {
+		if (pi.isNumericSlot(slot)) {
+			loadNumber(slot);
+			boxNumber();
+			return;
+		}
 		boolean isupval = pi.isUpvalueRefer(pc, slot);
 		int index = findSlotIndex(slot, isupval);
 		append(new ALOAD(index));
@@ -389,6 +681,8 @@ public class JavaBuilder {
 	}
 
 	public void storeLocal(int pc, int slot) {
+		if (pi.isNumericSlot(slot))
+			throw new IllegalStateException("non-numeric store to numeric slot "+slot+" at "+pc);
 		boolean isupval = pi.isUpvalueAssign(pc, slot);
 		int index = findSlotIndex(slot, isupval);
 		if (isupval) {
@@ -435,6 +729,154 @@ public class JavaBuilder {
 		}
 	}
 
+	// ------------------------ numbers ------------------------
+
+	private int findNumericSlotIndex(int slot) {
+		return findSlot(slot, numericSlotVars, PREFIX_NUMERIC_SLOT, Type.DOUBLE);
+	}
+
+	public void loadNumber(int slot) {
+		append(new DLOAD(findNumericSlotIndex(slot)));
+	}
+
+	public void loadNumber(double value) {
+		append(new PUSH(cp, value));
+	}
+
+	public void storeNumber(int pc, int slot) {
+		if (pi.isNumericSlot(slot)) {
+			append(new DSTORE(findNumericSlotIndex(slot)));
+		} else {
+			boxNumber();
+			storeLocal(pc, slot);
+		}
+	}
+
+	public void boxNumber() {
+		append(factory.createInvoke(STR_LUAVALUE, "valueOf", TYPE_LUANUMBER, ARG_TYPES_DOUBLE, Constants.INVOKESTATIC));
+	}
+
+	public void checkNumber(String msg) {
+		append(new PUSH(cp, msg));
+		append(factory.createInvoke(STR_LUAVALUE, "checknumber", TYPE_LUANUMBER, ARG_TYPES_STRING,
+			Constants.INVOKEVIRTUAL));
+		append(factory.createInvoke(STR_LUAVALUE, "todouble", Type.DOUBLE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+	}
+
+	public void numericUnaryop(int o) {
+		append(InstructionConstants.DNEG);
+	}
+
+	public void numericBinaryop(int o) {
+		switch (o) {
+		default:
+		case Lua.OP_ADD:
+			append(InstructionConstants.DADD);
+			break;
+		case Lua.OP_SUB:
+			append(InstructionConstants.DSUB);
+			break;
+		case Lua.OP_MUL:
+			append(InstructionConstants.DMUL);
+			break;
+		case Lua.OP_DIV:
+			append(factory.createInvoke(STR_LUADOUBLE, "ddiv_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE,
+				Constants.INVOKESTATIC));
+			break;
+		case Lua.OP_MOD:
+			append(factory.createInvoke(STR_LUADOUBLE, "dmod_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE,
+				Constants.INVOKESTATIC));
+			break;
+		case Lua.OP_POW:
+			append(factory.createInvoke(STR_MATHLIB, "dpow_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE,
+				Constants.INVOKESTATIC));
+			break;
+		}
+	}
+
+	/** Turn a negative zero on the stack into a positive one, as boxing would. */
+	public void normalizeZero() {
+		append(new PUSH(cp, 0.0));
+		append(InstructionConstants.DADD);
+	}
+
+	/** Compare two numbers, leaving -1, 0 or 1 with NaN ordered so that only ~= holds. */
+	public void numericCompareop(int o) {
+		append(o == Lua.OP_EQ? InstructionConstants.DCMPL: InstructionConstants.DCMPG);
+	}
+
+	private int findForLoopIndex(int looppc, int i) {
+		Integer key = looppc;
+		if (!forLoopVars.containsKey(key)) {
+			int index = mg.addLocalVariable(PREFIX_FOR_LOOP+looppc+"i", Type.DOUBLE, null, null).getIndex();
+			mg.addLocalVariable(PREFIX_FOR_LOOP+looppc+"l", Type.DOUBLE, null, null);
+			mg.addLocalVariable(PREFIX_FOR_LOOP+looppc+"s", Type.DOUBLE, null, null);
+			forLoopVars.put(key, index);
+		}
+		return forLoopVars.get(key).intValue()+2*i;
+	}
+
+	/** Load the index (0), limit (1) or step (2) of the numeric for loop ending at looppc. */
+	public void loadForLoop(int looppc, int i) {
+		append(new DLOAD(findForLoopIndex(looppc, i)));
+	}
+
+	/** Store the index (0), limit (1) or step (2) of the numeric for loop ending at looppc. */
+	public void storeForLoop(int looppc, int i) {
+		append(new DSTORE(findForLoopIndex(looppc, i)));
+	}
+
+	/**
+	 * Compare the index of a numeric for loop with its limit when the
+	 * direction of the loop is known, so that the loop goes on while the result
+	 * is not positive when counting up, or not negative when counting down.
+	 */
+	public void compareForLoop(int looppc, boolean up) {
+		loadForLoop(looppc, 0);
+		loadForLoop(looppc, 1);
+		append(up? InstructionConstants.DCMPG: InstructionConstants.DCMPL);
+	}
+
+	/**
+	 * Test the index of a numeric for loop against its limit in the direction
+	 * of its step, leaving a non-zero int while the loop goes on.
+	 */
+	public void testForLoop(int looppc) {
+		loadForLoop(looppc, 2);
+		append(new PUSH(cp, 0.0));
+		append(InstructionConstants.DCMPL);
+		BranchInstruction down = new IFLE(null);
+		append(down);
+		compareForLoop(looppc, true);
+		append(InstructionConstants.ICONST_1);
+		append(InstructionConstants.IXOR);
+		BranchInstruction done = new GOTO(null);
+		append(done);
+		down.setTarget(main.append(new DLOAD(findForLoopIndex(looppc, 0))));
+		loadForLoop(looppc, 1);
+		append(InstructionConstants.DCMPL);
+		append(InstructionConstants.ICONST_M1);
+		append(InstructionConstants.IXOR);
+		done.setTarget(main.append(InstructionConstants.NOP));
+	}
+
+	public void dup2() {
+		append(InstructionConstants.DUP2);
+	}
+
+	private Type upvalueType(UpvalInfo u) {
+		return pi.isSharedUpvalue(u)? TYPE_UPVALUE: pi.isReadWriteUpvalue(u)? TYPE_LOCALUPVALUE: TYPE_LUAVALUE;
+	}
+
+	private boolean hasSharedUpvalues() {
+		if (p.upvalues.length == 0)
+			return false;
+		for (UpvalInfo u : pi.upvals)
+			if (!pi.isSharedUpvalue(u))
+				return false;
+		return true;
+	}
+
 	private static String upvalueName(int upindex) {
 		return PREFIX_UPVALUE+upindex;
 	}
@@ -442,7 +884,10 @@ public class JavaBuilder {
 	public void loadUpvalue(int upindex) {
 		boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
 		append(InstructionConstants.THIS);
-		if (isrw) {
+		if (pi.isSharedUpvalue(pi.upvals[upindex])) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			append(factory.createInvoke(STR_UPVALUE, "getValue", TYPE_LUAVALUE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+		} else if (isrw) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp, 0));
 			append(InstructionConstants.AALOAD);
@@ -454,7 +899,12 @@ public class JavaBuilder {
 	public void storeUpvalue(int pc, int upindex, int slot) {
 		boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
 		append(InstructionConstants.THIS);
-		if (isrw) {
+		if (pi.isSharedUpvalue(pi.upvals[upindex])) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			loadLocal(pc, slot);
+			append(factory.createInvoke(STR_UPVALUE, "setValue", Type.VOID, ARG_TYPES_LUAVALUE,
+				Constants.INVOKEVIRTUAL));
+		} else if (isrw) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp, 0));
 			loadLocal(pc, slot);
@@ -512,6 +962,28 @@ public class JavaBuilder {
 		append(factory.createInvoke(STR_LUAVALUE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
 
+	public void loadIndexCache(LuaString key) {
+		String name = indexCaches.get(key);
+		if (name == null) {
+			name = PREFIX_INDEX_CACHE+indexCaches.size();
+			FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, TYPE_INDEXCACHE, name, cp);
+			cg.addField(fg.getField());
+			init.append(factory.createNew(TYPE_INDEXCACHE));
+			init.append(InstructionConstants.DUP);
+			initLuaString(key);
+			init.append(factory.createInvoke(STR_INDEXCACHE, Constants.CONSTRUCTOR_NAME, Type.VOID, ARG_TYPES_LUASTRING,
+				Constants.INVOKESPECIAL));
+			init.append(factory.createPutStatic(classname, name, TYPE_INDEXCACHE));
+			indexCaches.put(key, name);
+		}
+		append(factory.createGetStatic(classname, name, TYPE_INDEXCACHE));
+	}
+
+	/** Index the value on the stack through the cache below it. */
+	public void getTableCached() {
+		append(factory.createInvoke(STR_INDEXCACHE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+	}
+
 	public void setTable() {
 		append(
 			factory.createInvoke(STR_LUAVALUE, "set", Type.VOID, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
@@ -646,20 +1118,28 @@ public class JavaBuilder {
 	}
 
 	public void call(int nargs) {
+		call(nargs, STR_LUAVALUE);
+	}
+
+	/**
+	 * Call the function on the stack through the methods of a class, such as
+	 * the class generated for the function when it is known.
+	 */
+	public void call(int nargs, String classname) {
 		switch (nargs) {
 		case 0:
-			append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
+			append(factory.createInvoke(classname, "call", TYPE_LUAVALUE, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
 			break;
 		case 1:
 			append(
-				factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+				factory.createInvoke(classname, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
 			break;
 		case 2:
-			append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE,
+			append(factory.createInvoke(classname, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE,
 				Constants.INVOKEVIRTUAL));
 			break;
 		case 3:
-			append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE,
+			append(factory.createInvoke(classname, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE,
 				Constants.INVOKEVIRTUAL));
 			break;
 		default:
@@ -673,24 +1153,33 @@ public class JavaBuilder {
 	}
 
 	public void invoke(int nargs) {
+		invoke(nargs, STR_LUAVALUE);
+	}
+
+	/**
+	 * Invoke the function on the stack through the methods of a class.
+	 *
+	 * @see #call(int, String)
+	 */
+	public void invoke(int nargs, String classname) {
 		switch (nargs) {
 		case -1:
 			append(
-				factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL));
+				factory.createInvoke(classname, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL));
 			break;
 		case 0:
-			append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
+			append(factory.createInvoke(classname, "invoke", TYPE_VARARGS, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
 			break;
 		case 1:
 			append(
-				factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL));
+				factory.createInvoke(classname, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL));
 			break;
 		case 2:
-			append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS,
+			append(factory.createInvoke(classname, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS,
 				Constants.INVOKEVIRTUAL));
 			break;
 		case 3:
-			append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS,
+			append(factory.createInvoke(classname, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS,
 				Constants.INVOKEVIRTUAL));
 			break;
 		default:
@@ -700,15 +1189,39 @@ public class JavaBuilder {
 
 	// ------------------------ closures ------------------------
 
+	/** Narrow the function on the stack to the class generated for it. */
+	public void closureCast(String protoname) {
+		append(factory.createCheckCast(new ObjectType(protoname)));
+	}
+
+	/**
+	 * The number of arguments of the method that runs a prototype's code in
+	 * its generated class, or -1 when it takes varargs.
+	 */
+	static int fixedArity(Prototype p) {
+		int n = p.numparams;
+		if (p.is_vararg != 0 || n >= SUPERTYPE_VARARGS)
+			return -1;
+		for (int inst : p.code) {
+			int o = Lua.GET_OPCODE(inst);
+			if (o == Lua.OP_TAILCALL || o == Lua.OP_RETURN && (Lua.GETARG_B(inst) < 1 || Lua.GETARG_B(inst) > 2))
+				return -1;
+		}
+		return n;
+	}
+
 	public void closureCreate(String protoname) {
 		append(factory.createNew(new ObjectType(protoname)));
 		append(InstructionConstants.DUP);
 		append(factory.createInvoke(protoname, "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+		append(InstructionConstants.DUP);
+		append(InstructionConstants.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Constants.GETFIELD));
+		append(factory.createFieldAccess(protoname, NAME_GLOBALS, TYPE_GLOBALS, Constants.PUTFIELD));
 	}
 
 	public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
-		boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
-		Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+		Type uptype = upvalueType(pi.upvals[upindex]);
 		String srcname = upvalueName(upindex);
 		String destname = upvalueName(newup);
 		append(InstructionConstants.THIS);
@@ -725,7 +1238,8 @@ public class JavaBuilder {
 		append(factory.createFieldAccess(protoname, destname, uptype, Constants.PUTFIELD));
 	}
 
-	private final Map<LuaValue, String> constants = new HashMap<>();
+	private final Map<LuaValue, String> constants   = new HashMap<>();
+	private final Map<LuaValue, String> indexCaches = new HashMap<>();
 
 	public void loadConstant(LuaValue value) {
 		switch (value.type()) {
@@ -776,6 +1290,12 @@ public class JavaBuilder {
 		String name = PREFIX_CONSTANT+constants.size();
 		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, TYPE_LUAVALUE, name, cp);
 		cg.addField(fg.getField());
+		initLuaString(value);
+		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));
+		return name;
+	}
+
+	private void initLuaString(LuaString value) {
 		LuaString ls = value.checkstring();
 		if (ls.isValidUtf8()) {
 			init.append(new PUSH(cp, value.tojstring()));
@@ -791,14 +1311,16 @@ public class JavaBuilder {
 			init.append(factory.createInvoke(STR_LUASTRING, "valueOf", TYPE_LUASTRING, ARG_TYPES_CHARARRAY,
 				Constants.INVOKESTATIC));
 		}
-		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));
-		return name;
 	}
 
 	// --------------------- branching support -------------------------
 	public static final int BRANCH_GOTO = 1;
 	public static final int BRANCH_IFNE = 2;
 	public static final int BRANCH_IFEQ = 3;
+	public static final int BRANCH_IFLT = 4;
+	public static final int BRANCH_IFGE = 5;
+	public static final int BRANCH_IFGT = 6;
+	public static final int BRANCH_IFLE = 7;
 
 	public void addBranch(int pc, int branchType, int targetpc) {
 		switch (branchType) {
@@ -812,6 +1334,18 @@ public class JavaBuilder {
 		case BRANCH_IFEQ:
 			branches[pc] = new IFEQ(null);
 			break;
+		case BRANCH_IFLT:
+			branches[pc] = new IFLT(null);
+			break;
+		case BRANCH_IFGE:
+			branches[pc] = new IFGE(null);
+			break;
+		case BRANCH_IFGT:
+			branches[pc] = new IFGT(null);
+			break;
+		case BRANCH_IFLE:
+			branches[pc] = new IFLE(null);
+			break;
 		}
 		targets[pc] = targetpc;
 		append(branches[pc]);
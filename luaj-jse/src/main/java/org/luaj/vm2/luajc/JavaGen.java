@@ -21,8 +21,11 @@
 ******************************************************************************/
 package org.luaj.vm2.luajc;
 
+import java.util.concurrent.ForkJoinTask;
+
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
 
@@ -35,28 +38,81 @@ public class JavaGen {
 	public final byte[]    bytecode;
 	public final JavaGen[] inners;
 
+	/**
+	 * Whether the function's code was too large for a java method, so that the
+	 * class holds its lua bytecode to be interpreted, and there are no classes
+	 * for the functions nested in it.
+	 */
+	public final boolean interpreted;
+
 	public JavaGen(Prototype p, String classname, String filename, boolean genmain) {
-		this(new ProtoInfo(p, classname), classname, filename, genmain);
+		this(p, classname, filename, genmain, false);
+	}
+
+	/**
+	 * Generate the classes for a prototype and its nested prototypes.
+	 * <p>
+	 * Once the prototypes have been analyzed, the class of each function is
+	 * independent of the others, so they may be generated concurrently. When
+	 * parallel, the classes of nested prototypes are generated as fork-join
+	 * tasks of the pool running the caller, or of the common pool.
+	 *
+	 * @param parallel whether to generate nested classes concurrently
+	 */
+	public JavaGen(Prototype p, String classname, String filename, boolean genmain, boolean parallel) {
+		this(new ProtoInfo(p, classname), classname, filename, genmain, parallel);
 	}
 
-	private JavaGen(ProtoInfo pi, String classname, String filename, boolean genmain) {
+	/**
+	 * Generate the classes for a prototype whose upvalues are those of
+	 * interpreted closures. The class has a public constructor taking the
+	 * {@link org.luaj.vm2.UpValue} array of a closure, unless the prototype has
+	 * no upvalues.
+	 */
+	static JavaGen withSharedUpvalues(Prototype p, String classname, String filename) {
+		return new JavaGen(new ProtoInfo(p, classname, true), classname, filename, false, false);
+	}
+
+	private JavaGen(final ProtoInfo pi, String classname, final String filename, boolean genmain,
+		final boolean parallel) {
 		this.classname = classname;
 
-		// build this class
-		JavaBuilder builder = new JavaBuilder(pi, classname, filename);
-		scanInstructions(pi, classname, builder);
-		for (int i = 0; i < pi.prototype.locvars.length; ++i) {
-			LocVars l = pi.prototype.locvars[i];
-			builder.setVarStartEnd(i, l.startpc, l.endpc, l.varname.tojstring());
+		// build this class, or a class interpreting the function if it is too large
+		byte[] bytecode;
+		boolean interpreted = false;
+		try {
+			JavaBuilder builder = new JavaBuilder(pi, classname, filename);
+			scanInstructions(pi, classname, builder);
+			for (int i = 0; i < pi.prototype.locvars.length; ++i) {
+				LocVars l = pi.prototype.locvars[i];
+				builder.setVarStartEnd(i, l.startpc, l.endpc, l.varname.tojstring());
+			}
+			bytecode = builder.completeClass(genmain);
+		} catch (JavaBuilder.CodeTooLargeException e) {
+			bytecode = new JavaBuilder(pi, classname, filename, true).completeClass(genmain);
+			interpreted = true;
 		}
-		this.bytecode = builder.completeClass(genmain);
+		this.bytecode = bytecode;
+		this.interpreted = interpreted;
 
 		// build sub-prototypes
-		if (pi.subprotos != null) {
+		if (pi.subprotos != null && !interpreted) {
 			int n = pi.subprotos.length;
 			inners = new JavaGen[n];
-			for (int i = 0; i < n; i++)
-				inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false);
+			if (parallel && n > 1) {
+				final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+				for (int i = 0; i < n; i++) {
+					final ProtoInfo sub = pi.subprotos[i];
+					final int index = i;
+					tasks[i] = ForkJoinTask.adapt(() -> {
+						inners[index] = new JavaGen(sub, sub.name, filename, false, true);
+					});
+				}
+				ForkJoinTask.invokeAll(tasks);
+			} else {
+				for (int i = 0; i < n; i++)
+					inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false, parallel);
+			}
 		} else {
 			inners = null;
 		}
@@ -79,7 +135,7 @@ public class JavaGen {
 
 				final int pc0 = pc; // closure changes pc
 				final int ins = p.code[pc];
-				final int line = pc < p.lineinfo.length? p.lineinfo[pc]: -1;
+				final int line = p.getline(pc);
 				final int o = Lua.GET_OPCODE(ins);
 				int a = Lua.GETARG_A(ins);
 				int b = Lua.GETARG_B(ins);
@@ -103,6 +159,11 @@ public class JavaGen {
 					break;
 
 				case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+					if (pi.isNumericSlot(a)) {
+						builder.loadNumber(b);
+						builder.storeNumber(pc, a);
+						break;
+					}
 					builder.loadLocal(pc, b);
 					builder.storeLocal(pc, a);
 					break;
@@ -110,12 +171,23 @@ public class JavaGen {
 				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
 				case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
 				case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+					if (o == Lua.OP_UNM && pi.isNumericSlot(b)) {
+						builder.loadNumber(b);
+						builder.numericUnaryop(o);
+						builder.storeNumber(pc, a);
+						break;
+					}
 					builder.loadLocal(pc, b);
 					builder.unaryop(o);
 					builder.storeLocal(pc, a);
 					break;
 
 				case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+					if (pi.isNumericSlot(a)) {
+						builder.loadNumber(p.k[bx].todouble());
+						builder.storeNumber(pc, a);
+						break;
+					}
 					builder.loadConstant(p.k[bx]);
 					builder.storeLocal(pc, a);
 					break;
@@ -130,6 +202,13 @@ public class JavaGen {
 					break;
 
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
+					if (Lua.ISK(c) && p.k[c & 0xff].type() == LuaValue.TSTRING) {
+						builder.loadIndexCache(p.k[c & 0xff].checkstring());
+						builder.loadUpvalue(b);
+						builder.getTableCached();
+						builder.storeLocal(pc, a);
+						break;
+					}
 					builder.loadUpvalue(b);
 					loadLocalOrConstant(p, builder, pc, c);
 					builder.getTable();
@@ -163,6 +242,15 @@ public class JavaGen {
 				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
 				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
 				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+					if (pi.isNumericRK(b) && pi.isNumericRK(c)) {
+						loadNumberOrConstant(p, builder, b);
+						if (o == Lua.OP_POW && !Lua.ISK(b))
+							builder.normalizeZero();
+						loadNumberOrConstant(p, builder, c);
+						builder.numericBinaryop(o);
+						builder.storeNumber(pc, a);
+						break;
+					}
 					loadLocalOrConstant(p, builder, pc, b);
 					loadLocalOrConstant(p, builder, pc, c);
 					builder.binaryop(o);
@@ -211,6 +299,13 @@ public class JavaGen {
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
 				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
 				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+					if (pi.isNumericRK(b) && pi.isNumericRK(c)) {
+						loadNumberOrConstant(p, builder, b);
+						loadNumberOrConstant(p, builder, c);
+						builder.numericCompareop(o);
+						builder.addBranch(pc, numericBranch(o, a != 0), pc+2);
+						break;
+					}
 					loadLocalOrConstant(p, builder, pc, b);
 					loadLocalOrConstant(p, builder, pc, c);
 					builder.compareop(o);
@@ -233,32 +328,56 @@ public class JavaGen {
 
 				case Lua.OP_CALL: { /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
 
-					// load function
+					// load function, as an instance of its class when known
+					ProtoInfo callee = pi.findCalledFunction(pc);
 					builder.loadLocal(pc, a);
+					if (callee != null)
+						builder.closureCast(callee.name);
 
 					// load args
 					int narg = b-1;
-					switch (narg) {
-					case 0:
-					case 1:
-					case 2:
-					case 3:
-						for (int i = 1; i < b; i++)
-							builder.loadLocal(pc, a+i);
-						break;
-					default: // fixed arg count > 3
-						builder.newVarargs(pc, a+1, b-1);
-						narg = -1;
-						break;
-					case -1: // prev vararg result
-						loadVarargResults(builder, pc, a+1, vresultbase);
-						narg = -1;
-						break;
+					int arity = callee != null? JavaBuilder.fixedArity(callee.prototype): -1;
+					if (arity >= 0) {
+						// pass exactly the parameters, to call the known function's own method
+						for (int i = 1; i <= arity; i++) {
+							if (narg >= 0 && i > narg) {
+								builder.loadNil();
+							} else if (narg >= 0 || a+i < vresultbase) {
+								builder.loadLocal(pc, a+i);
+							} else {
+								builder.loadVarresult();
+								builder.arg(a+i-vresultbase+1);
+							}
+						}
+						narg = arity;
+					} else {
+						switch (narg) {
+						case 0:
+						case 1:
+						case 2:
+						case 3:
+							for (int i = 1; i < b; i++)
+								builder.loadLocal(pc, a+i);
+							break;
+						default: // fixed arg count > 3
+							builder.newVarargs(pc, a+1, b-1);
+							narg = -1;
+							break;
+						case -1: // prev vararg result
+							loadVarargResults(builder, pc, a+1, vresultbase);
+							narg = -1;
+							break;
+						}
 					}
 
 					// call or invoke
 					boolean useinvoke = narg < 0 || c < 1 || c > 2;
-					if (useinvoke)
+					if (callee != null) {
+						if (useinvoke)
+							builder.invoke(narg, callee.name);
+						else
+							builder.call(narg, callee.name);
+					} else if (useinvoke)
 						builder.invoke(narg);
 					else
 						builder.call(narg);
@@ -336,6 +455,21 @@ public class JavaGen {
 					break;
 
 				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+					if (pi.isNumericForLoop(pc)) {
+						int looppc = pc+1+sbx;
+						loadForLoopNumber(pi, builder, pc, a, "'for' initial value must be a number");
+						builder.storeForLoop(looppc, 0);
+						loadForLoopNumber(pi, builder, pc, a+1, "'for' limit must be a number");
+						builder.storeForLoop(looppc, 1);
+						loadForLoopNumber(pi, builder, pc, a+2, "'for' step must be a number");
+						builder.storeForLoop(looppc, 2);
+						builder.loadForLoop(looppc, 0);
+						builder.loadForLoop(looppc, 2);
+						builder.numericBinaryop(Lua.OP_SUB);
+						builder.storeForLoop(looppc, 0);
+						builder.addBranch(pc, JavaBuilder.BRANCH_GOTO, looppc);
+						break;
+					}
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop(Lua.OP_SUB);
@@ -344,6 +478,24 @@ public class JavaGen {
 					break;
 
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if (pi.isNumericForLoop(pc)) {
+						builder.loadForLoop(pc, 0);
+						builder.loadForLoop(pc, 2);
+						builder.numericBinaryop(Lua.OP_ADD);
+						builder.dup2();
+						builder.storeForLoop(pc, 0);
+						builder.storeNumber(pc, a+3);
+						LuaValue step = pi.findForLoopStep(pc);
+						if (step != null) {
+							boolean up = step.todouble() > 0;
+							builder.compareForLoop(pc, up);
+							builder.addBranch(pc, up? JavaBuilder.BRANCH_IFLE: JavaBuilder.BRANCH_IFGE, pc+1+sbx);
+						} else {
+							builder.testForLoop(pc);
+							builder.addBranch(pc, JavaBuilder.BRANCH_IFNE, pc+1+sbx);
+						}
+						break;
+					}
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop(Lua.OP_ADD);
@@ -445,6 +597,35 @@ public class JavaGen {
 		}
 	}
 
+	private void loadNumberOrConstant(Prototype p, JavaBuilder builder, int borc) {
+		if (borc <= 0xff)
+			builder.loadNumber(borc);
+		else
+			builder.loadNumber(p.k[borc & 0xff].todouble());
+	}
+
+	private void loadForLoopNumber(ProtoInfo pi, JavaBuilder builder, int pc, int slot, String msg) {
+		if (pi.isNumericSlot(slot)) {
+			builder.loadNumber(slot);
+		} else {
+			builder.loadLocal(pc, slot);
+			builder.checkNumber(msg);
+		}
+	}
+
+	// branch that skips the next instruction when a comparison result differs from a
+	private static int numericBranch(int o, boolean a) {
+		switch (o) {
+		default:
+		case Lua.OP_EQ:
+			return a? JavaBuilder.BRANCH_IFNE: JavaBuilder.BRANCH_IFEQ;
+		case Lua.OP_LT:
+			return a? JavaBuilder.BRANCH_IFGE: JavaBuilder.BRANCH_IFLT;
+		case Lua.OP_LE:
+			return a? JavaBuilder.BRANCH_IFGT: JavaBuilder.BRANCH_IFLE;
+		}
+	}
+
 	private void loadLocalOrConstant(Prototype p, JavaBuilder builder, int pc, int borc) {
 		if (borc <= 0xff)
 			builder.loadLocal(pc, borc);
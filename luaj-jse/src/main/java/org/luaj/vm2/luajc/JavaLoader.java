@@ -1,7 +1,10 @@
 package org.luaj.vm2.luajc;
 
-import java.util.HashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.Cleaner;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaValue;
@@ -28,13 +31,45 @@ import org.luaj.vm2.Prototype;
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
  * SOFTWARE.
  ******************************************************************************/
+/**
+ * Class loader for the classes generated for the functions of one chunk.
+ * <p>
+ * Classes generated for a function with no nested functions refer to no other
+ * generated class, so they may instead be defined as hidden classes by
+ * {@link #loadHidden(JavaGen, LuaValue)}, without a class loader of their own.
+ * A hidden class is unloaded as soon as it is unreachable, independently of
+ * other classes. Its name must be in the package of this class, see
+ * {@link #HIDDEN_PACKAGE}.
+ * <p>
+ * The number and size of the generated classes currently loaded, in either
+ * way, are reported by {@link #liveClasses()} and {@link #liveBytes()}.
+ */
 public class JavaLoader extends ClassLoader {
 
-	private final Map<String, byte[]> unloaded = new HashMap<>();
+	static {
+		registerAsParallelCapable();
+	}
+
+	/** Prefix of the names of classes to be defined as hidden classes. */
+	public static final String HIDDEN_PACKAGE = JavaLoader.class.getPackage().getName() + ".";
+
+	private static final Cleaner    cleaner     = Cleaner.create();
+	private static final AtomicLong liveClasses = new AtomicLong();
+	private static final AtomicLong liveBytes   = new AtomicLong();
+
+	private final Map<String, byte[]> unloaded = new ConcurrentHashMap<>();
+	private final Usage               usage    = new Usage();
 
 	public JavaLoader() {
+		cleaner.register(this, usage);
 	}
 
+	/** Number of generated classes that have been defined and not unloaded. */
+	public static long liveClasses() { return liveClasses.get(); }
+
+	/** Total size of the generated classes that have been defined and not unloaded. */
+	public static long liveBytes() { return liveBytes.get(); }
+
 	public LuaFunction load(Prototype p, String classname, String filename, LuaValue env) {
 		JavaGen jg = new JavaGen(p, classname, filename, false);
 		return load(jg, env);
@@ -47,16 +82,84 @@ public class JavaLoader extends ClassLoader {
 
 	public LuaFunction load(String classname, LuaValue env) {
 		try {
-			Class c = loadClass(classname);
-			LuaFunction v = (LuaFunction) c.newInstance();
-			v.initupvalue1(env);
-			return v;
+			return newInstance(loadClass(classname), env);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IllegalStateException("bad class gen: " + e);
+		}
+	}
+
+	/**
+	 * Define the class of a function with no nested functions as a hidden
+	 * class and construct an instance of it.
+	 *
+	 * @param jg  the generated class, whose name starts with
+	 *            {@link #HIDDEN_PACKAGE}
+	 * @param env the environment of the function
+	 */
+	public static LuaFunction loadHidden(JavaGen jg, LuaValue env) {
+		if (jg.inners != null)
+			throw new IllegalArgumentException("nested functions need a class loader: " + jg.classname);
+		return loadHidden(jg.bytecode, env);
+	}
+
+	/**
+	 * Define the class of a function with no nested functions as a hidden
+	 * class and construct an instance of it.
+	 *
+	 * @param bytecode the class bytes, naming a class in
+	 *                 {@link #HIDDEN_PACKAGE}
+	 * @param env      the environment of the function
+	 */
+	public static LuaFunction loadHidden(byte[] bytecode, LuaValue env) {
+		try {
+			return newInstance(defineHidden(bytecode), env);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new IllegalStateException("bad class gen: " + e);
 		}
 	}
 
+	/**
+	 * Define the class of a function with no nested functions as a hidden
+	 * class.
+	 *
+	 * @param jg the generated class, whose name starts with
+	 *           {@link #HIDDEN_PACKAGE}
+	 * @throws IllegalArgumentException if the function has nested functions
+	 * @throws IllegalAccessException   if the class is not in
+	 *                                  {@link #HIDDEN_PACKAGE}
+	 */
+	public static Class<?> defineHidden(JavaGen jg) throws IllegalAccessException {
+		if (jg.inners != null)
+			throw new IllegalArgumentException("nested functions need a class loader: " + jg.classname);
+		return defineHidden(jg.bytecode);
+	}
+
+	private static Class<?> defineHidden(byte[] bytecode) throws IllegalAccessException {
+		final Class<?> c = MethodHandles.lookup().defineHiddenClass(bytecode, true).lookupClass();
+		final Usage u = new Usage();
+		u.add(bytecode.length);
+		cleaner.register(c, u);
+		return c;
+	}
+
+	static LuaFunction newInstance(Class<?> c, LuaValue env) throws ReflectiveOperationException {
+		LuaFunction v = (LuaFunction) c.getConstructor().newInstance();
+		v.initupvalue1(env);
+		return v;
+	}
+
+	/**
+	 * Add classes to be defined by this loader when they are first loaded.
+	 *
+	 * @param classes map from class name to class bytes
+	 */
+	public void include(Map<?, ?> classes) {
+		for (Map.Entry<?, ?> e : classes.entrySet())
+			unloaded.put((String) e.getKey(), (byte[]) e.getValue());
+	}
+
 	public void include(JavaGen jg) {
 		unloaded.put(jg.classname, jg.bytecode);
 		for (int i = 0, n = jg.inners != null? jg.inners.length: 0; i < n; i++)
@@ -65,10 +168,30 @@ public class JavaLoader extends ClassLoader {
 
 	@Override
 	public Class findClass(String classname) throws ClassNotFoundException {
-		byte[] bytes = unloaded.get(classname);
-		if (bytes != null)
+		byte[] bytes = unloaded.remove(classname);
+		if (bytes != null) {
+			usage.add(bytes.length);
 			return defineClass(classname, bytes, 0, bytes.length);
+		}
 		return super.findClass(classname);
 	}
 
+	/* classes defined by a loader, or a hidden class, to be counted out when unloaded */
+	private static final class Usage implements Runnable {
+		private final AtomicLong classes = new AtomicLong();
+		private final AtomicLong bytes   = new AtomicLong();
+
+		void add(int length) {
+			classes.incrementAndGet();
+			bytes.addAndGet(length);
+			liveClasses.incrementAndGet();
+			liveBytes.addAndGet(length);
+		}
+
+		@Override
+		public void run() {
+			liveClasses.addAndGet(-classes.get());
+			liveBytes.addAndGet(-bytes.get());
+		}
+	}
 }
@@ -55,12 +55,41 @@ import org.luaj.vm2.compiler.LuaC;
  * }
  * </pre>
  * <p>
+ * Registers that provably only hold numbers, such as the counters of numeric
+ * for loops and locals assigned only number constants or arithmetic on other
+ * such registers, are kept in java {@code double} locals and only boxed where
+ * their values are passed on.
+ * <p>
+ * Calls of functions known at compile time, such as a {@code local function}
+ * that is never assigned, called from the chunk or from within itself, invoke
+ * the method of the function's generated class directly, with exactly the
+ * arguments it takes.
+ * <p>
+ * A function whose code is too large for a java method is not compiled. Its
+ * class holds the function's lua bytecode instead, and runs it, together with
+ * the functions nested in it, in the interpreter, so that the rest of the
+ * chunk can still be compiled.
+ * <p>
+ * Compiled functions do not call the debug library, so they run as fast with
+ * it loaded as without. Their frames are found on the java stack only when a
+ * traceback or {@code debug.getinfo} asks for them, and are described from the
+ * line number tables and constant fields of their classes, without their
+ * locals. Debug hooks are not called for compiled functions.
+ * <p>
+ * The classes of a chunk are defined by a {@link JavaLoader} of their own, or,
+ * for a chunk with no nested functions, as a hidden class, which needs no class
+ * loader and can be unloaded on its own. A {@link ClassCache} keeps the
+ * generated classes between runs, and a {@link Bundle} loads the classes
+ * {@code luajc -b} compiled ahead of time.
+ * <p>
  * This requires the bcel library to be on the class path to work as expected.
  * If the library is not found, the default {@link LuaC} lua-to-lua-bytecode
  * compiler will be used.
  *
  * @see Globals#compiler
  * @see #install(Globals)
+ * @see ClassCache
+ * @see Bundle
  * @see org.luaj.vm2.compiler.LuaC
  * @see LuaValue
  */
@@ -76,27 +105,83 @@ public class LuaJC implements Globals.Loader {
 		G.loader = instance;
 	}
 
-	protected LuaJC() {}
+	private final ClassCache cache;
+
+	protected LuaJC() {
+		this(null);
+	}
+
+	/**
+	 * Construct a loader that looks up the classes of each chunk in a cache
+	 * before generating them, and adds them to it after.
+	 *
+	 * @param cache the cache, or null to always generate the classes
+	 */
+	public LuaJC(ClassCache cache) {
+		this.cache = cache;
+	}
 
 	public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain)
 		throws IOException {
-		final String classname = toStandardJavaClassName(chunkname);
-		final Prototype p = globals.loadPrototype(script, classname, "bt");
-		return compileProtoAndSubProtos(p, classname, filename, genmain);
+		return compileAll(script, chunkname, filename, globals, genmain, false);
 	}
 
 	public Hashtable compileAll(Reader script, String chunkname, String filename, Globals globals, boolean genmain)
 		throws IOException {
+		return compileAll(script, chunkname, filename, globals, genmain, false);
+	}
+
+	/**
+	 * Compile a chunk into the classes for its main function and all the
+	 * functions within it.
+	 *
+	 * @param parallel whether to generate the classes of nested functions
+	 *                 concurrently, as fork-join tasks in the current pool or
+	 *                 the common pool
+	 * @return map from class name to class bytes
+	 */
+	public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain,
+		boolean parallel) throws IOException {
+		final String classname = toStandardJavaClassName(chunkname);
+		final Prototype p = globals.loadPrototype(script, classname, "bt");
+		return compileProtoAndSubProtos(p, classname, filename, genmain, parallel);
+	}
+
+	/**
+	 * Compile a chunk into the classes for its main function and all the
+	 * functions within it.
+	 *
+	 * @param parallel whether to generate the classes of nested functions
+	 *                 concurrently, as fork-join tasks in the current pool or
+	 *                 the common pool
+	 * @return map from class name to class bytes
+	 */
+	public Hashtable compileAll(Reader script, String chunkname, String filename, Globals globals, boolean genmain,
+		boolean parallel) throws IOException {
 		final String classname = toStandardJavaClassName(chunkname);
 		final Prototype p = globals.compilePrototype(script, classname);
-		return compileProtoAndSubProtos(p, classname, filename, genmain);
+		return compileProtoAndSubProtos(p, classname, filename, genmain, parallel);
 	}
 
-	private Hashtable compileProtoAndSubProtos(Prototype p, String classname, String filename, boolean genmain)
+	/**
+	 * Compile the prototype of a chunk into the classes for its main function
+	 * and all the functions within it.
+	 *
+	 * @param parallel whether to generate the classes of nested functions
+	 *                 concurrently, as fork-join tasks in the current pool or
+	 *                 the common pool
+	 * @return map from class name to class bytes
+	 */
+	public Hashtable compileAll(Prototype p, String chunkname, String filename, boolean genmain, boolean parallel)
 		throws IOException {
+		return compileProtoAndSubProtos(p, toStandardJavaClassName(chunkname), filename, genmain, parallel);
+	}
+
+	private Hashtable compileProtoAndSubProtos(Prototype p, String classname, String filename, boolean genmain,
+		boolean parallel) throws IOException {
 		final String luaname = toStandardLuaFileName(filename);
 		final Hashtable h = new Hashtable();
-		final JavaGen gen = new JavaGen(p, classname, luaname, genmain);
+		final JavaGen gen = new JavaGen(p, classname, luaname, genmain, parallel);
 		insert(h, gen);
 		return h;
 	}
@@ -110,12 +195,30 @@ public class LuaJC implements Globals.Loader {
 	@Override
 	public LuaFunction load(Prototype p, String name, LuaValue globals) throws IOException {
 		String luaname = toStandardLuaFileName(name);
-		String classname = toStandardJavaClassName(luaname);
+		boolean hidden = p.p.length == 0;
+		String classname = (hidden? JavaLoader.HIDDEN_PACKAGE: "") + toStandardJavaClassName(luaname);
+		Hashtable h = cache != null? cache.get(p, classname, luaname): null;
+		if (h == null) {
+			h = new Hashtable();
+			insert(h, new JavaGen(p, classname, luaname, false));
+			if (cache != null)
+				cache.put(p, classname, luaname, h);
+		}
+		if (hidden)
+			return JavaLoader.loadHidden((byte[]) h.get(classname), globals);
 		JavaLoader loader = new JavaLoader();
-		return loader.load(p, classname, luaname, globals);
+		loader.include(h);
+		return loader.load(classname, globals);
 	}
 
-	private static String toStandardJavaClassName(String luachunkname) {
+	/**
+	 * Get the name of the class generated for the main function of a chunk.
+	 *
+	 * @param luachunkname the chunk name
+	 * @return the class name, with characters not valid in java identifiers
+	 *         replaced by '_'
+	 */
+	public static String toStandardJavaClassName(String luachunkname) {
 		String stub = toStub(luachunkname);
 		StringBuffer classname = new StringBuffer();
 		for (int i = 0, n = stub.length(); i < n; ++i) {
@@ -126,7 +229,7 @@ public class LuaJC implements Globals.Loader {
 		return classname.toString();
 	}
 
-	private static String toStandardLuaFileName(String luachunkname) {
+	static String toStandardLuaFileName(String luachunkname) {
 		String stub = toStub(luachunkname);
 		String filename = stub.replace('.', '/') + ".lua";
 		return filename.startsWith("@")? filename.substring(1): filename;
@@ -6,6 +6,7 @@ import java.util.Hashtable;
 
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
@@ -24,16 +25,28 @@ public class ProtoInfo {
 	public final VarInfo[][]   vars;      // Each variable
 	public final UpvalInfo[]   upvals;    // from outer scope
 	public final UpvalInfo[][] openups;   // per slot, upvalues allocated by this prototype
+	public final boolean[]     numericfor; // per pc, FORPREP and FORLOOP of loops counted in doubles
+	public final boolean[]     numeric;   // per slot, slots that only ever hold numbers
 
 	// A main chunk proto info.
 	public ProtoInfo(Prototype p, String name) {
 		// For the outer chunk, we have one upvalue which is the environment.
-		this(p, name, null);
+		this(p, name, null, false);
 	}
 
-	private ProtoInfo(Prototype p, String name, UpvalInfo[] u) {
+	// A proto info for a function whose upvalues are those of an interpreted closure.
+	public ProtoInfo(Prototype p, String name, boolean shared) {
+		this(p, name, null, shared);
+	}
+
+	private ProtoInfo(Prototype p, String name, UpvalInfo[] u, boolean shared) {
 		this.name = name;
-		this.prototype = p;
+		this.prototype = p.decode();
+		if (u == null && shared) {
+			u = new UpvalInfo[p.upvalues.length];
+			for (int i = 0; i < u.length; i++)
+				u[i] = UpvalInfo.shared(this);
+		}
 		this.upvals = u != null? u: new UpvalInfo[] { new UpvalInfo(this) };
 		this.subprotos = p.p != null && p.p.length > 0? new ProtoInfo[p.p.length]: null;
 
@@ -55,6 +68,10 @@ public class ProtoInfo {
 		// find upvalues, create sub-prototypes
 		this.openups = new UpvalInfo[p.maxstacksize][];
 		findUpvalues();
+
+		// find registers whose values are known to be numbers
+		this.numericfor = findNumericForLoops();
+		this.numeric = findNumericSlots();
 	}
 
 	@Override
@@ -410,8 +427,7 @@ public class ProtoInfo {
 	}
 
 	private void substituteVariable(int slot, VarInfo vold, VarInfo vnew) {
-		for (int i = 0, n = prototype.code.length; i < n; i++)
-			replaceAll(vars[slot], vars[slot].length, vold, vnew);
+		replaceAll(vars[slot], vars[slot].length, vold, vnew);
 	}
 
 	private void replaceAll(VarInfo[] v, int n, VarInfo vold, VarInfo vnew) {
@@ -426,20 +442,31 @@ public class ProtoInfo {
 
 		// propogate to inner prototypes
 		String[] names = findInnerprotoNames();
+		Hashtable byvalue = new Hashtable();
+		Hashtable byreference = new Hashtable();
 		for (int pc = 0; pc < n; pc++) {
 			if (Lua.GET_OPCODE(code[pc]) == Lua.OP_CLOSURE) {
 				int bx = Lua.GETARG_Bx(code[pc]);
 				Prototype newp = prototype.p[bx];
 				UpvalInfo[] newu = new UpvalInfo[newp.upvalues.length];
 				String newname = name + "$" + names[bx];
+				boolean copies = prototype.capturesByValue(bx);
 				for (int j = 0; j < newp.upvalues.length; ++j) {
 					Upvaldesc u = newp.upvalues[j];
 					newu[j] = u.instack? findOpenUp(pc, u.idx): upvals[u.idx];
+					if (u.instack)
+						(copies? byvalue: byreference).put(newu[j], newu[j]);
 				}
-				subprotos[bx] = new ProtoInfo(newp, newname, newu);
+				subprotos[bx] = new ProtoInfo(newp, newname, newu, false);
 			}
 		}
 
+		// locals assigned only before every closure capturing them is created
+		// need no holder, even when several assignments reach the captures
+		for (Object u : byvalue.keySet())
+			if (!byreference.containsKey(u))
+				((UpvalInfo) u).rw = false;
+
 		// mark all upvalues that are written locally as read/write
 		for (int pc = 0; pc < n; pc++) {
 			if (Lua.GET_OPCODE(code[pc]) == Lua.OP_SETUPVAL)
@@ -459,6 +486,323 @@ public class ProtoInfo {
 		return u;
 	}
 
+	/**
+	 * Find the numeric for loops whose control registers R(A) to R(A+2) are not
+	 * touched outside their FORPREP and FORLOOP, so the index, limit and step
+	 * can be kept in java locals instead of the registers.
+	 */
+	private boolean[] findNumericForLoops() {
+		int[] code = prototype.code;
+		int n = code.length;
+		boolean[] loops = new boolean[n];
+		for (int pc = 0; pc < n; pc++) {
+			int ins = code[pc];
+			if (Lua.GET_OPCODE(ins) != Lua.OP_FORPREP)
+				continue;
+			int a = Lua.GETARG_A(ins);
+			int end = pc+1+Lua.GETARG_sBx(ins);
+			if (end <= pc || end >= n || Lua.GET_OPCODE(code[end]) != Lua.OP_FORLOOP || Lua.GETARG_A(code[end]) != a
+				|| end+1+Lua.GETARG_sBx(code[end]) != pc+1)
+				continue;
+			boolean ok = true;
+			for (int i = 0; ok && i < n; i++) {
+				if (i == pc || i == end)
+					continue;
+				if (i > pc && i < end && usesRegisters(code[i], a, a+2))
+					ok = false;
+				else if ((i < pc || i > end) && branchesInto(code, i, pc+1, end))
+					ok = false;
+				if (Lua.GET_OPCODE(code[i]) == Lua.OP_SETLIST && Lua.GETARG_C(code[i]) == 0)
+					i++;
+			}
+			loops[pc] = loops[end] = ok;
+		}
+		return loops;
+	}
+
+	private static boolean branchesInto(int[] code, int pc, int lo, int hi) {
+		int ins = code[pc];
+		int target;
+		switch (Lua.GET_OPCODE(ins)) {
+		case Lua.OP_JMP:
+		case Lua.OP_FORPREP:
+		case Lua.OP_FORLOOP:
+		case Lua.OP_TFORLOOP:
+			target = pc+1+Lua.GETARG_sBx(ins);
+			break;
+		case Lua.OP_EQ:
+		case Lua.OP_LT:
+		case Lua.OP_LE:
+		case Lua.OP_TEST:
+		case Lua.OP_TESTSET:
+		case Lua.OP_LOADBOOL:
+			target = pc+2;
+			break;
+		default:
+			return false;
+		}
+		return target >= lo && target <= hi;
+	}
+
+	/** Whether an instruction may read or write any register from lo to hi. */
+	private boolean usesRegisters(int ins, int lo, int hi) {
+		final int m = Integer.MAX_VALUE;
+		int a = Lua.GETARG_A(ins);
+		int b = Lua.GETARG_B(ins);
+		int c = Lua.GETARG_C(ins);
+		switch (Lua.GET_OPCODE(ins)) {
+		case Lua.OP_JMP:
+			return false;
+		case Lua.OP_LOADK:
+		case Lua.OP_LOADBOOL:
+		case Lua.OP_GETUPVAL:
+		case Lua.OP_NEWTABLE:
+		case Lua.OP_SETUPVAL:
+		case Lua.OP_TEST:
+			return overlaps(a, a, lo, hi);
+		case Lua.OP_MOVE:
+		case Lua.OP_UNM:
+		case Lua.OP_NOT:
+		case Lua.OP_LEN:
+		case Lua.OP_TESTSET:
+			return overlaps(a, a, lo, hi) || overlaps(b, b, lo, hi);
+		case Lua.OP_ADD:
+		case Lua.OP_SUB:
+		case Lua.OP_MUL:
+		case Lua.OP_DIV:
+		case Lua.OP_MOD:
+		case Lua.OP_POW:
+		case Lua.OP_SETTABLE:
+			return overlaps(a, a, lo, hi) || overlapsRK(b, lo, hi) || overlapsRK(c, lo, hi);
+		case Lua.OP_GETTABLE:
+			return overlaps(a, a, lo, hi) || overlaps(b, b, lo, hi) || overlapsRK(c, lo, hi);
+		case Lua.OP_GETTABUP:
+			return overlaps(a, a, lo, hi) || overlapsRK(c, lo, hi);
+		case Lua.OP_SETTABUP:
+		case Lua.OP_EQ:
+		case Lua.OP_LT:
+		case Lua.OP_LE:
+			return overlapsRK(b, lo, hi) || overlapsRK(c, lo, hi);
+		case Lua.OP_SELF:
+			return overlaps(a, a+1, lo, hi) || overlaps(b, b, lo, hi) || overlapsRK(c, lo, hi);
+		case Lua.OP_CONCAT:
+			return overlaps(a, a, lo, hi) || overlaps(b, c, lo, hi);
+		case Lua.OP_LOADNIL:
+			return overlaps(a, a+b, lo, hi);
+		case Lua.OP_CALL:
+			return overlaps(a, b == 0 || c == 0? m: Math.max(a+b-1, a+c-2), lo, hi);
+		case Lua.OP_TAILCALL:
+			return overlaps(a, b == 0? m: a+b-1, lo, hi);
+		case Lua.OP_RETURN:
+		case Lua.OP_VARARG:
+			return overlaps(a, b == 0? m: a+b-2, lo, hi);
+		case Lua.OP_FORPREP:
+		case Lua.OP_FORLOOP:
+			return overlaps(a, a+3, lo, hi);
+		case Lua.OP_TFORCALL:
+			return overlaps(a, a+2+c, lo, hi);
+		case Lua.OP_TFORLOOP:
+			return overlaps(a, a+1, lo, hi);
+		case Lua.OP_SETLIST:
+			return overlaps(a, b == 0? m: a+b, lo, hi);
+		case Lua.OP_CLOSURE: {
+			if (overlaps(a, a, lo, hi))
+				return true;
+			Upvaldesc[] upvalues = prototype.p[Lua.GETARG_Bx(ins)].upvalues;
+			for (Upvaldesc u : upvalues)
+				if (u.instack && overlaps(u.idx, u.idx, lo, hi))
+					return true;
+			return false;
+		}
+		default:
+			return true;
+		}
+	}
+
+	private static boolean overlaps(int first, int last, int lo, int hi) {
+		return first <= hi && last >= lo;
+	}
+
+	private static boolean overlapsRK(int borc, int lo, int hi) {
+		return !Lua.ISK(borc) && overlaps(borc, borc, lo, hi);
+	}
+
+	/**
+	 * Find the slots that only ever hold numbers: slots that are not
+	 * parameters or upvalues, whose initial value is not used, and whose every
+	 * assignment is a number constant, the visible index of a numeric for loop,
+	 * or arithmetic on numbers. Starting from all candidates, slots with any
+	 * other assignment are removed until nothing changes.
+	 */
+	private boolean[] findNumericSlots() {
+		int[] code = prototype.code;
+		int m = prototype.maxstacksize;
+		boolean[] numeric = new boolean[m];
+		for (int slot = prototype.numparams; slot < m; slot++)
+			numeric[slot] = !isInitialValueUsed(slot) && !isUpvalueSlot(slot);
+		for (boolean changed = true; changed;) {
+			changed = false;
+			for (BasicBlock b0 : blocklist) {
+				for (int pc = b0.pc0; pc <= b0.pc1; pc++) {
+					int ins = code[pc];
+					int a = Lua.GETARG_A(ins);
+					int b = Lua.GETARG_B(ins);
+					int c = Lua.GETARG_C(ins);
+					int first = a, last = a;
+					boolean isnumber = false;
+					switch (Lua.GET_OPCODE(ins)) {
+					case Lua.OP_LOADK:
+						isnumber = prototype.k[Lua.GETARG_Bx(ins)].type() == LuaValue.TNUMBER;
+						break;
+					case Lua.OP_MOVE:
+					case Lua.OP_UNM:
+						isnumber = numeric[b];
+						break;
+					case Lua.OP_ADD:
+					case Lua.OP_SUB:
+					case Lua.OP_MUL:
+					case Lua.OP_DIV:
+					case Lua.OP_MOD:
+					case Lua.OP_POW:
+						isnumber = isNumericRK(numeric, b) && isNumericRK(numeric, c);
+						break;
+					case Lua.OP_FORPREP:
+						if (numericfor[pc])
+							continue;
+						break;
+					case Lua.OP_FORLOOP:
+						if (numericfor[pc])
+							first = a+3;
+						last = a+3;
+						isnumber = numericfor[pc];
+						break;
+					case Lua.OP_LOADBOOL:
+					case Lua.OP_GETUPVAL:
+					case Lua.OP_NEWTABLE:
+					case Lua.OP_NOT:
+					case Lua.OP_LEN:
+					case Lua.OP_TESTSET:
+					case Lua.OP_CONCAT:
+					case Lua.OP_GETTABLE:
+					case Lua.OP_GETTABUP:
+					case Lua.OP_CLOSURE:
+					case Lua.OP_TFORLOOP:
+						break;
+					case Lua.OP_SELF:
+						last = a+1;
+						break;
+					case Lua.OP_LOADNIL:
+						last = a+b;
+						break;
+					case Lua.OP_VARARG:
+						last = b == 0? m-1: a+b-2;
+						break;
+					case Lua.OP_CALL:
+						last = c == 0? m-1: a+c-2;
+						break;
+					case Lua.OP_TFORCALL:
+						first = a+3;
+						last = a+2+c;
+						break;
+					case Lua.OP_SETLIST:
+						if (c == 0)
+							pc++;
+						continue;
+					default:
+						continue;
+					}
+					if (isnumber)
+						continue;
+					for (int slot = first; slot <= last && slot < m; slot++) {
+						if (numeric[slot]) {
+							numeric[slot] = false;
+							changed = true;
+						}
+					}
+				}
+			}
+		}
+		return numeric;
+	}
+
+	private boolean isNumericRK(boolean[] numeric, int borc) {
+		return Lua.ISK(borc)? prototype.k[borc & 0x0ff].type() == LuaValue.TNUMBER: numeric[borc];
+	}
+
+	private boolean isUpvalueSlot(int slot) {
+		if (params[slot].upvalue != null)
+			return true;
+		for (VarInfo v : vars[slot])
+			if (v != null && v.upvalue != null)
+				return true;
+		return false;
+	}
+
+	/** Whether a slot only ever holds numbers and is kept in a java double. */
+	public boolean isNumericSlot(int slot) {
+		return numeric[slot];
+	}
+
+	/** Whether an RK operand is a number constant or a numeric slot. */
+	public boolean isNumericRK(int borc) {
+		return isNumericRK(numeric, borc);
+	}
+
+	/** Whether the FORPREP or FORLOOP at pc counts in java doubles. */
+	public boolean isNumericForLoop(int pc) {
+		return numericfor[pc];
+	}
+
+	/**
+	 * The step of the for loop ending with the FORLOOP at looppc when it is a
+	 * number constant, or null.
+	 */
+	public LuaValue findForLoopStep(int looppc) {
+		int prep = looppc+Lua.GETARG_sBx(prototype.code[looppc]);
+		int a = Lua.GETARG_A(prototype.code[looppc]);
+		VarInfo v = vars[a+2][prep];
+		// closures sharing a read-write upvalue may assign it unseen
+		if (v == null || v.pc < 0 || v.isPhiVar() || v.upvalue != null && v.upvalue.rw)
+			return null;
+		int ins = prototype.code[v.pc];
+		if (Lua.GET_OPCODE(ins) != Lua.OP_LOADK || Lua.GETARG_A(ins) != a+2)
+			return null;
+		LuaValue k = prototype.k[Lua.GETARG_Bx(ins)];
+		return k.type() == LuaValue.TNUMBER? k: null;
+	}
+
+	/**
+	 * The function called by the CALL at pc when the called register provably
+	 * holds a closure created by this function or an enclosing one, such as a
+	 * {@code local function} that is never assigned, or null.
+	 * <p>
+	 * Only valid once the prototypes enclosing this one have been analyzed.
+	 */
+	public ProtoInfo findCalledFunction(int pc) {
+		if (pc == blocks[pc].pc0)
+			return null;
+		return findClosure(vars[Lua.GETARG_A(prototype.code[pc])][pc-1]);
+	}
+
+	private ProtoInfo findClosure(VarInfo v) {
+		// closures sharing a read-write upvalue may assign it unseen
+		if (v == null || v.pc < 0 || v.isPhiVar() || v.upvalue != null && v.upvalue.rw)
+			return null;
+		int ins = prototype.code[v.pc];
+		switch (Lua.GET_OPCODE(ins)) {
+		case Lua.OP_CLOSURE:
+			return subprotos[Lua.GETARG_Bx(ins)];
+		case Lua.OP_MOVE:
+			return findClosure(vars[Lua.GETARG_B(ins)][v.pc]);
+		case Lua.OP_GETUPVAL:
+			// an upvalue never assigned holds the value of the captured variable
+			UpvalInfo u = upvals[Lua.GETARG_B(ins)];
+			return u.rw || u.shared || u.nvars != 1? null: u.pi.findClosure(u.var[0]);
+		default:
+			return null;
+		}
+	}
+
 	public boolean isUpvalueAssign(int pc, int slot) {
 		VarInfo v = pc < 0? params[slot]: vars[slot][pc];
 		return v != null && v.upvalue != null && v.upvalue.rw;
@@ -486,6 +830,10 @@ public class ProtoInfo {
 		return u.rw;
 	}
 
+	public boolean isSharedUpvalue(UpvalInfo u) {
+		return u.shared;
+	}
+
 	private String[] findInnerprotoNames() {
 		if (prototype.p.length <= 0)
 			return null;
@@ -0,0 +1,216 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+
+/**
+ * Implementation of {@link org.luaj.vm2.Globals.Recompiler} which compiles the
+ * functions that run often to java bytecode in the background.
+ * <p>
+ * Chunks are loaded and run as {@link org.luaj.vm2.LuaClosure} as usual, so
+ * startup costs no more than with the plain interpreter. The interpreter counts
+ * the calls and loop iterations of each {@link Prototype}, and once a prototype
+ * reaches the threshold it is compiled, together with the functions nested in
+ * it, by the same code generator as {@link LuaJC}. Later calls of the
+ * prototype's closures, and closures created for it afterwards, run the
+ * generated class.
+ *
+ * <pre>
+ *  {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * TieredLuaJC.install(globals);
+ * globals.load(script, "main.lua").call();
+ * }
+ * </pre>
+ * <p>
+ * The generated class reads and writes the upvalues of the interpreted closure
+ * it replaces, so the two see each other's assignments. A call that is already
+ * running in the interpreter finishes there. As with {@link LuaJC}, errors
+ * raised in compiled functions carry no line information. Prototypes that
+ * cannot be compiled, including those too large for a java method, keep
+ * running in the interpreter.
+ * <p>
+ * With the debug library loaded, closures still run their compiled classes,
+ * whose frames appear in tracebacks, as long as no debug hook is set. While a
+ * hook is set, calls run in the interpreter, so the hook sees them; calls
+ * already running compiled code finish there.
+ * <p>
+ * Prototypes with no nested functions, which include most hot inner loops, are
+ * compiled to hidden classes, which are unloaded along with the prototype.
+ * <p>
+ * This requires the bcel library to be on the class path.
+ *
+ * @see Globals#recompiler
+ * @see Prototype#implementation
+ * @see LuaJC
+ */
+public class TieredLuaJC implements Globals.Recompiler {
+
+	/** Calls plus loop iterations after which {@link #instance} compiles a prototype. */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/** A recompiler using {@link #DEFAULT_THRESHOLD} and one background thread. */
+	public static final TieredLuaJC instance = new TieredLuaJC(DEFAULT_THRESHOLD);
+
+	/**
+	 * Install the shared recompiler in a set of globals.
+	 *
+	 * @param globals the Globals into which this is to be installed.
+	 */
+	public static void install(Globals globals) {
+		globals.recompiler = instance;
+	}
+
+	private final int        threshold;
+	private final Executor   executor;
+	private final AtomicLong compiled = new AtomicLong();
+	private final AtomicLong failed   = new AtomicLong();
+
+	/**
+	 * Construct a recompiler that compiles on its own background thread.
+	 *
+	 * @param threshold calls plus loop iterations before a prototype is
+	 *                  compiled.
+	 */
+	public TieredLuaJC(int threshold) {
+		this(threshold, newExecutor());
+	}
+
+	/**
+	 * Construct a recompiler that compiles using an executor.
+	 *
+	 * @param threshold calls plus loop iterations before a prototype is
+	 *                  compiled.
+	 * @param executor  the executor to run compilations on, which may run them
+	 *                  on the calling thread.
+	 */
+	public TieredLuaJC(int threshold, Executor executor) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("threshold must be positive");
+		this.threshold = threshold;
+		this.executor = executor;
+	}
+
+	@Override
+	public int threshold() { return threshold; }
+
+	@Override
+	public void recompile(final Prototype prototype) {
+		executor.execute(() -> compile(prototype));
+	}
+
+	/** Number of prototypes compiled. */
+	public long compiled() { return compiled.get(); }
+
+	/** Number of prototypes that could not be compiled. */
+	public long failed() { return failed.get(); }
+
+	private void compile(Prototype p) {
+		if (p.implementation != null)
+			return;
+		try {
+			final String luaname = LuaJC.toStandardLuaFileName(p.source != null? p.source.tojstring(): "?");
+			final boolean hidden = p.p.length == 0;
+			final String classname = (hidden? JavaLoader.HIDDEN_PACKAGE: "") + LuaJC.toStandardJavaClassName(luaname)
+				+ "_" + p.linedefined;
+			final JavaGen gen = JavaGen.withSharedUpvalues(p, classname, luaname);
+			if (gen.interpreted) {
+				failed.incrementAndGet();
+				return;
+			}
+			final Class<?> c;
+			if (hidden) {
+				c = JavaLoader.defineHidden(gen);
+			} else {
+				final JavaLoader loader = new JavaLoader();
+				loader.include(gen);
+				c = loader.loadClass(classname);
+			}
+			p.implementation = new Compiled(this, c, p.upvalues.length > 0);
+			compiled.incrementAndGet();
+		} catch (Exception e) {
+			failed.incrementAndGet();
+		} catch (LinkageError e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	private static ExecutorService newExecutor() {
+		return Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "luajc-tiered");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static final class Compiled implements Prototype.Implementation {
+		private static final MethodType NEW_WITH_UPVALUES = MethodType.methodType(LuaFunction.class, UpValue[].class);
+		private static final MethodType NEW               = MethodType.methodType(LuaFunction.class);
+		private static final MethodType SET_GLOBALS       = MethodType.methodType(void.class, LuaFunction.class,
+			Globals.class);
+
+		private final TieredLuaJC  recompiler;
+		private final MethodHandle constructor;
+		private final MethodHandle setGlobals;
+		private final boolean      upvalues;
+
+		Compiled(TieredLuaJC recompiler, Class<?> c, boolean upvalues) throws ReflectiveOperationException {
+			this.recompiler = recompiler;
+			final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			this.constructor = upvalues
+				? lookup.findConstructor(c, MethodType.methodType(void.class, UpValue[].class)).asType(NEW_WITH_UPVALUES)
+				: lookup.findConstructor(c, MethodType.methodType(void.class)).asType(NEW);
+			this.setGlobals = lookup.findSetter(c, JavaBuilder.NAME_GLOBALS, Globals.class).asType(SET_GLOBALS);
+			this.upvalues = upvalues;
+		}
+
+		@Override
+		public LuaFunction newFunction(UpValue[] upvalues, Globals globals) {
+			try {
+				final LuaFunction f = this.upvalues? (LuaFunction) constructor.invokeExact(upvalues)
+					: (LuaFunction) constructor.invokeExact();
+				if (globals != null)
+					setGlobals.invokeExact(f, globals);
+				return f;
+			} catch (Throwable e) {
+				throw new IllegalStateException("bad class gen: " + e);
+			}
+		}
+
+		@Override
+		public Globals.Recompiler recompiler() {
+			return recompiler;
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class UpvalInfo {
 	int       nvars; // number of vars involved
 	VarInfo   var[]; // list of vars
 	boolean   rw;    // read-write
+	boolean   shared; // held in an UpValue of an interpreted closure
 
 	// Upval info representing the implied context containing only the environment.
 	public UpvalInfo(ProtoInfo pi) {
@@ -21,6 +22,14 @@ public class UpvalInfo {
 		this.rw = false;
 	}
 
+	// Upval info for an upvalue of an interpreted closure, accessed through its UpValue.
+	static UpvalInfo shared(ProtoInfo pi) {
+		UpvalInfo u = new UpvalInfo(pi);
+		u.rw = true;
+		u.shared = true;
+		return u;
+	}
+
 	public UpvalInfo(ProtoInfo pi, int pc, int slot) {
 		this.pi = pi;
 		this.slot = slot;
@@ -124,7 +133,9 @@ public class UpvalInfo {
 			sb.append(i > 0? ",": " ");
 			sb.append(String.valueOf(var[i]));
 		}
-		if (rw)
+		if (shared)
+			sb.append("(shared)");
+		else if (rw)
 			sb.append("(rw)");
 		return sb.toString();
 	}
@@ -0,0 +1,104 @@
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.BytecodeOptimizer;
+
+class BytecodeOptimizerTest {
+
+	private final Globals globals = JsePlatform.standardGlobals();
+
+	private Prototype compile(String script) throws Exception {
+		return globals.compilePrototype(new StringReader(script), "@test.lua");
+	}
+
+	private Varargs run(Prototype p, LuaValue arg) {
+		return new LuaClosure(p, globals).invoke(arg);
+	}
+
+	private static boolean contains(Prototype p, int opcode) {
+		for (int i : p.code)
+			if (Lua.GET_OPCODE(i) == opcode)
+				return true;
+		return false;
+	}
+
+	private void assertSameResults(String script, LuaValue arg) throws Exception {
+		Varargs expected = run(compile(script), arg);
+		Varargs actual = run(BytecodeOptimizer.optimize(compile(script)), arg);
+		assertEquals(expected.tojstring(), actual.tojstring());
+	}
+
+	@Test
+	void testKnownBranchIsRemoved() throws Exception {
+		String script = "local DEBUG = false\n" + "if DEBUG then print('debugging') end\n" + "return 1";
+		Prototype p = BytecodeOptimizer.optimize(compile(script));
+		assertFalse(contains(p, Lua.OP_TEST));
+		assertFalse(contains(p, Lua.OP_GETTABUP));
+		assertEquals(LuaValue.ONE, run(p, LuaValue.NIL).arg1());
+	}
+
+	@Test
+	void testConstantsFoldAcrossBlocks() throws Exception {
+		String script = "local a = 2\n" + "local b\n" + "if ... then b = a * 3 else b = a + 4 end\n" + "return b";
+		Prototype p = BytecodeOptimizer.optimize(compile(script));
+		assertFalse(contains(p, Lua.OP_MUL));
+		assertFalse(contains(p, Lua.OP_ADD));
+		assertEquals(LuaValue.valueOf(6), run(p, LuaValue.TRUE).arg1());
+		assertEquals(LuaValue.valueOf(6), run(p, LuaValue.FALSE).arg1());
+	}
+
+	@Test
+	void testJumpsAreThreaded() throws Exception {
+		String script = "local n = 0\n" + "for i = 1, 10 do\n" + "  for j = 1, 10 do\n" + "    if j > i then break end\n"
+			+ "    if (i + j) % 3 == 0 then n = n + 1 else n = n - 1 end\n" + "  end\n" + "end\n" + "return n";
+		Prototype p = BytecodeOptimizer.optimize(compile(script));
+		for (int pc = 0; pc < p.code.length; pc++) {
+			if (Lua.GET_OPCODE(p.code[pc]) != Lua.OP_JMP)
+				continue;
+			int target = pc+1+Lua.GETARG_sBx(p.code[pc]);
+			assertTrue(Lua.GET_OPCODE(p.code[target]) != Lua.OP_JMP, "jump to jump at " + pc);
+			assertTrue(target != pc+1 || Lua.GETARG_A(p.code[pc]) != 0, "jump to next at " + pc);
+		}
+		assertSameResults(script, LuaValue.NIL);
+	}
+
+	@Test
+	void testCapturedLocalsAreNotConstant() throws Exception {
+		assertSameResults("local x = 1\n" + "local function set() x = 2 end\n" + "set()\n" + "if x == 1 then return 'one' end\n"
+			+ "return x", LuaValue.NIL);
+	}
+
+	@Test
+	void testLineNumbersArePreserved() throws Exception {
+		Prototype p = BytecodeOptimizer.optimize(
+			compile("local DEBUG = false\n" + "if DEBUG then\n" + "  print('debugging')\n" + "end\n" + "error('boom')"));
+		try {
+			run(p, LuaValue.NIL);
+		} catch (LuaError e) {
+			assertTrue(e.getMessage().contains("test.lua:5"), e.getMessage());
+			return;
+		}
+		throw new AssertionError("no error");
+	}
+
+	@Test
+	void testLogicalOperatorsOnConstants() throws Exception {
+		assertSameResults("local t, f, n = true, false, nil\n"
+			+ "return t and 1 or 2, f and 1 or 2, n or 'x', not t, not n, t == f, 1 < 2, 'a' <= 'b', t and f",
+			LuaValue.NIL);
+	}
+}
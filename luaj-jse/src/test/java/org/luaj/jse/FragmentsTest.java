@@ -36,7 +36,9 @@ import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.BytecodeOptimizer;
 import org.luaj.vm2.luajc.LuaJC;
+import org.luaj.vm2.luajc.TieredLuaJC;
 
 /**
  * Test compilation of various fragments that have caused problems for jit
@@ -47,6 +49,7 @@ public class FragmentsTest {
 
 	static final int TEST_TYPE_LUAC  = 0;
 	static final int TEST_TYPE_LUAJC = 1;
+	static final int TEST_TYPE_TIERED = 2;
 
 	@Nested
 	public static class JseFragmentsTest extends FragmentsTestCase {
@@ -58,25 +61,53 @@ public class FragmentsTest {
 		public LuaJCFragmentsTest() { super(TEST_TYPE_LUAJC); }
 	}
 
+	@Nested
+	public static class OptimizedFragmentsTest extends FragmentsTestCase {
+		public OptimizedFragmentsTest() { super(TEST_TYPE_LUAC, true); }
+	}
+
+	@Nested
+	public static class OptimizedLuaJCFragmentsTest extends FragmentsTestCase {
+		public OptimizedLuaJCFragmentsTest() { super(TEST_TYPE_LUAJC, true); }
+	}
+
+	@Nested
+	public static class TieredFragmentsTest extends FragmentsTestCase {
+		public TieredFragmentsTest() { super(TEST_TYPE_TIERED); }
+	}
+
 	abstract protected static class FragmentsTestCase {
 
-		final int TEST_TYPE;
+		final int     TEST_TYPE;
+		final boolean OPTIMIZE;
 
 		protected FragmentsTestCase(int testType) {
+			this(testType, false);
+		}
+
+		protected FragmentsTestCase(int testType, boolean optimize) {
 			this.TEST_TYPE = testType;
+			this.OPTIMIZE = optimize;
 		}
 
 		public void runFragment(Varargs expected, String script) {
 			try {
 				String name = this.getClass().getName();
-				Globals globals = JsePlatform.debugGlobals();
+				Globals globals = TEST_TYPE == TEST_TYPE_TIERED? JsePlatform.standardGlobals()
+					: JsePlatform.debugGlobals();
 				Reader reader = new StringReader(script);
+				if (OPTIMIZE)
+					BytecodeOptimizer.install(globals);
 				LuaValue chunk;
 				switch (TEST_TYPE) {
 				case TEST_TYPE_LUAJC:
 					LuaJC.install(globals);
 					chunk = globals.load(reader, name);
 					break;
+				case TEST_TYPE_TIERED:
+					globals.recompiler = new TieredLuaJC(1, Runnable::run);
+					chunk = globals.load(reader, name);
+					break;
 				default:
 					Prototype p = globals.compilePrototype(reader, name);
 					chunk = new LuaClosure(p, globals);
@@ -288,6 +319,40 @@ public class FragmentsTest {
 					+ "return t[2]\n");
 		}
 
+		@Test
+		public void testNumericForSteps() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(10741), LuaValue.valueOf(5),
+					LuaValue.valueOf(25), LuaValue.valueOf(0), LuaValue.valueOf(-24) }),
+				"local x = 0\n" + "for i = 10, 1, -3 do x = x * 10 + i end\n" + "local y = 0\n"
+					+ "for i = 0, 2, 0.5 do y = y + i end\n" + "local function f(lim, step)\n" + "	local c = 0\n"
+					+ "	for i = 1, lim, step do c = c + i end\n" + "	return c\n" + "end\n"
+					+ "return x, y, f(10, 2), f(10, 0/0), f(-10, -2)\n");
+		}
+
+		@Test
+		public void testNumericForCoercion() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(6), LuaValue.FALSE),
+				"local s = 0\n" + "for i = '1', 3 do s = s + i end\n" + "return s, (pcall(function() for i = 1, {} do end end))\n");
+		}
+
+		@Test
+		public void testNumericArithmetic() {
+			runFragment(
+				LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf("inf"), LuaValue.valueOf("inf"),
+						LuaValue.valueOf("nan"), LuaValue.valueOf(-1), LuaValue.valueOf(1), LuaValue.valueOf(1024),
+						LuaValue.valueOf(3.5) }),
+				"local z, m = 0, -1\n" + "z = z * m\n" + "local a, b, c = 7, 5, 2\n"
+					+ "return tostring(1/z), tostring(z^m), tostring(a%0), b%-3, -b%3, c^10, a/c\n");
+		}
+
+		@Test
+		public void testNumericComparisons() {
+			runFragment(LuaValue.valueOf("ffftt2187"),
+				"local n, x, y = 0/0, 1, 2\n" + "local k = 1\n" + "while k < 1000 do k = k * 3 end\n"
+					+ "local function s(b) return b and 't' or 'f' end\n"
+					+ "return s(n < x)..s(n <= x)..s(n == n)..s(x < y)..s(y <= y)..k\n");
+		}
+
 		@Test
 		public void testReturnUpvalue() {
 			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.ONE, LuaValue.valueOf(5), }), "local a = 1\n"
@@ -456,5 +521,88 @@ public class FragmentsTest {
 				"local i = function(...) return ... end\n" + "local v1, v2, v3 = i(1, 2, 3)\n" + "return v1, v2, v3");
 
 		}
+
+		@Test
+		public void testFixedArityCallWindow() {
+			runFragment(
+				LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(5), LuaValue.valueOf(4), LuaValue.valueOf(3),
+						LuaValue.valueOf(2), LuaValue.NIL }),
+				"local function f(a, b, c, d, e) return e, d, c, b end\n"
+					+ "local v1, v2, v3, v4, v5 = f(1, 2, 3, 4, 5, 6)\n" + "return v1, v2, v3, v4, v5");
+		}
+
+		@Test
+		public void testVarargCallWindowResultsOverlapArgs() {
+			runFragment(
+				LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(7), LuaValue.valueOf(8), LuaValue.valueOf(9),
+						LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3), LuaValue.valueOf(4) }),
+				"local function f(...) local p, q, r = 7, 8, 9 return p, q, r, ... end\n"
+					+ "local v1, v2, v3, v4, v5, v6, v7 = f(1, 2, 3, 4)\n" + "return v1, v2, v3, v4, v5, v6, v7");
+		}
+
+		@Test
+		public void testTailCallReusesFrame() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(100000), LuaValue.valueOf(3)),
+				"local function loop(n, acc) if n == 0 then return acc end return loop(n-1, acc+1) end\n"
+					+ "local function big(a, b, c, d, e, f, g, h) return select('#', a, b, c, d, e, f, g, h) end\n"
+					+ "local function small(x) return big(x, x, x) end\n" + "return loop(100000, 0), small(1) - 5");
+		}
+
+		@Test
+		public void testVarargTailCall() {
+			runFragment(
+				LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3),
+						LuaValue.valueOf(4) }),
+				"local function va(n, ...) if n == 0 then return ... end return va(n-1, n, ...) end\n"
+					+ "return va(4)");
+		}
+
+		@Test
+		public void testLoopVariableCapturedByValue() {
+			runFragment(LuaValue.valueOf(123), "local fs = {}\n" + "for i = 1, 3 do fs[i] = function() return i end end\n"
+				+ "return fs[1]() * 100 + fs[2]() * 10 + fs[3]()");
+		}
+
+		@Test
+		public void testSharedUpvalueAssignedAfterCapture() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(3), LuaValue.valueOf(3)),
+				"local x = 1\n" + "local get = function() return x end\n"
+					+ "local inc = function() return function() x = x + 1 end end\n" + "inc()() x = x + 1\n"
+					+ "return get(), x");
+		}
+
+		@Test
+		public void testGenericForCallWindow() {
+			runFragment(LuaValue.valueOf(72), "local function it(s, i) if i < 3 then return i+1, i*10 end end\n"
+				+ "local sum = 0\n" + "for i, v in it, nil, 0 do sum = sum + i + v end\n" + "return sum * 2");
+		}
+
+		@Test
+		public void testCallsOfLocalFunctions() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(15), LuaValue.valueOf(7),
+				LuaValue.valueOf(3), LuaValue.valueOf(6), LuaValue.valueOf(0) }),
+				"local function sum(n, acc) if n == 0 then return acc end return sum(n-1, (acc or 0) + n) end\n"
+					+ "local function two(a, b) return a + (b or 2) end\n" + "local function pair() return 1, 2 end\n"
+					+ "local function count(...) return select('#', ...) end\n" + "local f = two\n"
+					+ "local function none() end\n"
+					+ "return sum(5), two(5, 2, 'extra'), f(1), two(pair()) + count(pair(), pair()), select('#', none())");
+		}
+
+		@Test
+		public void testCallOfLocalFunctionAssignedByClosure() {
+			runFragment(LuaValue.valueOf("b"), "local function f() return 'a' end\n"
+				+ "local function set() f = function() return 'b' end end\n" + "set()\n" + "return f()");
+		}
+
+		@Test
+		public void testFunctionTooLargeForJavaMethod() {
+			StringBuilder sb = new StringBuilder("local n = 0\n" + "local function big(x)\n" + "  local t = {}\n");
+			for (int i = 0; i < 1500; i++)
+				sb.append("  if x == " + i + " then n = n + 1 t[#t+1] = 'v" + i + "' .. x end\n");
+			sb.append("  local function inner() return n + #t end\n" + "  return t[1], inner()\n" + "end\n"
+				+ "local a, b = big(7)\n" + "local c, d = big(3000)\n" + "return a, b, c, d, n");
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf("v77"), LuaValue.valueOf(2), LuaValue.NIL,
+				LuaValue.valueOf(1), LuaValue.valueOf(1) }), sb.toString());
+		}
 	}
 }
@@ -0,0 +1,110 @@
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class LazyUndumpTest {
+
+	private static final String script = "local count = 0\n" + "local function inc(n)\n"
+		+ "  local function add() count = count + n end\n" + "  add()\n" + "  return count\n" + "end\n"
+		+ "local function unused(t)\n" + "  return function() return #t, 1.5, 'x', true, nil end\n" + "end\n"
+		+ "local limit = 3\n" + "local function below(n) return n < limit end\n"
+		+ "return inc(2), inc(3), below(2), below(5)";
+
+	private Globals globals;
+
+	@BeforeEach
+	protected void setUp() throws Exception {
+		globals = JsePlatform.standardGlobals();
+	}
+
+	private byte[] dump(boolean strip, int numberFormat, boolean littleEndian) throws IOException {
+		Prototype p = globals.compilePrototype(new StringReader(script), "script");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DumpState.dump(p, baos, strip, numberFormat, littleEndian);
+		return baos.toByteArray();
+	}
+
+	@Test
+	void testNestedFunctionsAreDecodedOnFirstUse() throws IOException {
+		Prototype p = LoadState.undumpLazily(ByteBuffer.wrap(dump(false, DumpState.NUMBER_FORMAT_DEFAULT, false)),
+			"script");
+		assertNotNull(p.code);
+		for (Prototype child : p.p) {
+			assertNull(child.code);
+			assertNotNull(child.upvalues);
+		}
+		assertEquals("(2,5,true,false)", new LuaClosure(p, globals).invoke().tojstring());
+		assertNotNull(p.p[0].code);
+		assertNotNull(p.p[0].p[0].code);
+		assertNotNull(p.p[1].code);
+		assertNull(p.p[1].p[0].code);
+		assertNotNull(p.p[2].code);
+	}
+
+	@Test
+	void testDecodedChunkDumpsIdentically() throws IOException {
+		int[] formats = { DumpState.NUMBER_FORMAT_FLOATS_OR_DOUBLES, DumpState.NUMBER_FORMAT_NUM_PATCH_INT32 };
+		for (int format : formats) {
+			for (int strip = 0; strip < 2; ++strip) {
+				for (int little = 0; little < 2; ++little) {
+					byte[] bytes = dump(strip != 0, format, little != 0);
+					Prototype p = LoadState.undumpLazily(ByteBuffer.wrap(bytes), "script");
+					assertEquals("(2,5,true,false)", new LuaClosure(p, globals).invoke().tojstring());
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					DumpState.dump(p, baos, strip != 0, format, little != 0);
+					assertArrayEquals(bytes, baos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	void testCapturesMatchEagerLoad() throws IOException {
+		byte[] bytes = dump(false, DumpState.NUMBER_FORMAT_DEFAULT, false);
+		Prototype eager = LoadState.undump(new ByteArrayInputStream(bytes), "script");
+		Prototype lazy = LoadState.undumpLazily(ByteBuffer.wrap(bytes), "script");
+		for (int i = 0; i < eager.p.length; ++i)
+			assertEquals(eager.capturesByValue(i), lazy.capturesByValue(i));
+		for (int i = 0; i < eager.p[0].p.length; ++i)
+			assertEquals(eager.p[0].capturesByValue(i), lazy.p[0].decode().capturesByValue(i));
+		assertNull(lazy.p[1].code);
+	}
+
+	@Test
+	void testLazyUndumperLoadsBinaryAndTextChunks() throws IOException {
+		LoadState.installLazy(globals);
+		byte[] bytes = dump(false, DumpState.NUMBER_FORMAT_DEFAULT, false);
+		LuaValue f = globals.load(new ByteArrayInputStream(bytes), "script", "bt", globals);
+		assertEquals("(2,5,true,false)", f.invoke().tojstring());
+		assertEquals(LuaValue.valueOf(3), globals.load("return 1 + 2").call());
+	}
+
+	@Test
+	void testTruncatedChunk() throws IOException {
+		byte[] bytes = dump(false, DumpState.NUMBER_FORMAT_DEFAULT, false);
+		assertThrows(IOException.class,
+			() -> LoadState.undumpLazily(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length-20)), "script"));
+		assertNull(LoadState.undumpLazily(ByteBuffer.wrap("return 1".getBytes()), "script"));
+	}
+}
@@ -0,0 +1,40 @@
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import java.util.Hashtable;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+class LuaJCParallelTest {
+
+	private static final String SCRIPT = "local function f(a) return function(b) return a + b end end\n"
+		+ "local function g(t) local n = 0 for _, v in ipairs(t) do n = n + v end return n end\n"
+		+ "local h = function(...) return select('#', ...) end\n" + "return f(1)(2), g { 1, 2, 3 }, h(1, 2)";
+
+	private Hashtable compile(boolean parallel) throws Exception {
+		Globals globals = JsePlatform.standardGlobals();
+		return LuaJC.instance.compileAll(new StringReader(SCRIPT), "sub/script", "sub/script.lua", globals, false,
+			parallel);
+	}
+
+	@Test
+	void testParallelMatchesSequential() throws Exception {
+		Hashtable expected = compile(false);
+		Hashtable actual = compile(true);
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Object key : expected.keySet())
+			assertArrayEquals((byte[]) expected.get(key), (byte[]) actual.get(key), key.toString());
+	}
+
+	@Test
+	void testClassNames() throws Exception {
+		assertEquals("sub_script", LuaJC.toStandardJavaClassName("sub/script"));
+		assertEquals(5, compile(true).size());
+	}
+}
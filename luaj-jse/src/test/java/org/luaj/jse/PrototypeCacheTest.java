@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.compiler.PrototypeCache;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class PrototypeCacheTest {
+
+	private static Prototype compile(Globals globals, String script, String name) throws Exception {
+		return globals.compilePrototype(new StringReader(script), name);
+	}
+
+	@Test
+	void testSameSourceSharesPrototype() throws Exception {
+		PrototypeCache cache = new PrototypeCache(LuaC.instance, 8);
+		Globals a = JsePlatform.standardGlobals();
+		Globals b = JsePlatform.standardGlobals();
+		a.compiler = cache;
+		b.compiler = cache;
+		Prototype p = compile(a, "x = (x or 0) + 1 return x", "count.lua");
+		assertSame(p, compile(b, "x = (x or 0) + 1 return x", "count.lua"));
+		assertEquals(1, cache.misses());
+		assertEquals(1, cache.hits());
+
+		assertEquals(LuaValue.valueOf(1), a.load("x = (x or 0) + 1 return x", "count.lua").call());
+		assertEquals(LuaValue.valueOf(2), a.load("x = (x or 0) + 1 return x", "count.lua").call());
+		assertEquals(LuaValue.valueOf(1), b.load("x = (x or 0) + 1 return x", "count.lua").call());
+		assertEquals(4, cache.hits());
+	}
+
+	@Test
+	void testChunkNameAndSourceAreBothPartOfKey() throws Exception {
+		PrototypeCache cache = new PrototypeCache(LuaC.instance, 8);
+		Globals g = JsePlatform.standardGlobals();
+		g.compiler = cache;
+		Prototype p = compile(g, "return 1", "a.lua");
+		assertNotSame(p, compile(g, "return 1", "b.lua"));
+		assertNotSame(p, compile(g, "return 2", "a.lua"));
+		assertEquals(3, cache.misses());
+		assertEquals(0, cache.hits());
+	}
+
+	@Test
+	void testLeastRecentlyUsedIsEvicted() throws Exception {
+		PrototypeCache cache = new PrototypeCache(LuaC.instance, 2);
+		Globals g = JsePlatform.standardGlobals();
+		g.compiler = cache;
+		Prototype one = compile(g, "return 1", "one");
+		compile(g, "return 2", "two");
+		assertSame(one, compile(g, "return 1", "one"));
+		compile(g, "return 3", "three");
+		assertEquals(1, cache.evictions());
+		assertEquals(2, cache.size());
+		assertSame(one, compile(g, "return 1", "one"));
+		assertEquals(2, cache.hits());
+		compile(g, "return 2", "two");
+		assertEquals(4, cache.misses());
+	}
+
+	@Test
+	void testCompileErrorsAreNotCached() throws Exception {
+		PrototypeCache cache = new PrototypeCache(LuaC.instance, 8);
+		Globals g = JsePlatform.standardGlobals();
+		g.compiler = cache;
+		assertThrows(LuaError.class, () -> compile(g, "return +", "bad.lua"));
+		assertThrows(LuaError.class, () -> compile(g, "return +", "bad.lua"));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.misses());
+	}
+}
@@ -0,0 +1,118 @@
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class PrototypeCompactTest {
+
+	private static final String script = "local function f(n)\n" + "  local total = 0\n" + "  for i = 1, n do\n"
+		+ "    total = total + i\n" + "  end\n" + "\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n\n"
+		+ "  if total > 100 then error('too big') end\n" + "  return total\n" + "end\n"
+		+ "return f(4), 'shared constant', 1.5";
+
+	private final Globals globals = JsePlatform.standardGlobals();
+
+	private static InputStream source(String s) {
+		return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] dump(Prototype p) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DumpState.dump(p, baos, false);
+		return baos.toByteArray();
+	}
+
+	@Test
+	void testLinesArePacked() throws IOException {
+		Prototype p = LuaC.instance.compile(source(script), "@script.lua");
+		int[] lines = p.p[0].lineinfo.clone();
+		byte[] dumped = dump(p);
+
+		p.compact(false);
+		assertEquals(0, p.p[0].lineinfo.length);
+		for (int pc = 0; pc < lines.length; ++pc)
+			assertEquals(lines[pc], p.p[0].getline(pc));
+		assertEquals(-1, p.p[0].getline(lines.length));
+		assertArrayEquals(lines, p.p[0].getlineinfo());
+		assertArrayEquals(dumped, dump(p));
+	}
+
+	@Test
+	void testLinesInErrors() throws IOException {
+		Prototype p = LuaC.compactInstance.compile(source(script), "@script.lua");
+		assertEquals("(10,shared constant,1.5)", new LuaClosure(p, globals).invoke().tojstring());
+		try {
+			new LuaClosure(p.p[0], globals).call(LuaValue.valueOf(100));
+		} catch (LuaError e) {
+			assertEquals("@script.lua:36 too big", e.getMessage());
+			return;
+		}
+		throw new AssertionError("no error");
+	}
+
+	@Test
+	void testConstantsAndNamesAreShared() throws IOException {
+		Prototype a = LuaC.compactInstance.compile(source(script), "@a.lua");
+		Prototype b = LuaC.compactInstance.compile(source(script), "@b.lua");
+		assertSame(a.k[a.k.length-2], b.k[b.k.length-2]);
+		assertSame(a.p[0].locvars[0].varname, b.p[0].locvars[0].varname);
+	}
+
+	@Test
+	void testStrippedDebugInfo() throws IOException {
+		Prototype p = LuaC.strippedInstance.compile(source(script), "@script.lua");
+		assertEquals(0, p.p[0].locvars.length);
+		assertEquals(-1, p.p[0].getline(0));
+		try {
+			new LuaClosure(p.p[0], globals).call(LuaValue.valueOf(100));
+		} catch (LuaError e) {
+			assertEquals("@script.lua:-1 too big", e.getMessage());
+			return;
+		}
+		throw new AssertionError("no error");
+	}
+
+	@Test
+	void testUndumpers() throws IOException {
+		byte[] dumped = dump(LuaC.instance.compile(source(script), "@script.lua"));
+		Prototype p = LoadState.compactInstance.undump(new ByteArrayInputStream(dumped), "script.lua");
+		assertEquals(0, p.p[0].lineinfo.length);
+		assertTrue(p.p[0].getline(0) > 0);
+		assertArrayEquals(dumped, dump(p));
+
+		p = LoadState.strippedInstance.undump(new ByteArrayInputStream(dumped), "script.lua");
+		assertEquals(0, p.p[0].locvars.length);
+		assertEquals("(10,shared constant,1.5)", new LuaClosure(p, globals).invoke().tojstring());
+	}
+
+	@Test
+	void testLazyPrototypesAreCompactedWhenDecoded() throws IOException {
+		byte[] dumped = dump(LuaC.instance.compile(source(script), "@script.lua"));
+		Prototype p = LoadState.undumpLazily(ByteBuffer.wrap(dumped), "script.lua").compact(false);
+		assertNull(p.p[0].code);
+		new LuaClosure(p, globals).call();
+		assertEquals(0, p.p[0].lineinfo.length);
+		assertEquals(38, p.p[0].getline(p.p[0].code.length-1));
+	}
+}
@@ -0,0 +1,155 @@
+package org.luaj.jse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.compiler.PrototypeCache;
+import org.luaj.vm2.lib.debug.DebugLibBase;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.JavaLoader;
+import org.luaj.vm2.luajc.TieredLuaJC;
+
+class TieredLuaJCTest {
+
+	private final TieredLuaJC tiered = new TieredLuaJC(10, Runnable::run);
+
+	private Varargs run(Globals globals, String script) {
+		globals.recompiler = tiered;
+		return globals.load(script, "@test.lua").invoke();
+	}
+
+	@Test
+	void testHotFunctionIsCompiled() {
+		Varargs r = run(JsePlatform.standardGlobals(),
+			"local function sq(x) return x * x end\n" + "local s = 0\n" + "for i = 1, 100 do s = s + sq(i) end\n"
+				+ "return s, sq");
+		assertEquals(338350, r.arg(1).toint());
+		assertTrue(r.arg(2).isclosure());
+		LuaClosure sq = (LuaClosure) r.arg(2);
+		assertNotNull(sq.p.implementation);
+		assertEquals(LuaValue.valueOf(49), sq.call(LuaValue.valueOf(7)));
+		assertEquals(0, tiered.failed());
+	}
+
+	@Test
+	void testLeafFunctionIsHidden() {
+		Varargs r = run(JsePlatform.standardGlobals(),
+			"local function sq(x) return x * x end\n" + "for i = 1, 100 do sq(i) end\n" + "return sq");
+		LuaClosure sq = (LuaClosure) r.arg1();
+		assertTrue(sq.p.implementation.newFunction(sq.upValues, null).getClass().isHidden());
+		assertTrue(JavaLoader.liveClasses() > 0);
+		assertTrue(JavaLoader.liveBytes() > 0);
+	}
+
+	@Test
+	void testColdFunctionIsInterpreted() {
+		Varargs r = run(JsePlatform.standardGlobals(), "local function f(x) return x + 1 end\n" + "return f(1), f");
+		assertEquals(2, r.arg(1).toint());
+		assertNull(((LuaClosure) r.arg(2)).p.implementation);
+		assertEquals(0, tiered.compiled());
+	}
+
+	@Test
+	void testUpvaluesAreShared() {
+		Varargs r = run(JsePlatform.standardGlobals(),
+			"local n = 0\n" + "local function inc() n = n + 1 return n end\n" + "for i = 1, 50 do inc() end\n"
+				+ "n = n + 100\n" + "local a = inc()\n" + "return a, n");
+		assertEquals(151, r.arg(1).toint());
+		assertEquals(151, r.arg(2).toint());
+		assertTrue(tiered.compiled() > 0);
+		assertEquals(0, tiered.failed());
+	}
+
+	@Test
+	void testClosuresCreatedAfterCompiling() {
+		Varargs r = run(JsePlatform.standardGlobals(),
+			"local function counter(start)\n" + "  local n = start\n" + "  return function() n = n + 1 return n end\n"
+				+ "end\n" + "local t = 0\n" + "for i = 1, 30 do local c = counter(i) c() t = t + c() end\n"
+				+ "return t, counter(5)");
+		assertEquals(30*31/2+60, r.arg(1).toint());
+		LuaValue c = r.arg(2);
+		assertFalse(c.isclosure());
+		assertEquals(6, c.call().toint());
+		assertEquals(7, c.call().toint());
+	}
+
+	@Test
+	void testSharedPrototypeIsOnlyCompiledForItsRecompiler() {
+		PrototypeCache cache = new PrototypeCache(LuaC.instance, 8);
+		String script = "local function f(i) if i > 100 then error('boom') end return i end\n"
+			+ "for i = 1, 100 do f(i) end\n" + "return f";
+		Globals a = JsePlatform.standardGlobals();
+		Globals b = JsePlatform.standardGlobals();
+		a.compiler = cache;
+		b.compiler = cache;
+		LuaValue fa = run(a, script).arg1();
+		LuaValue fb = b.load(script, "@test.lua").call();
+		assertNotNull(((LuaClosure) fa).p.implementation);
+		assertEquals(1, cache.hits());
+		assertEquals("@test.lua:1 boom", b.get("pcall").invoke(fb, LuaValue.valueOf(101)).arg(2).tojstring());
+		assertEquals(5, fb.call(LuaValue.valueOf(5)).toint());
+	}
+
+	@Test
+	void testDebugLibraryWithoutHooksCompiles() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.load(new DebugLibBase());
+		Varargs r = run(globals,
+			"local function sq(x) return x * x end\n" + "local s = 0\n" + "for i = 1, 100 do s = s + sq(i) end\n"
+				+ "return s");
+		assertEquals(338350, r.arg(1).toint());
+		assertTrue(tiered.compiled() > 0);
+	}
+
+	@Test
+	void testHookedCallsRunInInterpreter() {
+		Varargs r = run(JsePlatform.debugGlobals(),
+			"local function sq(x) return x * x end\n" + "for i = 1, 100 do sq(i) end\n" + "local lines = {}\n"
+				+ "debug.sethook(function(e, l) lines[#lines+1] = l end, 'l')\n" + "local y = sq(3)\n"
+				+ "debug.sethook()\n" + "return y, lines[2], sq");
+		assertEquals(9, r.arg(1).toint());
+		assertEquals(1, r.arg(2).toint());
+		assertNotNull(((LuaClosure) r.arg(3)).p.implementation);
+	}
+
+	@Test
+	void testErrorInCompiledFunctionHasPosition() {
+		Varargs r = run(JsePlatform.standardGlobals(),
+			"local function f(i) if i > 100 then error('boom') end return i end\n" + "for i = 1, 100 do f(i) end\n"
+				+ "local ok, e = pcall(f, 101)\n" + "return e, f");
+		assertNotNull(((LuaClosure) r.arg(2)).p.implementation);
+		assertEquals("@test.lua:1 boom", r.arg1().tojstring());
+	}
+
+	@Test
+	void testErrorTracebackHasUnwoundFrames() {
+		Varargs r = run(JsePlatform.debugGlobals(),
+			"local function g(i) if i == 100 then error('boom') end return i end\n"
+				+ "local function f(i) local r = g(i) return r end\n" + "for i = 1, 99 do f(i) end\n"
+				+ "local ok, e = pcall(f, 100)\n" + "return e");
+		assertTrue(tiered.compiled() > 0);
+		assertEquals("test.lua:1 boom\nstack traceback:\n\ttest.lua:1: in function <test.lua:1>\n"
+			+ "\ttest.lua:2: in function <test.lua:2>\n\t[Java]: in function 'pcall'\n"
+			+ "\ttest.lua:4: in main chunk\n\t[Java]: in ?", r.arg1().tojstring());
+	}
+
+	@Test
+	void testTracebackHasCompiledFrames() {
+		Varargs r = run(JsePlatform.debugGlobals(),
+			"local tb\n" + "local function g() tb = debug.traceback() end\n"
+				+ "local function f(i) if i == 100 then g() end return i end\n" + "for i = 1, 100 do f(i) end\n"
+				+ "return tb");
+		assertTrue(tiered.compiled() > 0);
+		assertEquals("stack traceback:\n\ttest.lua:2: in function <test.lua:2>\n\ttest.lua:3: in function 'f'\n"
+			+ "\ttest.lua:4: in main chunk\n\t[Java]: in ?", r.arg1().tojstring());
+	}
+}
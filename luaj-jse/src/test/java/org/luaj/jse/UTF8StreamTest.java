@@ -23,9 +23,14 @@ package org.luaj.jse;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.io.InputStream;
+import java.io.StringReader;
+
 import org.junit.jupiter.api.Test;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JsePlatform;
 
 class UTF8StreamTest {
@@ -40,4 +45,28 @@ class UTF8StreamTest {
 		assertEquals("98\u00b0: today's temp!", str);
 	}
 
+	@Test
+	void testUtf8CharsAcrossBufferBoundaries() throws Exception {
+		StringBuilder sb = new StringBuilder("local t = {}\n");
+		for (int i = 0; i < 2000; i++)
+			sb.append("t[#t+1] = '\u00b0\u20ac").append(i).append("'\n");
+		sb.append("return #t, t[1], t[2000]");
+		String script = sb.toString();
+		Globals globals = JsePlatform.standardGlobals();
+		Varargs fromString = globals.load(script, "s").invoke();
+		Varargs fromReader = globals.load(new StringReader(script), "r").invoke();
+		assertEquals(2000, fromString.toint(1));
+		assertEquals("\u00b0\u20ac0", fromString.tojstring(2));
+		assertEquals("\u00b0\u20ac1999", fromString.tojstring(3));
+		assertEquals(fromString.tojstring(), fromReader.tojstring());
+	}
+
+	@Test
+	void testLoadFromSubstring() throws Exception {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaString s = LuaValue.valueOf("xxreturn 'inner'yy").substring(2, 16);
+		InputStream is = s.toInputStream();
+		assertEquals(LuaValue.valueOf("inner"), globals.load(is, "sub", "bt", globals).call());
+		assertEquals(-1, is.read());
+	}
 }
@@ -0,0 +1,123 @@
+package org.luaj.vm2.lib.jse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+
+class BytecodeCacheTest {
+
+	@TempDir
+	File dir;
+
+	static class CountingCompiler implements Globals.Compiler {
+		int count;
+
+		@Override
+		public Prototype compile(InputStream stream, String chunkname) throws IOException {
+			++count;
+			return LuaC.instance.compile(stream, chunkname);
+		}
+	}
+
+	private Globals globals(CountingCompiler compiler, File cache) {
+		Globals g = JsePlatform.standardGlobals();
+		g.compiler = new BytecodeCache(compiler, cache);
+		g.get("package").set("path", new File(dir, "?.lua").getPath());
+		return g;
+	}
+
+	private File script(String name, String source) throws IOException {
+		File f = new File(dir, name);
+		Files.write(f.toPath(), source.getBytes(StandardCharsets.UTF_8));
+		return f;
+	}
+
+	@Test
+	void testRequireAndLoadfileReadFromCache() throws IOException {
+		File cache = new File(dir, "cache");
+		script("mod.lua", "return { answer = 6 * 7, half = 1.5, name = 'mod' }");
+		File main = script("main.lua", "local m = require 'mod' return m.answer, m.half, m.name");
+		CountingCompiler compiler = new CountingCompiler();
+
+		LuaValue r = globals(compiler, cache).loadfile(main.getPath()).invoke().arg1();
+		assertEquals(42, r.toint());
+		assertEquals(2, compiler.count);
+		assertEquals(2, cache.list().length);
+
+		Globals g = globals(compiler, cache);
+		assertEquals("(42,1.5,mod)", g.loadfile(main.getPath()).invoke().tojstring());
+		assertEquals(LuaValue.valueOf(42), g.get("package").get("loaded").get("mod").get("answer"));
+		assertEquals(2, compiler.count);
+	}
+
+	@Test
+	void testChangedSourceIsRecompiled() throws IOException {
+		File cache = new File(dir, "cache");
+		File main = script("main.lua", "return 1");
+		CountingCompiler compiler = new CountingCompiler();
+		assertEquals(LuaValue.valueOf(1), globals(compiler, cache).loadfile(main.getPath()).call());
+		script("main.lua", "return 2");
+		assertEquals(LuaValue.valueOf(2), globals(compiler, cache).loadfile(main.getPath()).call());
+		assertEquals(2, compiler.count);
+	}
+
+	@Test
+	void testDamagedEntryIsReplaced() throws IOException {
+		File cache = new File(dir, "cache");
+		File main = script("main.lua", "return 'ok'");
+		CountingCompiler compiler = new CountingCompiler();
+		globals(compiler, cache).loadfile(main.getPath()).call();
+		File[] entries = cache.listFiles();
+		assertEquals(1, entries.length);
+		Files.write(entries[0].toPath(), new byte[] { 0x1b, 'L', 'u', 'a', 0x52 });
+
+		assertEquals(LuaValue.valueOf("ok"), globals(compiler, cache).loadfile(main.getPath()).call());
+		assertEquals(2, compiler.count);
+		assertEquals(LuaValue.valueOf("ok"), globals(compiler, cache).loadfile(main.getPath()).call());
+		assertEquals(2, compiler.count);
+	}
+
+	@Test
+	void testLazyEntriesAreDecodedOnUse() throws IOException {
+		File cache = new File(dir, "cache");
+		File main = script("main.lua", "local function used() return 'used' end\n"
+			+ "local function make() return function() return 'unused' end end\n" + "return used()");
+		CountingCompiler compiler = new CountingCompiler();
+		globals(compiler, cache).loadfile(main.getPath()).call();
+
+		BytecodeCache lazy = new BytecodeCache(compiler, cache, true);
+		Prototype p = lazy.compile(Files.newInputStream(main.toPath()), "@" + main.getPath());
+		assertEquals(1, compiler.count);
+		assertNull(p.p[0].code);
+		assertNull(p.p[1].p[0].code);
+		Globals g = JsePlatform.standardGlobals();
+		assertEquals(LuaValue.valueOf("used"), new LuaClosure(p, g).call());
+		assertNotNull(p.p[0].code);
+		assertNull(p.p[1].p[0].code);
+	}
+
+	@Test
+	void testStringChunksAreNotCached() {
+		File cache = new File(dir, "cache");
+		CountingCompiler compiler = new CountingCompiler();
+		Globals g = globals(compiler, cache);
+		g.load("return 1", "chunk").call();
+		g.load("return 1", "chunk").call();
+		assertEquals(2, compiler.count);
+		assertEquals(false, cache.exists());
+	}
+}
@@ -1,11 +1,17 @@
 package org.luaj.vm2.lib.jse;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import org.junit.jupiter.api.Test;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.TwoArgFunction;
 
 class JsePlatformTest {
 	@Test
@@ -19,4 +25,84 @@ class JsePlatformTest {
 		assertEquals(results.arg(3), LuaValue.valueOf("bbb"));
 		assertEquals(results.arg(4), LuaValue.valueOf("aaa"));
 	}
+
+	@Test
+	void testForkIsolatesLibraryTables() {
+		Globals template = JsePlatform.standardGlobals();
+		Globals a = template.fork();
+		Globals b = template.fork();
+		a.load("string.custom = 1; x = 2; math.pi = 3").call();
+		assertEquals(LuaValue.valueOf(1), a.load("return string.custom").call());
+		assertEquals(LuaValue.valueOf(3), a.get("math").get("pi"));
+		assertEquals(LuaValue.NIL, b.load("return string.custom").call());
+		assertEquals(LuaValue.NIL, b.get("x"));
+		assertEquals(LuaValue.valueOf(Math.PI), b.get("math").get("pi"));
+		assertEquals(LuaValue.NIL, template.get("string").get("custom"));
+		assertEquals(LuaValue.NIL, template.get("x"));
+		assertEquals(LuaValue.valueOf("ABC"), b.load("return ('abc'):upper()").call());
+	}
+
+	@Test
+	void testForkRebindsGlobalsDependentLibraries() {
+		Globals template = JsePlatform.standardGlobals();
+		template.get("package").set("path", "?.custom");
+		Globals g = template.fork();
+		assertSame(g, g.get("_G"));
+		assertSame(g, g.load("return _G").call());
+		assertSame(g.get("string"), g.load("return require 'string'").call());
+		assertSame(g.get("package"), g.get("package").get("loaded").get("package"));
+		assertNotSame(template.get("print"), g.get("print"));
+		assertEquals(LuaValue.valueOf("?.custom"), g.get("package").get("path"));
+		g.load("package.preload.mod = function() return 'forked' end").call();
+		assertEquals(LuaValue.valueOf("forked"), g.load("return require 'mod'").call());
+		assertEquals(LuaValue.NIL, template.get("package").get("preload").get("mod"));
+		assertEquals(LuaValue.NIL, template.get("package").get("loaded").get("mod"));
+	}
+
+	@Test
+	void testLazyLibraryLoadsOnFirstUse() {
+		final int[] loads = { 0 };
+		Globals g = new Globals();
+		g.load(new BaseLib());
+		g.load(new PackageLib());
+		LuaValue placeholder = g.lazyload("counted", new TwoArgFunction() {
+			@Override
+			public LuaValue call(LuaValue modname, LuaValue env) {
+				++loads[0];
+				LuaTable t = new LuaTable();
+				t.set("x", 1);
+				env.set("counted", t);
+				env.get("package").get("loaded").set("counted", t);
+				return t;
+			}
+		});
+		assertEquals(0, loads[0]);
+		assertSame(placeholder, g.get("counted"));
+		assertSame(placeholder, g.get("package").get("loaded").get("counted"));
+		assertEquals(LuaValue.valueOf(1), placeholder.get("x"));
+		assertEquals(1, loads[0]);
+		assertSame(placeholder, g.get("counted"));
+		assertSame(placeholder, g.get("package").get("loaded").get("counted"));
+		placeholder.get("x");
+		assertEquals(1, loads[0]);
+	}
+
+	@Test
+	void testLazyGlobalsRunStandardLibraries() {
+		Globals g = JsePlatform.lazyGlobals();
+		Varargs r = g.load("local t = {3, 1, 2}; table.sort(t)\n"
+			+ "return t[1], math.max(4, 5), bit32.band(6, 3), type(io.write), type(os.time()),\n"
+			+ "  coroutine.wrap(function() coroutine.yield(7) end)(), io == require 'io', #table").invoke();
+		assertEquals(LuaValue.valueOf(1), r.arg(1));
+		assertEquals(LuaValue.valueOf(5), r.arg(2));
+		assertEquals(LuaValue.valueOf(2), r.arg(3));
+		assertEquals(LuaValue.valueOf("function"), r.arg(4));
+		assertEquals(LuaValue.valueOf("number"), r.arg(5));
+		assertEquals(LuaValue.valueOf(7), r.arg(6));
+		assertEquals(LuaValue.TRUE, r.arg(7));
+
+		Globals f = JsePlatform.lazyGlobals().fork();
+		assertEquals(LuaValue.valueOf(2.0), f.load("return math.sqrt(4)").call());
+		assertSame(f.get("math"), f.load("return require 'math'").call());
+	}
 }
@@ -0,0 +1,97 @@
+package org.luaj.vm2.luajc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class BundleTest {
+
+	@TempDir
+	File dir;
+
+	private static final String UTIL = "local function twice(x) return x * 2 end return { twice = twice }";
+	private static final String MAIN = "return require('app.util').twice(21)";
+
+	/* write a bundle of chunks given as pairs of chunk name and source */
+	private URLClassLoader bundle(String... chunks) throws IOException {
+		File jar = new File(dir, "app.jar");
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+		StringBuffer index = new StringBuffer();
+		for (int i = 0; i < chunks.length; i += 2) {
+			String classname = LuaJC.toStandardJavaClassName(chunks[i]);
+			Prototype p = JsePlatform.standardGlobals().compilePrototype(new StringReader(chunks[i+1]), classname);
+			Hashtable t = LuaJC.instance.compileAll(p, chunks[i], chunks[i] + ".lua", false, false);
+			for (Enumeration e = t.keys(); e.hasMoreElements();) {
+				String key = (String) e.nextElement();
+				jos.putNextEntry(new JarEntry(key + ".class"));
+				jos.write(Bundle.shareable((byte[]) t.get(key)));
+				jos.closeEntry();
+			}
+			index.append(Bundle.indexLine(chunks[i], p)).append('\n');
+		}
+		jos.putNextEntry(new JarEntry(Bundle.INDEX));
+		jos.write(index.toString().getBytes("UTF-8"));
+		jos.closeEntry();
+		jos.close();
+		return new URLClassLoader(new URL[] { jar.toURI().toURL() }, getClass().getClassLoader());
+	}
+
+	@Test
+	void testModulesAreRequiredFromBundle() throws IOException {
+		Globals g = JsePlatform.standardGlobals();
+		Bundle bundle = Bundle.install(g, bundle("app/util", UTIL, "app/main", MAIN));
+		assertTrue(bundle.contains("app.util"));
+		assertFalse(bundle.contains("app.other"));
+		assertEquals(42, g.get("require").call("app.main").toint());
+		assertEquals("app_util$twice", g.get("package").get("loaded").get("app.util").get("twice").getClass().getName());
+	}
+
+	@Test
+	void testUnchangedChunkIsLoadedFromBundle() throws IOException {
+		Globals g = JsePlatform.standardGlobals();
+		Bundle.install(g, bundle("app/util", UTIL));
+		LuaValue f = g.load(UTIL, "@app/util.lua");
+		assertFalse(f instanceof LuaClosure);
+		assertEquals("app_util", f.getClass().getName());
+		assertEquals(8, f.call().get("twice").call(LuaValue.valueOf(4)).toint());
+	}
+
+	@Test
+	void testChangedChunkIsPassedToFallback() throws IOException {
+		Globals g = JsePlatform.standardGlobals();
+		Bundle.install(g, bundle("app/util", UTIL));
+		LuaValue f = g.load("return 'changed'", "@app/util.lua");
+		assertTrue(f instanceof LuaClosure);
+		assertEquals(LuaValue.valueOf("changed"), f.call());
+	}
+
+	@Test
+	void testModuleIsCreatedWithEnvironment() throws IOException {
+		Globals g = JsePlatform.standardGlobals();
+		Bundle bundle = new Bundle(bundle("app/main", "return answer"), null);
+		g.set("answer", 42);
+		LuaFunction f = bundle.module("app.main", g);
+		assertEquals(42, f.call().toint());
+		assertEquals(null, bundle.module("app.other", g));
+	}
+}
@@ -0,0 +1,92 @@
+package org.luaj.vm2.luajc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Hashtable;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class ClassCacheTest {
+
+	@TempDir
+	File dir;
+
+	static class CountingCache extends ClassCache {
+		int hits, misses;
+
+		CountingCache(File directory, long maxBytes) {
+			super(directory, maxBytes);
+		}
+
+		@Override
+		public Hashtable get(Prototype p, String classname, String filename) {
+			Hashtable h = super.get(p, classname, filename);
+			if (h != null)
+				++hits;
+			else
+				++misses;
+			return h;
+		}
+	}
+
+	private LuaValue run(ClassCache cache, String script) {
+		Globals g = JsePlatform.standardGlobals();
+		g.loader = new LuaJC(cache);
+		return g.load(script, "@main.lua").call();
+	}
+
+	@Test
+	void testClassesAreReadFromCache() {
+		CountingCache cache = new CountingCache(new File(dir, "cache"), ClassCache.DEFAULT_MAX_BYTES);
+		String script = "local function f(x) return function() return x * 2 end end\n" + "return f(21)()";
+		assertEquals(42, run(cache, script).toint());
+		assertEquals(42, run(cache, script).toint());
+		assertEquals(1, cache.misses);
+		assertEquals(1, cache.hits);
+		assertEquals(1, cache.directory().list().length);
+	}
+
+	@Test
+	void testChangedSourceIsGeneratedAgain() {
+		CountingCache cache = new CountingCache(new File(dir, "cache"), ClassCache.DEFAULT_MAX_BYTES);
+		assertEquals(1, run(cache, "return 1").toint());
+		assertEquals(2, run(cache, "return 2").toint());
+		assertEquals(2, cache.misses);
+		assertEquals(2, cache.directory().list().length);
+	}
+
+	@Test
+	void testDamagedEntryIsReplaced() throws IOException {
+		CountingCache cache = new CountingCache(new File(dir, "cache"), ClassCache.DEFAULT_MAX_BYTES);
+		run(cache, "return 'ok'");
+		File[] entries = cache.directory().listFiles();
+		Files.write(entries[0].toPath(), new byte[] { 'P', 'K', 3 });
+		assertEquals(LuaValue.valueOf("ok"), run(cache, "return 'ok'"));
+		assertEquals(LuaValue.valueOf("ok"), run(cache, "return 'ok'"));
+		assertEquals(2, cache.misses);
+		assertEquals(1, cache.hits);
+	}
+
+	@Test
+	void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+		File directory = new File(dir, "cache");
+		run(new ClassCache(directory, ClassCache.DEFAULT_MAX_BYTES), "return 1");
+		File first = directory.listFiles()[0];
+		assertTrue(first.setLastModified(first.lastModified()-60000));
+
+		run(new ClassCache(directory, first.length()*3/2), "return 2");
+		File[] entries = directory.listFiles();
+		assertEquals(1, entries.length);
+		assertFalse(first.exists());
+	}
+}
@@ -0,0 +1,76 @@
+package org.luaj.vm2.luajc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class CompiledFramesTest {
+
+	private Varargs run(String script) {
+		Globals g = JsePlatform.debugGlobals();
+		LuaJC.install(g);
+		return g.load(script, "@main.lua").invoke();
+	}
+
+	@Test
+	void testTracebackHasCompiledFrames() {
+		Varargs r = run("local function inner() local s = debug.traceback('tb') return s end\n"
+			+ "local function outer() local s = inner() return s end\n" + "local s = outer() return s");
+		assertEquals("tb\nstack traceback:\n\tmain.lua:1: in function <main.lua:1>\n"
+			+ "\tmain.lua:2: in function <main.lua:2>\n\tmain.lua:3: in main chunk\n\t[Java]: in ?", r.tojstring(1));
+	}
+
+	@Test
+	void testGetinfoOfCompiledFrame() {
+		Varargs r = run("local function f()\n" + "  local info = debug.getinfo(1, 'Sl')\n"
+			+ "  return info.short_src, info.currentline, info.linedefined, info.lastlinedefined\n" + "end\n"
+			+ "return f()");
+		assertEquals("main.lua", r.tojstring(1));
+		assertEquals(2, r.toint(2));
+		assertEquals(1, r.toint(3));
+		assertEquals(4, r.toint(4));
+	}
+
+	@Test
+	void testGetinfoOfCompiledFunction() {
+		Varargs r = run("local function f()\n" + "end\n" + "local info = debug.getinfo(f, 'S')\n"
+			+ "return info.source, info.linedefined, info.lastlinedefined, info.what");
+		assertEquals("@main.lua", r.tojstring(1));
+		assertEquals(1, r.toint(2));
+		assertEquals(2, r.toint(3));
+		assertEquals("Lua", r.tojstring(4));
+	}
+
+	@Test
+	void testErrorHasPositionWithoutDebugLibrary() {
+		Globals g = JsePlatform.standardGlobals();
+		LuaJC.install(g);
+		Varargs r = g.load("local function f(l)\n" + "  error('boom', l)\n" + "end\n" + "local function g(l)\n"
+			+ "  local x = f(l) return x\n" + "end\n" + "return select(2, pcall(g, 1)), select(2, pcall(g, 2))",
+			"@main.lua").invoke();
+		assertEquals("@main.lua:2 boom", r.tojstring(1));
+		assertEquals("@main.lua:5 boom", r.tojstring(2));
+	}
+
+	@Test
+	void testGetinfoOfLevels() {
+		Varargs r = JsePlatform.debugGlobals().load("local function f(n)\n" + "  if n == 0 then\n"
+			+ "    return debug.getinfo(1, 'l').currentline, debug.getinfo(4, 'l').currentline,\n"
+			+ "      debug.getinfo(5, 'S').linedefined, debug.getinfo(6)\n" + "  end\n" + "  local a, b, c, d = f(n-1)\n"
+			+ "  return a, b, c, d\n" + "end\n" + "local a, b, c, d = f(3) return a, b, c, d", "@main.lua").invoke();
+		assertEquals(3, r.toint(1));
+		assertEquals(6, r.toint(2));
+		assertEquals(0, r.toint(3));
+		assertEquals(LuaValue.NIL, r.arg(4));
+	}
+
+	@Test
+	void testLocalsOfCompiledFrameAreUnknown() {
+		Varargs r = run("local x = 1 local name = debug.getlocal(1, 1) return name");
+		assertEquals(LuaValue.NIL, r.arg1());
+	}
+}
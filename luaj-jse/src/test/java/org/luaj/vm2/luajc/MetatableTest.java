@@ -0,0 +1,68 @@
+package org.luaj.vm2.luajc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+class MetatableTest {
+
+	private Globals newGlobals() {
+		Globals g = JsePlatform.standardGlobals();
+		LuaJC.install(g);
+		return g;
+	}
+
+	@Test
+	void testCompiledChunkUsesItsTypeMetatables() {
+		Globals a = newGlobals();
+		Globals b = newGlobals();
+		a.setTypeMetatable(LuaValue.TNUMBER, LuaValue.tableOf(new LuaValue[] { LuaValue.LEN, new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue arg) { return LuaValue.valueOf(42); }
+		}, }));
+		LuaValue f = a.load("return #5");
+		assertFalse(f instanceof LuaClosure);
+		assertEquals(42, f.call().toint());
+		assertEquals(LuaValue.FALSE, b.load("return pcall(function() return #5 end)").call());
+		assertNull(Globals.current());
+	}
+
+	@Test
+	void testCoroutineOfCompiledFunctionUsesItsTypeMetatables() {
+		Globals g = newGlobals();
+		LuaValue r = g.load("function string.shout(s) return s:upper() .. '!' end\n"
+			+ "return coroutine.wrap(function() return ('a'):shout() end)()").call();
+		assertEquals("A!", r.tojstring());
+	}
+
+	@Test
+	void testCompiledFunctionCalledFromJavaUsesItsTypeMetatables() {
+		Globals g = newGlobals();
+		Varargs r = g.load("function string.shout(s) return s:upper() .. '!' end\n"
+			+ "return function(s) return s:shout() end, function(...) return (...):shout() end").invoke();
+		assertFalse(r.arg1() instanceof LuaClosure);
+		assertEquals("A!", r.arg1().call(LuaValue.valueOf("a")).tojstring());
+		assertEquals("B!", r.arg(2).invoke(LuaValue.valueOf("b")).tojstring(1));
+		assertNull(Globals.current());
+	}
+
+	@Test
+	void testStringMethodsAreNotSharedBetweenGlobals() {
+		Globals a = newGlobals();
+		Globals b = newGlobals();
+		assertEquals("a", a.load("string.upper = function() return 'a' end return ('y'):upper()").call().tojstring());
+		assertEquals("Y", b.load("return ('y'):upper()").call().tojstring());
+		assertEquals("Y", LuaValue.valueOf("y").method("upper").tojstring());
+		assertTrue(LuaString.s_metatable.checktable().isfrozen());
+	}
+}
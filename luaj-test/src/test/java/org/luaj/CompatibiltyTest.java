@@ -33,7 +33,9 @@ import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.luajc.BytecodeOptimizer;
 import org.luaj.vm2.luajc.LuaJC;
+import org.luaj.vm2.luajc.TieredLuaJC;
 
 /**
  * Compatibility tests for the Luaj VM
@@ -143,6 +145,32 @@ public class CompatibiltyTest {
 		}
 	}
 
+	@Nested
+	public static class OptimizedCompatibilityTest extends CompatibiltyTestCase {
+
+		@BeforeEach
+		@Override
+		protected void setUp() {
+			setPlatform(PlatformTestCase.PlatformType.JSE);
+			System.setProperty("JME", "false");
+			super.setUp();
+			BytecodeOptimizer.install(globals);
+		}
+	}
+
+	@Nested
+	public static class TieredCompatibilityTest extends CompatibiltyTestCase {
+
+		@BeforeEach
+		@Override
+		protected void setUp() {
+			setPlatform(PlatformTestCase.PlatformType.JSE);
+			System.setProperty("JME", "false");
+			super.setUp();
+			globals.recompiler = new TieredLuaJC(1, Runnable::run);
+		}
+	}
+
 	@Nested
 	public static class LuaJCCompatibilityTest extends CompatibiltyTestCase {
 
@@ -6,7 +6,9 @@ import static org.junit.jupiter.api.Assertions.fail;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 
+import org.luaj.vm2.LoadState;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.compiler.DumpState;
@@ -38,6 +40,10 @@ abstract class CompilingTestCase extends ResourcesTestCase {
 			// compare again
 			assertEquals(actual, actual2);
 
+			// re-undump lazily, nested functions are decoded as they are printed
+			Prototype p3 = LoadState.undumpLazily(ByteBuffer.wrap(baos.toByteArray()), name);
+			assertEquals(actual, protoToString(p3));
+
 		} catch (Exception e) {
 			fail(e.toString());
 		}
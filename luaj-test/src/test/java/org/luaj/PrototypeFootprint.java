@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.compiler.LuaC;
+
+/**
+ * Measure the heap retained by the prototypes of many loaded chunks, as
+ * compiled, as undumped, and compacted with and without debug information.
+ *
+ * <pre>
+ * java -cp ... org.luaj.PrototypeFootprint [directory [copies]]
+ * </pre>
+ */
+public class PrototypeFootprint {
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0? args[0]: "src/test/resources");
+		int copies = args.length > 1? Integer.parseInt(args[1]): 20;
+
+		List<byte[]> sources = new ArrayList<byte[]>();
+		List<String> names = new ArrayList<String>();
+		collect(dir, sources, names);
+		List<byte[]> dumps = new ArrayList<byte[]>();
+		for (int i = 0; i < sources.size(); i++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DumpState.dump(LuaC.instance.compile(new ByteArrayInputStream(sources.get(i)), names.get(i)), baos, false);
+			dumps.add(baos.toByteArray());
+		}
+		System.out.println(sources.size() + " chunks x " + copies + " copies");
+
+		measure("LuaC", LuaC.instance, null, sources, names, dumps, copies);
+		measure("LuaC compact", LuaC.compactInstance, null, sources, names, dumps, copies);
+		measure("LuaC stripped", LuaC.strippedInstance, null, sources, names, dumps, copies);
+		measure("undump", null, LoadState.instance, sources, names, dumps, copies);
+		measure("undump compact", null, LoadState.compactInstance, sources, names, dumps, copies);
+		measure("undump stripped", null, LoadState.strippedInstance, sources, names, dumps, copies);
+	}
+
+	private static void collect(File dir, List<byte[]> sources, List<String> names) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory())
+				collect(f, sources, names);
+			else if (f.getName().endsWith(".lua")) {
+				byte[] bytes = Files.readAllBytes(f.toPath());
+				try {
+					LuaC.instance.compile(new ByteArrayInputStream(bytes), "@" + f.getPath());
+				} catch (Exception e) {
+					continue;
+				}
+				sources.add(bytes);
+				names.add("@" + f.getPath());
+			}
+		}
+	}
+
+	private static void measure(String label, Globals.Compiler compiler, Globals.Undumper undumper,
+		List<byte[]> sources, List<String> names, List<byte[]> dumps, int copies) throws IOException {
+		long before = used();
+		List<Prototype> retained = new ArrayList<Prototype>();
+		for (int c = 0; c < copies; c++)
+			for (int i = 0; i < sources.size(); i++)
+				retained.add(compiler != null? compiler.compile(new ByteArrayInputStream(sources.get(i)), names.get(i))
+					: undumper.undump(new ByteArrayInputStream(dumps.get(i)), names.get(i)));
+		long after = used();
+		System.out.println(label + ": " + (after-before)/1024 + " KB for " + retained.size() + " chunks");
+	}
+
+	private static long used() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rt.totalMemory()-rt.freeMemory();
+	}
+}